@@ -0,0 +1,254 @@
+package it.unimib.sd2025;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Benchmark da riga di comando per confrontare le modalità del database.
+ * Sta fuori da src/main, quindi non finisce nel jar: Maven lo compila con i
+ * sorgenti di test.
+ *
+ * Uso: {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=it.unimib.sd2025.Benchmark -Dexec.args="connections 10000 20"}
+ *
+ * Scenari:
+ * <ul>
+ *   <li>{@code connections <n> <rounds>}: apre n connessioni verso un server già
+ *       avviato, le tiene aperte e su ognuna esegue rounds PING; riporta il
+ *       throughput e le metriche INFO del server (thread di piattaforma, heap).</li>
+ *   <li>{@code contention <secondi> <chiavi> [thread]}: in-process, senza rete;
+ *       misura il throughput di SET/INCR su {@link KeyValueDatabase} con 1, 2,
+ *       4, ... thread (fino al numero di core o a quello indicato), sia con il
+ *       percorso normale (strisce di lock condivise) sia serializzando ogni
+ *       scrittura su un lock globale come faceva la versione precedente.</li>
+ *   <li>{@code memory <utenti> <secondi>}: in-process; per ciascun motore di
+ *       storage carica utenti e buoni come hash con comandi del protocollo,
+ *       misura lo heap occupato (totale e per voce), la memoria nativa e il
+ *       tempo di GC durante un carico misto di letture e
+ *       HMOVE. Va eseguito con uno heap sufficiente (es. {@code -Xmx4g}).</li>
+ * </ul>
+ */
+public class Benchmark {
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "connections";
+        switch (scenario) {
+            case "connections":
+                connections(intArg(args, 1, 1000), intArg(args, 2, 10));
+                break;
+            case "contention":
+                contention(intArg(args, 1, 2), intArg(args, 2, 100_000),
+                    intArg(args, 3, Runtime.getRuntime().availableProcessors()));
+                break;
+            case "memory":
+                memory(intArg(args, 1, 500_000), intArg(args, 2, 5));
+                break;
+            default:
+                System.err.println("Unknown scenario: " + scenario);
+        }
+    }
+
+    /**
+     * Molte connessioni contemporanee e poco attive: è il caso in cui un thread
+     * di piattaforma per connessione costa di più.
+     */
+    private static void connections(int count, int rounds) throws Exception {
+        List<Socket> sockets = new ArrayList<>(count);
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            sockets.add(new Socket("localhost", Main.PORT));
+        }
+        long connectMillis = (System.nanoTime() - connectStart) / 1_000_000;
+
+        // Lato client ogni connessione ha il suo virtual thread, così il
+        // benchmark stesso non è limitato dal numero di thread di piattaforma
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(count);
+        long start = System.nanoTime();
+        for (Socket socket : sockets) {
+            Thread.ofVirtual().start(() -> {
+                try {
+                    var out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                    var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    for (int r = 0; r < rounds; r++) {
+                        out.write("PING\n");
+                        out.flush();
+                        if (!"PONG".equals(in.readLine())) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsedNanos = System.nanoTime() - start;
+
+        String info = command(sockets.get(0), "INFO");
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+
+        long operations = (long) count * rounds;
+        System.out.printf("connections=%d rounds=%d connectMs=%d%n", count, rounds, connectMillis);
+        System.out.printf("ops=%d failures=%d elapsedMs=%d throughput=%.0f ops/s%n",
+            operations, failures.get(), elapsedNanos / 1_000_000, operations * 1e9 / elapsedNanos);
+        System.out.println("server " + info);
+    }
+
+    /**
+     * Scalabilità delle scritture su una sola chiave al crescere dei thread.
+     */
+    private static void contention(int seconds, int keyCount, int maxThreads) throws Exception {
+        KeyValueDatabase database = new KeyValueDatabase();
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "key:" + i;
+            database.set(keys[i], "0");
+        }
+        ReentrantLock globalLock = new ReentrantLock();
+
+        System.out.printf("cores=%d keys=%d seconds=%d%n",
+            Runtime.getRuntime().availableProcessors(), keyCount, seconds);
+        System.out.printf("%8s %18s %18s%n", "threads", "globalLock ops/s", "striped ops/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double locked = writeThroughput(database, keys, threads, seconds, globalLock);
+            double striped = writeThroughput(database, keys, threads, seconds, null);
+            System.out.printf("%8d %18.0f %18.0f%n", threads, locked, striped);
+        }
+    }
+
+    /**
+     * Ogni thread esegue 3 SET e 1 INCR su chiavi casuali finché non scade il
+     * tempo; con lock != null ogni operazione è serializzata su di esso.
+     */
+    private static double writeThroughput(KeyValueDatabase database, String[] keys, int threads,
+                                          int seconds, ReentrantLock lock) throws InterruptedException {
+        AtomicLong operations = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers.add(Thread.ofPlatform().start(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                    String key = keys[random.nextInt(keys.length)];
+                    if (lock != null) {
+                        lock.lock();
+                    }
+                    try {
+                        if ((count & 3) == 3) {
+                            database.increment(key);
+                        } else {
+                            database.set(key, String.valueOf(count));
+                        }
+                    } finally {
+                        if (lock != null) {
+                            lock.unlock();
+                        }
+                    }
+                    count++;
+                }
+                operations.addAndGet(count);
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.get() * 1e9 / (System.nanoTime() - start);
+    }
+    /**
+     * Memoria e pause di GC dei due motori di storage a parità di dati.
+     */
+    private static void memory(int users, int seconds) throws Exception {
+        System.out.printf("users=%d vouchers=%d seconds=%d%n", users, users, seconds);
+        System.out.printf("%8s %10s %14s %12s %14s %10s %8s %12s%n",
+            "storage", "load ms", "heap bytes", "heap B/entry", "offheap bytes", "ops/s", "GCs", "GC ms");
+        for (String engine : new String[] {"heap", "offheap"}) {
+            long heapBefore = usedHeapAfterGc();
+            KeyValueDatabase database = new KeyValueDatabase(StorageEngine.create(engine));
+            // Come comandi del protocollo, così chiavi e valori sono stringhe nuove come quelle lette dalla rete
+            CommandProcessor processor = new CommandProcessor(database);
+            String[] categories = {"libri", "cinema", "musica", "concerti", "eventi culturali"};
+            long start = System.nanoTime();
+            for (int i = 0; i < users; i++) {
+                processor.process("HSET user:" + i + " name \"Nome" + i + "\" surname \"Cognome" + i
+                    + "\" email \"utente" + i + "@example.com\" availableBudget \"450.00\" usedBudget \"50.00\"");
+                processor.process("HSET voucher:" + i + " userId " + i + " amount \"50.00\" category \""
+                    + categories[i % categories.length] + "\" status " + (i % 3 == 0 ? "consumed" : "active")
+                    + " createdAt \"2025-06-28T09:15:00\"");
+            }
+            long loadMillis = (System.nanoTime() - start) / 1_000_000;
+            long heapBytes = usedHeapAfterGc() - heapBefore;
+
+            // Carico misto: 3 letture di un buono ogni HMOVE sul budget di un utente
+            long gcCountBefore = gcCount();
+            long gcMillisBefore = gcMillis();
+            long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long operations = 0;
+            start = System.nanoTime();
+            while ((operations & 1023) != 0 || System.nanoTime() < deadline) {
+                int id = random.nextInt(users);
+                if ((operations & 3) == 3) {
+                    database.hashMove("user:" + id, "availableBudget", "usedBudget", "0.01");
+                } else {
+                    database.hashGetAll("voucher:" + id);
+                }
+                operations++;
+            }
+            double throughput = operations * 1e9 / (System.nanoTime() - start);
+
+            System.out.printf("%8s %10d %14d %12d %14d %10.0f %8d %12d%n", engine, loadMillis, heapBytes,
+                heapBytes / (2L * users), database.storageEngine().offHeapBytes(), throughput,
+                gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+        }
+    }
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += gc.getCollectionTime();
+        }
+        return millis;
+    }
+    private static String command(Socket socket, String command) throws IOException {
+        var out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out.write(command + "\n");
+        out.flush();
+        return in.readLine();
+    }
+
+    private static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+}
@@ -0,0 +1,714 @@
+package it.unimib.sd2025;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Log append-only delle scritture (AOF), riletto all'avvio per non perdere i dati.
+ *
+ * Ogni modifica di una chiave aggiunge una riga con il suo nuovo valore:
+ * {@code SET chiave "valore"}, {@code HSET chiave "campo" "valore" ...} con
+ * tutti i campi dell'hash, oppure {@code DEL chiave}. Registrare il valore
+ * risultante invece del comando (INCR, HMOVE, CALL, ...) rende il replay
+ * deterministico. Uno stream, che può essere lungo, non viene riscritto a
+ * ogni aggiunta: il log riporta solo le voci nuove ({@code XADD chiave id
+ * "campo" "valore" ...}, con l'id già assegnato), il taglio
+ * ({@code XTRIM chiave MINID id}, con il primo id rimasto) e, se serve,
+ * l'ultimo id assegnato ({@code XSETID chiave id}); riapplicate a uno
+ * stream che le contiene già non lo cambiano (vedi {@link Stream.Change}). Ogni cambio di scadenza aggiunge {@code PEXPIREAT chiave ms}
+ * (istante assoluto, così resta valido dopo un riavvio) oppure
+ * {@code PERSIST chiave}. Una riga finale incompleta, lasciata da un crash durante
+ * la scrittura, viene scartata.
+ *
+ * Le righe sono accodate in memoria dentro il compute della chiave, quindi
+ * nel file compaiono nello stesso ordine delle scritture su ogni chiave. Un
+ * thread dedicato le scrive su disco a blocchi (group commit): molte
+ * scritture concorrenti condividono una sola write e un solo force. Chi
+ * non può bloccarsi in attesa del force (l'event loop del server non
+ * bloccante) si fa richiamare dal thread di scrittura ({@link #whenDurable}).
+ *
+ * Il log riscritto da {@link #rewrite} inizia con uno {@link Snapshot}
+ * binario dello stato e prosegue con le righe di testo successive.
+ */
+final class AppendOnlyFile implements Closeable {
+
+    /**
+     * Quando il log viene forzato su disco.
+     */
+    enum Fsync {
+        /** Force dopo ogni blocco; la risposta parte solo quando le sue scritture sono su disco. */
+        ALWAYS,
+        /** Force ogni N ms: un crash può perdere le scritture degli ultimi N ms. */
+        INTERVAL,
+        /** Write ogni N ms senza force: è il sistema operativo a decidere quando scrivere su disco. */
+        NO;
+
+        static Fsync parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final Path path;
+    private final Fsync fsync;
+    private final long intervalNanos;
+    private final Thread writer;
+
+    // Tenuto dal thread di scrittura mentre scrive un blocco e dalla
+    // riscrittura mentre sostituisce il file; protegge channel
+    private final ReentrantLock ioLock = new ReentrantLock();
+    private FileChannel channel;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasPending = lock.newCondition();
+    private final Condition written = lock.newCondition();
+
+    // Protetti da lock
+    private RecordBuffer pending = new RecordBuffer();
+    private long appendedCount = 0;
+    private long writtenCount = 0;
+    private boolean closing = false;
+    private IOException failure;
+    // Righe accodate durante una riscrittura, null se non ce n'è una in corso
+    private RecordBuffer rewriteBuffer;
+    // Attese registrate da whenDurable
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    /**
+     * Attesa di {@link #whenDurable}: la riga da attendere e chi avvisare.
+     */
+    private record Waiter(long target, Consumer<Boolean> callback) {
+    }
+
+    // Dimensione del file e sua dimensione dopo l'ultima riscrittura
+    private volatile long fileSize;
+    private volatile long baseSize;
+
+    // Oltre questa dimensione le righe arrivate durante una riscrittura
+    // vengono copiate senza bloccare le scritture, per al massimo MAX_TAIL_ROUNDS volte
+    private static final int TAIL_SWAP_SIZE = 64 * 1024;
+    private static final int MAX_TAIL_ROUNDS = 16;
+
+    // Ultima riga accodata da ciascun thread: è quella da attendere prima di rispondere
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+
+    AppendOnlyFile(Path path, Fsync fsync, long intervalMillis) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.fileSize = channel.size();
+        this.baseSize = fileSize;
+        this.fsync = fsync;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.writer = Thread.ofPlatform().name("db-aof-writer").daemon().start(this::writeLoop);
+    }
+
+    /**
+     * Accoda una riga prodotta da {@link #encode} o {@link #encodeDeadline}.
+     * Se il log non è più scrivibile lancia un'eccezione, così la scrittura
+     * viene rifiutata invece di restare solo in memoria.
+     */
+    void append(byte[] record) {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new IllegalStateException("append-only file write failed: " + failure.getMessage());
+            }
+            pending.add(record);
+            if (rewriteBuffer != null) {
+                rewriteBuffer.add(record);
+            }
+            lastAppended.get()[0] = ++appendedCount;
+            if (fsync == Fsync.ALWAYS) {
+                hasPending.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Con la policy always attende che le righe accodate dal thread corrente
+     * siano su disco; va chiamato prima di inviare le risposte al client.
+     * Restituisce false se il log non è più scrivibile.
+     */
+    boolean awaitDurable() {
+        if (fsync != Fsync.ALWAYS) {
+            return true;
+        }
+        long target = lastAppended.get()[0];
+        lock.lock();
+        try {
+            while (writtenCount < target && failure == null) {
+                written.awaitUninterruptibly();
+            }
+            return failure == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Come {@link #awaitDurable} ma senza bloccare: callback riceve true
+     * quando le righe accodate dal thread corrente sono su disco, false se il
+     * log non è più scrivibile. Se non c'è nulla da attendere viene chiamato
+     * subito dal thread corrente, altrimenti dal thread di scrittura, quindi
+     * deve solo passare il lavoro a chi lo eseguirà.
+     */
+    void whenDurable(Consumer<Boolean> callback) {
+        if (fsync != Fsync.ALWAYS) {
+            callback.accept(true);
+            return;
+        }
+        long target = lastAppended.get()[0];
+        boolean durable;
+        lock.lock();
+        try {
+            if (writtenCount < target && failure == null) {
+                waiters.add(new Waiter(target, callback));
+                return;
+            }
+            durable = failure == null;
+        } finally {
+            lock.unlock();
+        }
+        callback.accept(durable);
+    }
+
+    /**
+     * Toglie le attese ormai soddisfatte (tutte se il log è fallito); va
+     * chiamato con lock preso, e le attese restituite vanno avvisate con
+     * {@link #notifyWaiters} dopo averlo rilasciato.
+     */
+    private List<Waiter> takeReadyWaiters() {
+        if (waiters.isEmpty()) {
+            return List.of();
+        }
+        List<Waiter> ready = new ArrayList<>();
+        waiters.removeIf(waiter -> {
+            if (failure == null && waiter.target() > writtenCount) {
+                return false;
+            }
+            ready.add(waiter);
+            return true;
+        });
+        return ready;
+    }
+
+    private static void notifyWaiters(List<Waiter> ready, boolean durable) {
+        for (Waiter waiter : ready) {
+            waiter.callback().accept(durable);
+        }
+    }
+
+    private void writeLoop() {
+        RecordBuffer spare = new RecordBuffer();
+        while (true) {
+            lock.lock();
+            try {
+                if (fsync == Fsync.ALWAYS) {
+                    while (pending.isEmpty() && !closing) {
+                        hasPending.await();
+                    }
+                } else if (!closing) {
+                    hasPending.awaitNanos(intervalNanos);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            // Il blocco viene preso e scritto sotto ioLock, così una
+            // riscrittura non può sostituire il file a metà
+            RecordBuffer batch;
+            long batchEnd;
+            boolean last;
+            ioLock.lock();
+            try {
+                lock.lock();
+                try {
+                    batch = pending;
+                    pending = spare;
+                    batchEnd = appendedCount;
+                    last = closing;
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    if (!batch.isEmpty()) {
+                        writeFully(channel, batch.view());
+                        fileSize += batch.size();
+                        if (fsync != Fsync.NO) {
+                            channel.force(false);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Append-only file write failed: " + e.getMessage());
+                    List<Waiter> ready;
+                    lock.lock();
+                    try {
+                        failure = e;
+                        written.signalAll();
+                        ready = takeReadyWaiters();
+                    } finally {
+                        lock.unlock();
+                    }
+                    notifyWaiters(ready, false);
+                    return;
+                }
+
+                batch.clear();
+                spare = batch;
+                List<Waiter> ready;
+                lock.lock();
+                try {
+                    writtenCount = batchEnd;
+                    written.signalAll();
+                    ready = takeReadyWaiters();
+                } finally {
+                    lock.unlock();
+                }
+                notifyWaiters(ready, true);
+            } finally {
+                ioLock.unlock();
+            }
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Dimensione attuale del file in byte.
+     */
+    long size() {
+        return fileSize;
+    }
+
+    /**
+     * Indica se il file è almeno minSize byte ed è cresciuto di almeno
+     * percentage% rispetto a dopo l'ultima riscrittura (o all'apertura).
+     */
+    boolean needsRewrite(long minSize, int percentage) {
+        long size = fileSize;
+        return size >= minSize && size >= baseSize + baseSize * percentage / 100;
+    }
+
+    /**
+     * Riscrive il log con il solo valore attuale di ogni chiave, senza
+     * fermare le scritture, e lo sostituisce in modo atomico.
+     *
+     * Le righe accodate da questo momento vanno anche in un buffer a parte;
+     * poi liveState visita lo stato di questo istante (vedi
+     * {@link KeyValueDatabase#forEachAtSnapshot}), che viene scritto in un
+     * file temporaneo come snapshot binario, seguito dalle righe del buffer.
+     * Solo l'ultima parte del buffer viene copiata bloccando le scritture,
+     * insieme al force e alla rename sopra il log. Una scrittura accodata
+     * durante la visita può finire sia nello snapshot sia nel buffer, e al
+     * replay viene riapplicata: le righe con il valore intero lo
+     * risostituiscono, quelle di uno stream saltano le voci e i tagli che
+     * lo snapshot contiene già (vedi {@link Stream.Change}).
+     * Restituisce il numero di chiavi dello snapshot.
+     */
+    long rewrite(Consumer<BiConsumer<String, Object>> liveState) throws IOException {
+        lock.lock();
+        try {
+            if (failure != null || closing) {
+                throw new IllegalStateException("append-only file is not writable");
+            }
+            if (rewriteBuffer != null) {
+                throw new IllegalStateException("background rewrite already in progress");
+            }
+            rewriteBuffer = new RecordBuffer();
+        } finally {
+            lock.unlock();
+        }
+
+        Path temp = path.resolveSibling(path.getFileName() + ".rewrite");
+        FileChannel rewritten = null;
+        FileChannel replaced = null;
+        List<Waiter> ready = List.of();
+        try {
+            rewritten = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            long keys = Snapshot.write(rewritten, liveState);
+
+            // Righe arrivate nel frattempo: si copiano senza bloccare le
+            // scritture finché il buffer resta grande
+            for (int round = 0; round < MAX_TAIL_ROUNDS; round++) {
+                RecordBuffer tail;
+                lock.lock();
+                try {
+                    tail = rewriteBuffer;
+                    if (tail.size() < TAIL_SWAP_SIZE) {
+                        break;
+                    }
+                    rewriteBuffer = new RecordBuffer();
+                } finally {
+                    lock.unlock();
+                }
+                writeFully(rewritten, tail.view());
+            }
+            rewritten.force(false);
+
+            ioLock.lock();
+            try {
+                lock.lock();
+                try {
+                    if (failure != null || closing) {
+                        throw new IllegalStateException("append-only file is not writable");
+                    }
+                    writeFully(rewritten, rewriteBuffer.view());
+                    rewritten.force(false);
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                    // Le righe non ancora scritte sono già nel nuovo file
+                    replaced = channel;
+                    channel = rewritten;
+                    pending.clear();
+                    writtenCount = appendedCount;
+                    written.signalAll();
+                    ready = takeReadyWaiters();
+                    fileSize = rewritten.size();
+                    baseSize = fileSize;
+                } finally {
+                    rewriteBuffer = null;
+                    lock.unlock();
+                }
+            } finally {
+                ioLock.unlock();
+            }
+            notifyWaiters(ready, true);
+            replaced.close();
+            return keys;
+        } finally {
+            if (replaced == null) {
+                lock.lock();
+                try {
+                    rewriteBuffer = null;
+                } finally {
+                    lock.unlock();
+                }
+                if (rewritten != null) {
+                    rewritten.close();
+                }
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Scrive le righe ancora in memoria, le forza su disco e chiude il file.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closing = true;
+            hasPending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ioLock.lock();
+        try {
+            channel.force(false);
+            channel.close();
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    // === FORMATO ===
+
+    /**
+     * Righe con il nuovo valore di una chiave (null se cancellata); previous
+     * è il valore precedente, usato per registrare solo le modifiche di uno stream.
+     */
+    static byte[] encode(String key, Object previous, Object value) {
+        StringBuilder line = new StringBuilder();
+        if (value instanceof Stream stream) {
+            encodeStream(line, key, previous, stream);
+            return line.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        if (value == null) {
+            line.append("DEL ").append(Protocol.quote(key));
+        } else if (value instanceof Hash hash) {
+            line.append("HSET ").append(Protocol.quote(key));
+            hash.forEach((field, fieldValue) ->
+                line.append(' ').append(Protocol.quote(field)).append(' ').append(Protocol.quote(fieldValue)));
+        } else {
+            line.append("SET ").append(Protocol.quote(key)).append(' ').append(Protocol.quote(value.toString()));
+        }
+        return line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Modifiche di uno stream rispetto a previous se ne deriva, altrimenti
+     * l'intero stream al posto del valore precedente.
+     */
+    private static void encodeStream(StringBuilder lines, String key, Object previous, Stream stream) {
+        String quotedKey = Protocol.quote(key);
+        Stream base = previous instanceof Stream older && stream.derivesFrom(older) ? older : null;
+        List<Stream.Entry> added;
+        Stream.Id lastAdded;
+        if (base != null) {
+            added = stream.addedSince(base);
+            lastAdded = base.lastId();
+        } else {
+            if (previous != null) {
+                lines.append("DEL ").append(quotedKey).append('\n');
+            }
+            added = stream.range(Stream.Id.ZERO, stream.lastId(), 0);
+            lastAdded = Stream.Id.ZERO;
+        }
+        for (Stream.Entry entry : added) {
+            lines.append("XADD ").append(quotedKey).append(' ').append(entry.id());
+            for (String part : entry.fields()) {
+                lines.append(' ').append(Protocol.quote(part));
+            }
+            lines.append('\n');
+            lastAdded = entry.id();
+        }
+        if (base != null && stream.trimmedSince(base)) {
+            // Il taglio è registrato come primo id rimasto, non come lunghezza:
+            // riapplicato dopo altre aggiunte non toglie voci più recenti
+            lines.append("XTRIM ").append(quotedKey);
+            if (stream.length() > 0) {
+                lines.append(" MINID ").append(stream.get(0).id());
+            } else if (!stream.lastId().equals(Stream.Id.MAX)) {
+                lines.append(" MINID ").append(stream.lastId().successor());
+            } else {
+                lines.append(" MAXLEN 0");
+            }
+            lines.append('\n');
+        }
+        // Voci aggiunte e già tagliate, o stream vuoto: l'ultimo id non si ricava dalle voci
+        if (!lastAdded.equals(stream.lastId())) {
+            lines.append("XSETID ").append(quotedKey).append(' ').append(stream.lastId()).append('\n');
+        }
+    }
+
+    /**
+     * Riga con la nuova scadenza di una chiave (millisecondi epoch, 0 se non scade più).
+     */
+    static byte[] encodeDeadline(String key, long deadline) {
+        String line = deadline != 0
+            ? "PEXPIREAT " + Protocol.quote(key) + " " + deadline + "\n"
+            : "PERSIST " + Protocol.quote(key) + "\n";
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Rilegge il log e passa a apply ogni chiave con il suo valore (null se
+     * cancellata): prima quelle dello snapshot iniziale, se il log è stato
+     * riscritto, poi le righe successive. Una riga finale senza terminatore
+     * viene troncata dal file. Restituisce il numero di record applicati.
+     */
+    static long replay(Path path, BiConsumer<String, Object> apply) throws IOException {
+        long records = 0;
+        long validLength = 0;
+        long offset = 0;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (Snapshot.startsAt(file, 0)) {
+                Snapshot.Loaded base = Snapshot.load(file, 0, apply);
+                records = base.keys();
+                validLength = base.end();
+                offset = base.end();
+                file.position(offset);
+            }
+            InputStream in = new BufferedInputStream(Channels.newInputStream(file), 1 << 16);
+            int b;
+            while ((b = in.read()) != -1) {
+                offset++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                decode(line.toString(StandardCharsets.UTF_8), offset, apply);
+                line.reset();
+                validLength = offset;
+                records++;
+            }
+        }
+
+        if (validLength < offset) {
+            System.err.println("Warning: truncating incomplete last record of " + path
+                + " (" + (offset - validLength) + " bytes)");
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                file.truncate(validLength);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Applica una riga del log (anche ricevuta da una replica); offset
+     * serve solo al messaggio di errore.
+     */
+    static void decode(String line, long offset, BiConsumer<String, Object> apply) throws IOException {
+        List<String> parts;
+        try {
+            parts = Protocol.tokenize(line);
+        } catch (IllegalArgumentException e) {
+            throw corrupted(offset);
+        }
+        if (parts.size() < 2) {
+            throw corrupted(offset);
+        }
+
+        String key = parts.get(1);
+        switch (parts.get(0)) {
+            case "SET":
+                if (parts.size() != 3) {
+                    throw corrupted(offset);
+                }
+                apply.accept(key, parts.get(2));
+                break;
+            case "HSET":
+                if (parts.size() < 4 || parts.size() % 2 != 0) {
+                    throw corrupted(offset);
+                }
+                Map<String, String> fields = new LinkedHashMap<>();
+                for (int i = 2; i < parts.size(); i += 2) {
+                    fields.put(parts.get(i), parts.get(i + 1));
+                }
+                apply.accept(key, Hash.EMPTY.with(fields));
+                break;
+            case "DEL":
+                apply.accept(key, null);
+                break;
+            case "PEXPIREAT":
+                if (parts.size() != 3) {
+                    throw corrupted(offset);
+                }
+                try {
+                    apply.accept(key, new Expiring(null, Long.parseLong(parts.get(2))));
+                } catch (NumberFormatException e) {
+                    throw corrupted(offset);
+                }
+                break;
+            case "PERSIST":
+                apply.accept(key, new Expiring(null, 0));
+                break;
+            case "XADD":
+                if (parts.size() < 5 || parts.size() % 2 == 0) {
+                    throw corrupted(offset);
+                }
+                Stream.Id id = parseStreamId(parts.get(2), offset);
+                String[] entryFields = parts.subList(3, parts.size()).toArray(new String[0]);
+                apply.accept(key, new Stream.Change(stream -> stream.replayAdd(id, entryFields)));
+                break;
+            case "XTRIM":
+                if (parts.size() != 4) {
+                    throw corrupted(offset);
+                }
+                if (parts.get(2).equals("MINID")) {
+                    Stream.Id minId = parseStreamId(parts.get(3), offset);
+                    apply.accept(key, new Stream.Change(stream -> stream.trimBefore(minId)));
+                    break;
+                }
+                if (!parts.get(2).equals("MAXLEN")) {
+                    throw corrupted(offset);
+                }
+                try {
+                    long maxLength = Long.parseLong(parts.get(3));
+                    apply.accept(key, new Stream.Change(stream -> stream.trim(maxLength)));
+                } catch (NumberFormatException e) {
+                    throw corrupted(offset);
+                }
+                break;
+            case "XSETID":
+                if (parts.size() != 3) {
+                    throw corrupted(offset);
+                }
+                Stream.Id lastId = parseStreamId(parts.get(2), offset);
+                apply.accept(key, new Stream.Change(stream -> stream.replayLastId(lastId)));
+                break;
+            default:
+                throw corrupted(offset);
+        }
+    }
+
+    private static Stream.Id parseStreamId(String value, long offset) throws IOException {
+        try {
+            return Stream.Id.parse(value, 0);
+        } catch (IllegalArgumentException e) {
+            throw corrupted(offset);
+        }
+    }
+
+    private static IOException corrupted(long offset) {
+        return new IOException("Corrupted append-only file: bad record ending at byte " + offset);
+    }
+
+    /**
+     * Buffer di byte riusabile: il thread di scrittura ne alterna due
+     * (anche {@link ReplicationSource} per ogni replica).
+     */
+    static final class RecordBuffer {
+        private byte[] bytes = new byte[8192];
+        private int size = 0;
+
+        void add(byte[] record) {
+            if (size + record.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + record.length));
+            }
+            System.arraycopy(record, 0, bytes, size, record.length);
+            size += record.length;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        ByteBuffer view() {
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,989 @@
+package it.unimib.sd2025;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Interprete del protocollo testuale simile a Redis.
+ * Traduce una riga di comando nella chiamata corrispondente su
+ * {@link KeyValueDatabase} e restituisce la riga di risposta.
+ * Ne viene creata un'istanza per connessione, indipendentemente dal
+ * modello di server (thread per connessione o event loop NIO).
+ */
+class CommandProcessor {
+    /**
+     * Chiavi esaminate da SCAN se il client non specifica COUNT, e massimo ammesso.
+     */
+    private static final int DEFAULT_SCAN_COUNT = 10;
+    private static final int MAX_SCAN_COUNT = 10_000;
+
+    /**
+     * Comandi che dentro MULTI vengono accodati invece che eseguiti. Ognuno
+     * scrive solo le chiavi che EXEC blocca (vedi keysOf): FLUSH, che le
+     * cancella tutte, non è tra questi.
+     */
+    private static final Set<String> QUEUEABLE_COMMANDS = Set.of(
+        "SET", "GET", "DEL", "DELETE", "EXISTS", "MGET", "MSET", "MDEL",
+        "HSET", "HGET", "HMGET", "HGETALL", "HDEL", "HINCRBYFLOAT", "HINCRBY", "HMOVE", "TYPE",
+        "KEYS", "SCAN", "INCR", "INCRBY", "DECRBY", "SIZE", "INFO", "PING", "CALL",
+        "EXPIRE", "PEXPIRE", "TTL", "PTTL", "PERSIST", "PUBLISH",
+        "XADD", "XLEN", "XRANGE", "XREVRANGE", "XREAD", "XTRIM", "SUM", "COUNT"
+    );
+
+    /**
+     * Comandi che possono occupare memoria: con il limite di memoria superato
+     * vengono eseguiti solo se la policy riesce a fare posto.
+     */
+    private static final Set<String> DENY_OOM_COMMANDS = Set.of(
+        "SET", "MSET", "HSET", "HINCRBYFLOAT", "HINCRBY", "INCR", "INCRBY", "DECRBY", "CALL", "XADD"
+    );
+
+    /**
+     * Comandi che modificano i dati, rifiutati da una replica.
+     */
+    private static final Set<String> WRITE_COMMANDS = Set.of(
+        "SET", "DEL", "DELETE", "MSET", "MDEL", "HSET", "HDEL", "HINCRBYFLOAT", "HINCRBY", "HMOVE",
+        "INCR", "INCRBY", "DECRBY", "FLUSH", "CALL", "EXPIRE", "PEXPIRE", "PERSIST", "BGREWRITEAOF",
+        "XADD", "XTRIM"
+    );
+
+    private final KeyValueDatabase database;
+    private Transaction transaction = new Transaction();
+    // Vero mentre EXEC esegue i comandi accodati: XREAD non blocca e la
+    // memoria è già stata controllata
+    private boolean executing = false;
+    // Chiavi delle CALL accodate, ricavate da EXEC prima di prendere i lock
+    private final Map<String[], List<String>> callKeys = new IdentityHashMap<>();
+
+    CommandProcessor(KeyValueDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Rilascia lo stato della connessione (chiavi osservate con WATCH).
+     */
+    void close() {
+        resetTransaction();
+    }
+
+    /**
+     * Indica se il comando chiede la chiusura della connessione.
+     */
+    static boolean isQuit(String command) {
+        return "QUIT".equalsIgnoreCase(command.trim());
+    }
+
+    /**
+     * Indica se il comando chiede di diventare lo stream di una replica:
+     * il server passa allora la connessione a {@link KeyValueDatabase#serveReplica}.
+     */
+    static boolean isSync(String command) {
+        return "SYNC".equalsIgnoreCase(command.trim());
+    }
+
+    /**
+     * Indica se il comando rende la connessione un sottoscrittore (SUBSCRIBE
+     * o PSUBSCRIBE): il server la passa allora a {@link KeyValueDatabase#serveSubscriber}.
+     */
+    static boolean isSubscribe(String command) {
+        String trimmed = command.trim();
+        int end = trimmed.indexOf(' ');
+        String cmd = end < 0 ? trimmed : trimmed.substring(0, end);
+        return "SUBSCRIBE".equalsIgnoreCase(cmd) || "PSUBSCRIBE".equalsIgnoreCase(cmd);
+    }
+
+    /**
+     * Indica se il comando può attendere a lungo prima di rispondere
+     * (XREAD ... BLOCK): il server NIO lo esegue allora fuori dall'event loop.
+     */
+    static boolean isBlocking(String command) {
+        String trimmed = command.trim();
+        if (!trimmed.regionMatches(true, 0, "XREAD ", 0, 6)) {
+            return false;
+        }
+        // Le opzioni precedono STREAMS; dopo ci sono solo chiavi e id
+        for (String part : trimmed.split("\\s+")) {
+            if ("BLOCK".equalsIgnoreCase(part)) {
+                return true;
+            }
+            if ("STREAMS".equalsIgnoreCase(part)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Processa un comando ricevuto dal client.
+     * Protocollo testuale: COMANDO [arg1] [arg2] ... (vedi {@link Protocol})
+     */
+    String process(String command) {
+        if (command.isEmpty()) {
+            return "ERR empty command";
+        }
+
+        try {
+            String[] parts = Protocol.tokenize(command).toArray(new String[0]);
+            String cmd = parts[0].toUpperCase();
+
+            switch (cmd) {
+                case "MULTI":
+                    return handleMulti();
+                case "EXEC":
+                    return handleExec();
+                case "DISCARD":
+                    return handleDiscard();
+                case "WATCH":
+                    return handleWatch(parts);
+                case "UNWATCH":
+                    return handleUnwatch();
+                case "QUIT":
+                    return "BYE";
+                case "SYNC":
+                    // Arriva qui solo se il server non può servire la replica
+                    return "ERR SYNC is not supported by a replica";
+                case "UNSUBSCRIBE":
+                case "PUNSUBSCRIBE":
+                    return "ERR " + cmd + " is only allowed in subscriber mode";
+                default:
+                    return transaction.isQueuing() ? queue(cmd, parts) : execute(cmd, parts);
+            }
+        } catch (Exception e) {
+            return "ERR " + e.getMessage();
+        }
+    }
+
+    /**
+     * Esegue un comando sui dati; un errore diventa la sua risposta, così in
+     * una transazione non interrompe i comandi successivi.
+     */
+    private String execute(String cmd, String[] parts) {
+        try {
+            if (database.isReplica() && WRITE_COMMANDS.contains(cmd)) {
+                return "ERR READONLY You can't write against a read only replica";
+            }
+            if (DENY_OOM_COMMANDS.contains(cmd) && !executing) {
+                database.ensureMemory();
+            }
+            switch (cmd) {
+                case "SET":
+                    return handleSet(parts);
+                case "GET":
+                    return handleGet(parts);
+                case "DEL":
+                case "DELETE":
+                    return handleDelete(parts);
+                case "EXISTS":
+                    return handleExists(parts);
+                case "MGET":
+                    return handleMultiGet(parts);
+                case "MSET":
+                    return handleMultiSet(parts);
+                case "MDEL":
+                    return handleMultiDelete(parts);
+                case "HSET":
+                    return handleHashSet(parts);
+                case "HGET":
+                    return handleHashGet(parts);
+                case "HMGET":
+                    return handleHashMultiGet(parts);
+                case "HGETALL":
+                    return handleHashGetAll(parts);
+                case "HDEL":
+                    return handleHashDelete(parts);
+                case "HINCRBYFLOAT":
+                    return handleHashIncrementByFloat(parts);
+                case "HINCRBY":
+                    return handleHashIncrementBy(parts);
+                case "HMOVE":
+                    return handleHashMove(parts);
+                case "TYPE":
+                    return handleType(parts);
+                case "KEYS":
+                    return handleKeys(parts);
+                case "SCAN":
+                    return handleScan(parts);
+                case "INCR":
+                    return handleIncrement(parts);
+                case "INCRBY":
+                    return handleIncrementBy(parts, false);
+                case "DECRBY":
+                    return handleIncrementBy(parts, true);
+                case "EXPIRE":
+                    return handleExpire(parts, 1000);
+                case "PEXPIRE":
+                    return handleExpire(parts, 1);
+                case "TTL":
+                    return handleTimeToLive(parts, true);
+                case "PTTL":
+                    return handleTimeToLive(parts, false);
+                case "PERSIST":
+                    return handlePersist(parts);
+                case "SIZE":
+                    return handleSize();
+                case "FLUSH":
+                    return handleFlush();
+                case "CALL":
+                    return handleCall(parts);
+                case "INFO":
+                    return "OK " + ServerInfo.describe(database);
+                case "BGSAVE":
+                    return handleBackgroundSave();
+                case "BGREWRITEAOF":
+                    return handleBackgroundRewrite();
+                case "PUBLISH":
+                    return handlePublish(parts);
+                case "XADD":
+                    return handleStreamAdd(parts);
+                case "XLEN":
+                    return handleStreamLength(parts);
+                case "XRANGE":
+                    return handleStreamRange(parts, false);
+                case "XREVRANGE":
+                    return handleStreamRange(parts, true);
+                case "XREAD":
+                    return handleStreamRead(parts);
+                case "XTRIM":
+                    return handleStreamTrim(parts);
+                case "SUM":
+                    return handleSum(parts);
+                case "COUNT":
+                    return handleCount(parts);
+                case "PING":
+                    return "PONG";
+                default:
+                    return "ERR unknown command: " + cmd;
+            }
+        } catch (Exception e) {
+            return "ERR " + e.getMessage();
+        }
+    }
+
+    private String handleMulti() {
+        if (transaction.isQueuing()) {
+            return "ERR MULTI calls can not be nested";
+        }
+
+        transaction.begin();
+        return "OK";
+    }
+
+    private String queue(String cmd, String[] parts) {
+        if ("FLUSH".equals(cmd)) {
+            transaction.failQueue();
+            return "ERR FLUSH is not allowed inside MULTI";
+        }
+        if (!QUEUEABLE_COMMANDS.contains(cmd)) {
+            transaction.failQueue();
+            return "ERR unknown command: " + cmd;
+        }
+
+        transaction.queue(parts);
+        return "QUEUED";
+    }
+
+    /**
+     * Esegue i comandi accodati da MULTI e restituisce le loro risposte,
+     * ognuna quotata: {@code OK "OK" "OK 1" "NIL"}. Se una chiave osservata
+     * con WATCH è cambiata non esegue nulla e risponde NIL.
+     */
+    private String handleExec() {
+        if (!transaction.isQueuing()) {
+            return "ERR EXEC without MULTI";
+        }
+
+        try {
+            if (transaction.hasQueueFailed()) {
+                return "ERR EXECABORT Transaction discarded because of previous errors";
+            }
+
+            List<String[]> commands = transaction.queued();
+            Set<String> keys = new HashSet<>(transaction.watchedKeys());
+            boolean needsMemory = false;
+            for (String[] parts : commands) {
+                if ("CALL".equalsIgnoreCase(parts[0]) && parts.length > 1) {
+                    List<String> procedureKeys = Procedures.keysOf(database, parts[1], argumentsOf(parts));
+                    callKeys.put(parts, procedureKeys);
+                    keys.addAll(procedureKeys);
+                } else {
+                    keys.addAll(keysOf(parts));
+                }
+                needsMemory |= DENY_OOM_COMMANDS.contains(parts[0].toUpperCase());
+            }
+
+            boolean checkMemory = needsMemory;
+            List<String> responses = database.executeTransaction(keys, transaction, () -> {
+                // Controllata una volta sola, con le chiavi già bloccate: senza
+                // memoria la transazione non parte (ERR), invece di fallire a
+                // metà; i comandi della coda non la controllano più
+                if (checkMemory) {
+                    database.ensureMemory();
+                }
+                List<String> results = new ArrayList<>(commands.size());
+                executing = true;
+                try {
+                    for (String[] parts : commands) {
+                        results.add(execute(parts[0].toUpperCase(), parts));
+                    }
+                } finally {
+                    executing = false;
+                }
+                return results;
+            });
+            return responses != null ? Protocol.values(responses) : "NIL";
+        } finally {
+            callKeys.clear();
+            resetTransaction();
+        }
+    }
+
+    private String handleDiscard() {
+        if (!transaction.isQueuing()) {
+            return "ERR DISCARD without MULTI";
+        }
+
+        resetTransaction();
+        return "OK";
+    }
+
+    private String handleWatch(String[] parts) {
+        if (parts.length < 2) {
+            return "ERR WATCH requires at least one key";
+        }
+        if (transaction.isQueuing()) {
+            return "ERR WATCH inside MULTI is not allowed";
+        }
+
+        for (int i = 1; i < parts.length; i++) {
+            if (transaction.watchedKeys().add(parts[i])) {
+                database.watch(parts[i], transaction);
+            }
+        }
+        return "OK";
+    }
+
+    private String handleUnwatch() {
+        if (transaction.isQueuing()) {
+            return "ERR UNWATCH inside MULTI is not allowed";
+        }
+
+        resetTransaction();
+        return "OK";
+    }
+
+    /**
+     * Chiude MULTI e WATCH: la transazione successiva riparte da un oggetto nuovo.
+     */
+    private void resetTransaction() {
+        for (String key : transaction.watchedKeys()) {
+            database.unwatch(key, transaction);
+        }
+        transaction = new Transaction();
+    }
+
+    /**
+     * Chiavi lette o scritte da un comando, da bloccare durante EXEC (quelle
+     * di CALL le ricava {@link Procedures#keysOf}).
+     * KEYS, SCAN, SIZE, SUM e COUNT leggono l'intero database e non sono isolati.
+     */
+    private static List<String> keysOf(String[] parts) {
+        switch (parts[0].toUpperCase()) {
+            case "MGET":
+            case "MDEL":
+                return Arrays.asList(parts).subList(1, parts.length);
+            case "MSET":
+                List<String> keys = new ArrayList<>();
+                for (int i = 1; i < parts.length; i += 2) {
+                    keys.add(parts[i]);
+                }
+                return keys;
+            case "XREAD":
+                int streams = streamsIndex(parts);
+                return streams < 0 ? List.of()
+                    : Arrays.asList(parts).subList(streams + 1, streams + 1 + (parts.length - streams - 1) / 2);
+            case "KEYS":
+            case "SCAN":
+            case "SIZE":
+            case "INFO":
+            case "PING":
+            case "PUBLISH":
+            case "SUM":
+            case "COUNT":
+                return List.of();
+            default:
+                return parts.length > 1 ? List.of(parts[1]) : List.of();
+        }
+    }
+
+    /**
+     * SET chiave valore [EX secondi | PX millisecondi]. Gli ultimi due
+     * argomenti sono l'opzione di scadenza se il primo è EX o PX: un valore
+     * che finisce così va quotato.
+     */
+    private String handleSet(String[] parts) {
+        if (parts.length < 3) {
+            return "ERR SET requires key and value";
+        }
+
+        String key = parts[1];
+        int valueEnd = parts.length;
+        long deadline = 0;
+        if (parts.length >= 5) {
+            String option = parts[parts.length - 2].toUpperCase();
+            if (option.equals("EX") || option.equals("PX")) {
+                long amount = parseInteger(parts[parts.length - 1]);
+                if (amount <= 0) {
+                    return "ERR invalid expire time in SET";
+                }
+                deadline = deadlineAfter(amount, option.equals("EX") ? 1000 : 1);
+                valueEnd -= 2;
+            }
+        }
+        // Concatena tutti gli argomenti dal terzo in poi come valore;
+        // un unico argomento quotato ("...") viene preso così com'è
+        StringBuilder valueBuilder = new StringBuilder();
+        for (int i = 2; i < valueEnd; i++) {
+            if (i > 2) valueBuilder.append(" ");
+            valueBuilder.append(parts[i]);
+        }
+        String value = valueBuilder.toString();
+
+        boolean success = database.set(key, value, deadline);
+        return success ? "OK" : "ERR invalid key";
+    }
+
+    private String handleGet(String[] parts) {
+        if (parts.length != 2) {
+            return "ERR GET requires exactly one key";
+        }
+
+        String value = database.get(parts[1]);
+        return value != null ? "OK " + value : "NIL";
+    }
+
+    private String handleDelete(String[] parts) {
+        if (parts.length != 2) {
+            return "ERR DELETE requires exactly one key";
+        }
+
+        boolean deleted = database.delete(parts[1]);
+        return deleted ? "OK" : "NIL";
+    }
+
+    private String handleExists(String[] parts) {
+        if (parts.length != 2) {
+            return "ERR EXISTS requires exactly one key";
+        }
+
+        boolean exists = database.exists(parts[1]);
+        return exists ? "OK 1" : "OK 0";
+    }
+
+    private String handleMultiGet(String[] parts) {
+        if (parts.length < 2) {
+            return "ERR MGET requires at least one key";
+        }
+
+        List<String> keys = Arrays.asList(parts).subList(1, parts.length);
+        return Protocol.values(database.multiGet(keys));
+    }
+
+    private String handleMultiSet(String[] parts) {
+        if (parts.length < 3 || parts.length % 2 == 0) {
+            return "ERR MSET requires key value pairs";
+        }
+
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 1; i < parts.length; i += 2) {
+            entries.put(parts[i], parts[i + 1]);
+        }
+        boolean success = database.multiSet(entries);
+        return success ? "OK" : "ERR invalid key";
+    }
+
+    private String handleMultiDelete(String[] parts) {
+        if (parts.length < 2) {
+            return "ERR MDEL requires at least one key";
+        }
+
+        List<String> keys = Arrays.asList(parts).subList(1, parts.length);
+        return "OK " + database.multiDelete(keys);
+    }
+
+    private String handleHashSet(String[] parts) {
+        if (parts.length < 4 || parts.length % 2 != 0) {
+            return "ERR HSET requires key and field value pairs";
+        }
+
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (int i = 2; i < parts.length; i += 2) {
+            fields.put(parts[i], parts[i + 1]);
+        }
+        return "OK " + database.hashSet(parts[1], fields);
+    }
+
+    private String handleHashGet(String[] parts) {
+        if (parts.length != 3) {
+            return "ERR HGET requires key and field";
+        }
+
+        String value = database.hashGet(parts[1], parts[2]);
+        return value != null ? "OK " + value : "NIL";
+    }
+
+    private String handleHashMultiGet(String[] parts) {
+        if (parts.length < 3) {
+            return "ERR HMGET requires key and at least one field";
+        }
+
+        List<String> fields = Arrays.asList(parts).subList(2, parts.length);
+        return Protocol.values(database.hashMultiGet(parts[1], fields));
+    }
+
+    private String handleHashGetAll(String[] parts) {
+        if (parts.length != 2) {
+            return "ERR HGETALL requires exactly one key";
+        }
+
+        StringBuilder response = new StringBuilder("OK");
+        database.hashGetAll(parts[1]).forEach((field, value) ->
+            response.append(' ').append(Protocol.quote(field)).append(' ').append(Protocol.quote(value)));
+        return response.toString();
+    }
+
+    private String handleHashDelete(String[] parts) {
+        if (parts.length < 3) {
+            return "ERR HDEL requires key and at least one field";
+        }
+
+        List<String> fields = Arrays.asList(parts).subList(2, parts.length);
+        return "OK " + database.hashDelete(parts[1], fields);
+    }
+
+    private String handleHashIncrementByFloat(String[] parts) {
+        if (parts.length != 4) {
+            return "ERR HINCRBYFLOAT requires key, field and increment";
+        }
+
+        return "OK " + database.hashIncrementByFloat(parts[1], parts[2], parts[3]);
+    }
+
+    private String handleHashIncrementBy(String[] parts) {
+        if (parts.length != 4) {
+            return "ERR HINCRBY requires key, field and increment";
+        }
+
+        return "OK " + database.hashIncrementBy(parts[1], parts[2], parseInteger(parts[3]));
+    }
+
+    /**
+     * HMOVE chiave origine destinazione importo. Risponde
+     * {@code OK 1 <origine> <destinazione>} se l'importo è stato spostato,
+     * {@code OK 0 ...} con i valori invariati se l'origine non basta,
+     * NIL se l'hash non esiste.
+     */
+    private String handleHashMove(String[] parts) {
+        if (parts.length != 5) {
+            return "ERR HMOVE requires key, source field, destination field and amount";
+        }
+
+        KeyValueDatabase.HashMove move = database.hashMove(parts[1], parts[2], parts[3], parts[4]);
+        if (move == null) {
+            return "NIL";
+        }
+        return "OK " + (move.moved() ? 1 : 0) + " " + move.source() + " " + move.destination();
+    }
+
+    private String handleType(String[] parts) {
+        if (parts.length != 2) {
+            return "ERR TYPE requires exactly one key";
+        }
+
+        return "OK " + database.type(parts[1]);
+    }
+
+    private String handleKeys(String[] parts) {
+        String pattern = parts.length > 1 ? parts[1] : "*";
+        String keys = database.getKeys(pattern);
+        return "OK " + keys;
+    }
+
+    /**
+     * SCAN cursore [MATCH pattern] [COUNT n]. Il cursore è opaco: 0 all'inizio
+     * e alla fine, altrimenti l'ultima chiave esaminata codificata in Base64,
+     * così non contiene spazi né virgolette.
+     */
+    private String handleScan(String[] parts) {
+        if (parts.length < 2 || parts.length % 2 != 0) {
+            return "ERR SCAN requires cursor [MATCH pattern] [COUNT count]";
+        }
+
+        String pattern = "*";
+        int count = DEFAULT_SCAN_COUNT;
+        for (int i = 2; i < parts.length; i += 2) {
+            switch (parts[i].toUpperCase()) {
+                case "MATCH":
+                    pattern = parts[i + 1];
+                    break;
+                case "COUNT":
+                    count = parts[i + 1].matches("\\d{1,9}") ? Integer.parseInt(parts[i + 1]) : 0;
+                    if (count <= 0 || count > MAX_SCAN_COUNT) {
+                        return "ERR COUNT must be between 1 and " + MAX_SCAN_COUNT;
+                    }
+                    break;
+                default:
+                    return "ERR unknown SCAN option: " + parts[i];
+            }
+        }
+
+        String after;
+        try {
+            after = "0".equals(parts[1]) ? null
+                : new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return "ERR invalid cursor";
+        }
+
+        KeyValueDatabase.ScanPage page = database.scan(after, pattern, count);
+        String cursor = page.lastKey() == null ? "0"
+            : Base64.getUrlEncoder().withoutPadding().encodeToString(page.lastKey().getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder response = new StringBuilder("OK ").append(cursor);
+        for (String key : page.keys()) {
+            response.append(' ').append(Protocol.quote(key));
+        }
+        return response.toString();
+    }
+
+    private String handleIncrement(String[] parts) {
+        if (parts.length != 2) {
+            return "ERR INCR requires exactly one key";
+        }
+
+        Decimal newValue = database.increment(parts[1]);
+        return newValue != null ? "OK " + newValue : "ERR value is not a number";
+    }
+
+    private String handleIncrementBy(String[] parts, boolean decrement) {
+        if (parts.length != 3) {
+            return "ERR " + parts[0].toUpperCase() + " requires key and increment";
+        }
+
+        long delta = parseInteger(parts[2]);
+        if (decrement) {
+            if (delta == Long.MIN_VALUE) {
+                return "ERR increment or decrement would overflow";
+            }
+            delta = -delta;
+        }
+        Decimal newValue = database.incrementBy(parts[1], delta);
+        return newValue != null ? "OK " + newValue : "ERR value is not a number";
+    }
+
+    /**
+     * EXPIRE chiave secondi / PEXPIRE chiave millisecondi: {@code OK 1} se
+     * la chiave esiste, {@code OK 0} altrimenti. Un tempo non positivo
+     * cancella la chiave.
+     */
+    private String handleExpire(String[] parts, long unitMillis) {
+        if (parts.length != 3) {
+            return "ERR " + parts[0].toUpperCase() + " requires key and time";
+        }
+
+        long amount = parseInteger(parts[2]);
+        long deadline = amount <= 0 ? 0 : deadlineAfter(amount, unitMillis);
+        return database.expireAt(parts[1], deadline) ? "OK 1" : "OK 0";
+    }
+
+    /**
+     * TTL / PTTL chiave: tempo residuo in secondi (arrotondato) o
+     * millisecondi, -1 se la chiave non scade, -2 se non esiste.
+     */
+    private String handleTimeToLive(String[] parts, boolean seconds) {
+        if (parts.length != 2) {
+            return "ERR " + parts[0].toUpperCase() + " requires exactly one key";
+        }
+
+        long millis = database.timeToLive(parts[1]);
+        return "OK " + (seconds && millis >= 0 ? (millis + 500) / 1000 : millis);
+    }
+
+    private String handlePersist(String[] parts) {
+        if (parts.length != 2) {
+            return "ERR PERSIST requires exactly one key";
+        }
+
+        return database.persist(parts[1]) ? "OK 1" : "OK 0";
+    }
+
+    /**
+     * Istante (millisecondi epoch) tra amount unità da adesso.
+     */
+    private static long deadlineAfter(long amount, long unitMillis) {
+        try {
+            return Math.addExact(System.currentTimeMillis(), Math.multiplyExact(amount, unitMillis));
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("invalid expire time");
+        }
+    }
+
+    private static long parseInteger(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("value is not an integer or out of range");
+        }
+    }
+
+    /**
+     * CALL procedura [argomenti...]: esegue una stored procedure registrata.
+     */
+    private String handleCall(String[] parts) {
+        if (parts.length < 2) {
+            return "ERR CALL requires a procedure name";
+        }
+
+        List<String> keys = callKeys.get(parts);
+        return keys != null
+            ? Procedures.call(database, parts[1], argumentsOf(parts), keys)
+            : Procedures.call(database, parts[1], argumentsOf(parts));
+    }
+
+    private static List<String> argumentsOf(String[] parts) {
+        return Arrays.asList(parts).subList(2, parts.length);
+    }
+
+    /**
+     * BGSAVE: avvia il salvataggio di uno snapshot in background.
+     */
+    private String handleBackgroundSave() {
+        if (!database.startBackgroundSave()) {
+            return "ERR background save or rewrite already in progress";
+        }
+        return "OK";
+    }
+
+    /**
+     * BGREWRITEAOF: avvia la riscrittura compatta del log append-only in background.
+     */
+    private String handleBackgroundRewrite() {
+        if (!database.startBackgroundRewrite()) {
+            return "ERR background save or rewrite already in progress";
+        }
+        return "OK";
+    }
+
+    /**
+     * PUBLISH canale messaggio: risponde con il numero di sottoscrittori che l'hanno ricevuto.
+     */
+    private String handlePublish(String[] parts) {
+        if (parts.length != 3) {
+            return "ERR PUBLISH requires channel and message";
+        }
+
+        return "OK " + database.publish(parts[1], parts[2]);
+    }
+
+    /**
+     * XADD chiave [MAXLEN n] id campo valore [campo valore ...]: con id
+     * {@code *} lo genera il database. Risponde con l'id della voce.
+     */
+    private String handleStreamAdd(String[] parts) {
+        int idIndex = 2;
+        long maxLength = -1;
+        if (parts.length > 3 && "MAXLEN".equalsIgnoreCase(parts[2])) {
+            maxLength = parseInteger(parts[3]);
+            if (maxLength < 0) {
+                return "ERR MAXLEN can't be negative";
+            }
+            idIndex = 4;
+        }
+        int pairs = parts.length - idIndex - 1;
+        if (pairs < 2 || pairs % 2 != 0) {
+            return "ERR XADD requires key, ID and field value pairs";
+        }
+
+        List<String> fields = Arrays.asList(parts).subList(idIndex + 1, parts.length);
+        return "OK " + database.streamAdd(parts[1], parts[idIndex], fields, maxLength);
+    }
+
+    private String handleStreamLength(String[] parts) {
+        if (parts.length != 2) {
+            return "ERR XLEN requires exactly one key";
+        }
+
+        return "OK " + database.streamLength(parts[1]);
+    }
+
+    /**
+     * XRANGE chiave inizio fine [COUNT n], con {@code -} e {@code +} per il
+     * primo e l'ultimo id: {@code OK <numero di voci> <voci>}. XREVRANGE
+     * chiave fine inizio [COUNT n] restituisce le voci dalla più recente.
+     */
+    private String handleStreamRange(String[] parts, boolean reverse) {
+        boolean withCount = parts.length == 6 && "COUNT".equalsIgnoreCase(parts[4]);
+        if (parts.length != 4 && !withCount) {
+            return reverse ? "ERR XREVRANGE requires key, end and start [COUNT count]"
+                : "ERR XRANGE requires key, start and end [COUNT count]";
+        }
+
+        long count = withCount ? parseStreamCount(parts[5]) : 0;
+        List<Stream.Entry> entries = reverse
+            ? database.streamReverseRange(parts[1], parts[2], parts[3], count)
+            : database.streamRange(parts[1], parts[2], parts[3], count);
+        StringBuilder response = new StringBuilder("OK ").append(entries.size());
+        appendEntries(response, entries);
+        return response.toString();
+    }
+
+    /**
+     * XREAD [COUNT n] [BLOCK ms] STREAMS chiave [chiave ...] id [id ...]:
+     * per ogni stream con voci successive al suo id risponde
+     * {@code "chiave" <numero di voci> <voci>}, dopo OK; NIL se non ce ne
+     * sono neanche allo scadere di BLOCK (0: attesa senza limite). L'id
+     * {@code $} indica l'ultimo dello stream. Dentro EXEC BLOCK è ignorato.
+     */
+    private String handleStreamRead(String[] parts) {
+        int streams = streamsIndex(parts);
+        int arguments = streams < 0 ? 0 : parts.length - streams - 1;
+        if (arguments == 0 || arguments % 2 != 0) {
+            return "ERR XREAD requires STREAMS followed by keys and as many IDs";
+        }
+
+        long count = 0;
+        long timeout = -1;
+        for (int i = 1; i < streams; i += 2) {
+            if (i + 1 >= streams) {
+                return "ERR XREAD requires STREAMS followed by keys and as many IDs";
+            }
+            switch (parts[i].toUpperCase()) {
+                case "COUNT":
+                    count = parseStreamCount(parts[i + 1]);
+                    break;
+                case "BLOCK":
+                    timeout = parseInteger(parts[i + 1]);
+                    if (timeout < 0) {
+                        return "ERR timeout is negative";
+                    }
+                    break;
+                default:
+                    return "ERR unknown XREAD option: " + parts[i];
+            }
+        }
+
+        List<String> keys = Arrays.asList(parts).subList(streams + 1, streams + 1 + arguments / 2);
+        List<String> ids = Arrays.asList(parts).subList(streams + 1 + arguments / 2, parts.length);
+        Map<String, List<Stream.Entry>> result = database.streamRead(keys, ids, count, executing ? -1 : timeout);
+        if (result.isEmpty()) {
+            return "NIL";
+        }
+        StringBuilder response = new StringBuilder("OK");
+        for (Map.Entry<String, List<Stream.Entry>> stream : result.entrySet()) {
+            response.append(' ').append(Protocol.quote(stream.getKey())).append(' ').append(stream.getValue().size());
+            appendEntries(response, stream.getValue());
+        }
+        return response.toString();
+    }
+
+    /**
+     * XTRIM chiave MAXLEN n: risponde con il numero di voci tolte.
+     */
+    private String handleStreamTrim(String[] parts) {
+        if (parts.length != 4 || !"MAXLEN".equalsIgnoreCase(parts[2])) {
+            return "ERR XTRIM requires key MAXLEN count";
+        }
+
+        long maxLength = parseInteger(parts[3]);
+        if (maxLength < 0) {
+            return "ERR MAXLEN can't be negative";
+        }
+        return "OK " + database.streamTrim(parts[1], maxLength);
+    }
+
+    /**
+     * Posizione di STREAMS negli argomenti di XREAD, -1 se manca.
+     */
+    private static int streamsIndex(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            if ("STREAMS".equalsIgnoreCase(parts[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseStreamCount(String value) {
+        long count = parseInteger(value);
+        if (count <= 0) {
+            throw new IllegalArgumentException("COUNT must be positive");
+        }
+        return count;
+    }
+
+    /**
+     * Voci di uno stream in una risposta: per ciascuna l'id, il numero di
+     * coppie e le coppie quotate ({@code 1718000000000-0 1 "campo" "valore"}).
+     */
+    private static void appendEntries(StringBuilder response, List<Stream.Entry> entries) {
+        for (Stream.Entry entry : entries) {
+            response.append(' ').append(entry.id()).append(' ').append(entry.fields().length / 2);
+            for (String part : entry.fields()) {
+                response.append(' ').append(Protocol.quote(part));
+            }
+        }
+    }
+
+    /**
+     * SUM pattern [campo ...]: somma sul server i campi degli hash che
+     * matchano il pattern (senza campi, il valore delle stringhe). Risponde
+     * {@code OK <chiavi> <somma> [<somma> ...]}.
+     */
+    private String handleSum(String[] parts) {
+        if (parts.length < 2) {
+            return "ERR SUM requires a pattern and optional fields";
+        }
+
+        KeyValueDatabase.Sum sum = database.sum(parts[1], Arrays.asList(parts).subList(2, parts.length));
+        StringBuilder response = new StringBuilder("OK ").append(sum.keys());
+        for (BigDecimal value : sum.sums()) {
+            response.append(' ').append(value.toPlainString());
+        }
+        return response.toString();
+    }
+
+    /**
+     * COUNT pattern [campo]: conta sul server le chiavi che matchano il
+     * pattern, raggruppate per valore del campo (senza campo, il valore delle
+     * stringhe). Risponde {@code OK <gruppi> "valore" <chiavi> ...}.
+     */
+    private String handleCount(String[] parts) {
+        if (parts.length != 2 && parts.length != 3) {
+            return "ERR COUNT requires a pattern and an optional field";
+        }
+
+        Map<String, Long> groups = database.countBy(parts[1], parts.length == 3 ? parts[2] : null);
+        StringBuilder response = new StringBuilder("OK ").append(groups.size());
+        for (Map.Entry<String, Long> group : groups.entrySet()) {
+            response.append(' ').append(Protocol.quote(group.getKey())).append(' ').append(group.getValue());
+        }
+        return response.toString();
+    }
+
+    private String handleSize() {
+        return "OK " + database.size();
+    }
+
+    private String handleFlush() {
+        database.flush();
+        return "OK";
+    }
+}
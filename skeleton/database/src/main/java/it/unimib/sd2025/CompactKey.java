@@ -0,0 +1,210 @@
+package it.unimib.sd2025;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Chiave strutturata {@code <prefisso>:<id numerico>} (es. {@code user:42},
+ * {@code voucher:7}) codificata come id del prefisso più un long.
+ *
+ * Quasi tutto il keyspace ha questa forma: invece di una String (oggetto,
+ * array di byte e intestazioni, circa 56 byte per {@code voucher:123456})
+ * ogni chiave costa un solo oggetto da 24 byte, condiviso da storage e
+ * indice ordinato. Le chiavi che non hanno questa forma restano String:
+ * {@link #encode} e {@link #toString} sono uno l'inverso dell'altro, quindi
+ * chi usa il database vede sempre le stesse chiavi.
+ *
+ * I prefissi sono registrati al primo utilizzo in un dizionario condiviso
+ * da tutto il processo e mai svuotato, così la codifica di una chiave non
+ * cambia nel tempo; oltre {@link #MAX_PREFIXES} prefissi le nuove chiavi
+ * restano String.
+ */
+final class CompactKey {
+    private static final int MAX_PREFIXES = 1024;
+    private static final int MAX_PREFIX_LENGTH = 32;
+    // Al massimo 18 cifre: qualunque numero così lungo sta in un long
+    private static final int MAX_DIGITS = 18;
+    private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i <= MAX_DIGITS; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    // Prefissi confrontati direttamente sulla chiave, senza estrarre il prefisso
+    private static final int SCANNED_PREFIXES = 16;
+
+    // Dizionario dei prefissi: testo → id e id → testo con i due punti finali
+    private static final ConcurrentHashMap<String, Integer> prefixIds = new ConcurrentHashMap<>();
+    private static final AtomicReferenceArray<String> prefixes = new AtomicReferenceArray<>(MAX_PREFIXES);
+    private static final AtomicReferenceArray<byte[]> prefixBytes = new AtomicReferenceArray<>(MAX_PREFIXES);
+
+    /**
+     * Ordine delle chiavi codificate (CompactKey o String), identico a
+     * String.compareTo sulle chiavi in chiaro: KEYS e SCAN restano in
+     * ordine lessicografico e un intervallo user:... resta contiguo.
+     */
+    static final Comparator<Object> ORDER = CompactKey::compare;
+
+    private final int prefix;
+    private final long id;
+
+    private CompactKey(int prefix, long id) {
+        this.prefix = prefix;
+        this.id = id;
+    }
+
+    /**
+     * Forma compatta della chiave, o la chiave stessa se non è strutturata.
+     */
+    static Object encode(String key) {
+        int colon = key.indexOf(':');
+        if (colon <= 0 || colon > MAX_PREFIX_LENGTH) {
+            return key;
+        }
+        int digits = key.length() - colon - 1;
+        if (digits == 0 || digits > MAX_DIGITS || (key.charAt(colon + 1) == '0' && digits > 1)) {
+            return key;
+        }
+        long id = 0;
+        for (int i = colon + 1; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return key;
+            }
+            id = id * 10 + (c - '0');
+        }
+        int prefix = prefixId(key, colon);
+        return prefix >= 0 ? new CompactKey(prefix, id) : key;
+    }
+
+    private static int prefixId(String key, int colon) {
+        // I pochi prefissi più usati (user, voucher) si riconoscono senza allocare
+        for (int i = 0; i < SCANNED_PREFIXES; i++) {
+            String known = prefixes.get(i);
+            if (known == null) {
+                break;
+            }
+            if (known.length() == colon + 1 && key.regionMatches(0, known, 0, colon)) {
+                return i;
+            }
+        }
+        return prefixId(key.substring(0, colon));
+    }
+
+    private static int prefixId(String prefix) {
+        Integer id = prefixIds.get(prefix);
+        if (id != null) {
+            return id;
+        }
+        if (prefixIds.size() >= MAX_PREFIXES) {
+            return -1;
+        }
+        synchronized (prefixIds) {
+            id = prefixIds.get(prefix);
+            if (id == null) {
+                if (prefixIds.size() >= MAX_PREFIXES) {
+                    return -1;
+                }
+                id = prefixIds.size();
+                // Prima il testo, poi la mappa: chi trova l'id trova anche il testo
+                prefixBytes.set(id, (prefix + ":").getBytes(StandardCharsets.UTF_8));
+                prefixes.set(id, prefix + ":");
+                prefixIds.put(prefix, id);
+            }
+            return id;
+        }
+    }
+
+    private String prefixWithColon() {
+        return prefixes.get(prefix);
+    }
+
+    /**
+     * Byte UTF-8 della chiave in chiaro, senza passare da una String.
+     */
+    byte[] toUtf8() {
+        byte[] prefixUtf8 = prefixBytes.get(prefix);
+        int digits = digits(id);
+        byte[] bytes = Arrays.copyOf(prefixUtf8, prefixUtf8.length + digits);
+        long remaining = id;
+        for (int i = bytes.length - 1; i >= prefixUtf8.length; i--) {
+            bytes[i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CompactKey key && key.prefix == prefix && key.id == id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id * 0x9E3779B97F4A7C15L) ^ prefix;
+    }
+
+    @Override
+    public String toString() {
+        return prefixWithColon() + id;
+    }
+
+    private static int compare(Object a, Object b) {
+        if (a instanceof CompactKey x) {
+            if (b instanceof CompactKey y) {
+                return x.prefix == y.prefix
+                    ? compareDigits(x.id, y.id)
+                    : x.prefixWithColon().compareTo(y.prefixWithColon());
+            }
+            return compareMixed(x, (String) b);
+        }
+        if (b instanceof CompactKey y) {
+            return -compareMixed(y, (String) a);
+        }
+        return ((String) a).compareTo((String) b);
+    }
+
+    /**
+     * Confronta le rappresentazioni decimali di due numeri come stringhe,
+     * senza costruirle: si confrontano le prime cifre comuni e, se uguali,
+     * viene prima il numero più corto (es. 10 < 2, 2 < 20).
+     */
+    private static int compareDigits(long a, long b) {
+        int digitsA = digits(a);
+        int digitsB = digits(b);
+        int common = Math.min(digitsA, digitsB);
+        long leadingA = a / POWERS_OF_TEN[digitsA - common];
+        long leadingB = b / POWERS_OF_TEN[digitsB - common];
+        return leadingA != leadingB ? Long.compare(leadingA, leadingB) : Integer.compare(digitsA, digitsB);
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (digits < MAX_DIGITS && value >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int compareMixed(CompactKey key, String other) {
+        String prefix = key.prefixWithColon();
+        int length = Math.min(prefix.length(), other.length());
+        for (int i = 0; i < length; i++) {
+            int difference = prefix.charAt(i) - other.charAt(i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        if (other.length() < prefix.length()) {
+            return 1;
+        }
+        // Stesso prefisso: raro (un limite di KEYS/SCAN o una chiave non numerica)
+        return key.toString().compareTo(other);
+    }
+}
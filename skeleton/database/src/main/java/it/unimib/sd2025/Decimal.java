@@ -0,0 +1,170 @@
+package it.unimib.sd2025;
+
+import java.math.BigDecimal;
+
+/**
+ * Valore numerico: un intero ({@code scale == 0}) o un decimale a virgola
+ * fissa con scale cifre dopo la virgola, cioè unscaled / 10^scale.
+ *
+ * Le stringhe che sono numeri in forma canonica ("2", "-7", "350.0",
+ * "0.05") vengono memorizzate così, sia come valori sia come campi di un
+ * {@link Hash}: INCR, HINCRBY, HINCRBYFLOAT e HMOVE lavorano sui long senza
+ * rileggere e riscrivere testo, e la forma testuale si produce solo quando
+ * il valore esce dal database (risposte, log, snapshot). La forma canonica
+ * garantisce che il testo restituito sia identico a quello scritto; gli
+ * altri numeri ("007", "1e3", "+5") restano stringhe.
+ *
+ * Come per BigDecimal, "1.0" e "1.00" sono valori diversi e la somma ha
+ * tante cifre decimali quante il termine che ne ha di più.
+ */
+record Decimal(long unscaled, int scale) {
+    static final int MAX_SCALE = 18;
+
+    /**
+     * Memoria occupata in byte, stimata: intestazione, long e int.
+     */
+    static final long ESTIMATED_BYTES = 24;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_SCALE + 1];
+    // ZEROS[n]: n zeri, per le cifre decimali iniziali (0.05)
+    private static final String[] ZEROS = new String[MAX_SCALE + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i <= MAX_SCALE; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        for (int i = 0; i <= MAX_SCALE; i++) {
+            ZEROS[i] = "0".repeat(i);
+        }
+    }
+
+    /**
+     * Numero intero.
+     */
+    static Decimal of(long value) {
+        return new Decimal(value, 0);
+    }
+
+    /**
+     * Il numero di BigDecimal, o null se non è rappresentabile (troppe cifre).
+     */
+    static Decimal of(BigDecimal value) {
+        if (value.scale() < 0) {
+            value = value.setScale(0);
+        }
+        if (value.scale() > MAX_SCALE || value.unscaledValue().bitLength() >= Long.SIZE) {
+            return null;
+        }
+        long unscaled = value.unscaledValue().longValue();
+        return unscaled == Long.MIN_VALUE ? null : new Decimal(unscaled, value.scale());
+    }
+
+    /**
+     * Il numero scritto nel testo, o null se il testo non è un numero in
+     * forma canonica: segno meno facoltativo, nessuno zero iniziale
+     * superfluo, punto decimale seguito da almeno una cifra, niente "-0".
+     */
+    static Decimal parse(String text) {
+        int length = text.length();
+        int start = length > 0 && text.charAt(0) == '-' ? 1 : 0;
+        if (start == length) {
+            return null;
+        }
+        int point = -1;
+        long unscaled = 0;
+        for (int i = start; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && point < 0 && i > start && i < length - 1) {
+                point = i;
+                continue;
+            }
+            if (c < '0' || c > '9' || unscaled > (Long.MAX_VALUE - (c - '0')) / 10) {
+                return null;
+            }
+            unscaled = unscaled * 10 + (c - '0');
+        }
+        int integerDigits = (point < 0 ? length : point) - start;
+        int scale = point < 0 ? 0 : length - point - 1;
+        if ((integerDigits > 1 && text.charAt(start) == '0') || scale > MAX_SCALE || (start == 1 && unscaled == 0)) {
+            return null;
+        }
+        return new Decimal(start == 1 ? -unscaled : unscaled, scale);
+    }
+
+    /**
+     * Valore da memorizzare per un testo: il numero se è in forma canonica,
+     * altrimenti il testo stesso.
+     */
+    static Object encode(String text) {
+        Decimal number = parse(text);
+        return number != null ? number : text;
+    }
+
+    boolean isInteger() {
+        return scale == 0;
+    }
+
+    /**
+     * Somma esatta; ArithmeticException se il risultato non è rappresentabile.
+     */
+    Decimal add(Decimal other) {
+        int resultScale = Math.max(scale, other.scale);
+        long sum = Math.addExact(unscaled(resultScale), other.unscaled(resultScale));
+        if (sum == Long.MIN_VALUE) {
+            throw new ArithmeticException("long overflow");
+        }
+        return new Decimal(sum, resultScale);
+    }
+
+    /**
+     * Il valore moltiplicato per 10^targetScale (es. i centesimi con 2);
+     * ArithmeticException se ha cifre decimali non nulle oltre targetScale
+     * o se il risultato non sta in un long.
+     */
+    long unscaled(int targetScale) {
+        if (targetScale >= scale) {
+            return Math.multiplyExact(unscaled, POWERS_OF_TEN[targetScale - scale]);
+        }
+        long divisor = POWERS_OF_TEN[scale - targetScale];
+        if (unscaled % divisor != 0) {
+            throw new ArithmeticException("rounding necessary");
+        }
+        return unscaled / divisor;
+    }
+
+    BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(unscaled, scale);
+    }
+
+    // Scritti a mano: quelli generati per i record sono più lenti, e
+    // Interner li chiama a ogni scrittura di un campo
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Decimal number && number.unscaled == unscaled && number.scale == scale;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(unscaled) + scale;
+    }
+
+    /**
+     * Forma testuale canonica, quella che {@link #parse} riconosce. La
+     * concatenazione alloca solo la stringa risultante.
+     */
+    @Override
+    public String toString() {
+        if (scale == 0) {
+            return Long.toString(unscaled);
+        }
+        long absolute = Math.abs(unscaled);
+        long fraction = absolute % POWERS_OF_TEN[scale];
+        int fractionDigits = 1;
+        while (fractionDigits < scale && fraction >= POWERS_OF_TEN[fractionDigits]) {
+            fractionDigits++;
+        }
+        return (unscaled < 0 ? "-" : "") + absolute / POWERS_OF_TEN[scale] + "."
+            + ZEROS[scale - fractionDigits] + fraction;
+    }
+}
@@ -0,0 +1,227 @@
+package it.unimib.sd2025;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Scelta delle chiavi da cancellare quando il database supera il limite di
+ * memoria ({@code -Ddb.memory.maxMb}).
+ *
+ * Come in Redis l'LRU e l'LFU sono approssimati: per ogni chiave si tengono
+ * solo l'istante dell'ultimo accesso e un contatore di frequenza
+ * logaritmico che decresce di uno per ogni minuto di inattività. Per
+ * scegliere una vittima non si ordina tutto il keyspace: si campionano
+ * poche chiavi alla volta e le migliori candidate restano in un piccolo
+ * pool tra una scelta e l'altra.
+ *
+ * Il campione si prende da un iteratore che scorre le chiavi a giro: l'ordine
+ * di una ConcurrentHashMap dipende dall'hash, non dagli accessi, quindi è
+ * casuale quanto basta e non costa nulla mantenerlo.
+ */
+final class Eviction {
+
+    /**
+     * Cosa fare quando il limite di memoria è superato.
+     */
+    enum Policy {
+        /** Le scritture che occupano memoria vengono rifiutate. */
+        NOEVICTION(false, false),
+        /** Si cancellano le chiavi usate meno di recente. */
+        ALLKEYS_LRU(false, false),
+        /** Si cancellano le chiavi usate meno spesso. */
+        ALLKEYS_LFU(false, true),
+        /** Come ALLKEYS_LRU, ma solo tra le chiavi con una scadenza. */
+        VOLATILE_LRU(true, false),
+        /** Come ALLKEYS_LFU, ma solo tra le chiavi con una scadenza. */
+        VOLATILE_LFU(true, true);
+
+        final boolean volatileOnly;
+        final boolean lfu;
+
+        Policy(boolean volatileOnly, boolean lfu) {
+            this.volatileOnly = volatileOnly;
+            this.lfu = lfu;
+        }
+
+        static Policy parse(String value) {
+            return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        }
+
+        /**
+         * Nome usato in {@code db.memory.policy} e in INFO.
+         */
+        String label() {
+            return name().replace('_', '-').toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // Chiavi campionate per ogni scelta e candidate conservate nel pool (come Redis)
+    private static final int SAMPLES = 5;
+    private static final int POOL_SIZE = 16;
+
+    // LFU: valore iniziale, fattore logaritmico e minuti di inattività per decrescere di uno
+    private static final int LFU_INITIAL = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final int LFU_MAX = 255;
+    private static final long LFU_DECAY_MILLIS = 60_000;
+
+    /**
+     * Statistiche d'accesso di una chiave. Gli aggiornamenti concorrenti
+     * non sono atomici: un accesso perso non cambia la stima.
+     */
+    private static final class Access {
+        // Millisecondi epoch dell'ultimo accesso
+        volatile long lastAccess;
+        volatile int frequency;
+
+        Access(long now) {
+            lastAccess = now;
+            frequency = LFU_INITIAL;
+        }
+    }
+
+    private final long maxBytes;
+    private final Policy policy;
+
+    // Chiave codificata → accessi, solo se la policy cancella chiavi.
+    // Aggiornata dentro il compute della chiave, come keyIndex.
+    private final ConcurrentHashMap<Object, Access> accesses = new ConcurrentHashMap<>();
+
+    // Usati solo con il lock di KeyValueDatabase che serializza le cancellazioni
+    private final Object[] poolKeys = new Object[POOL_SIZE];
+    private final long[] poolScores = new long[POOL_SIZE];
+    private int poolSize;
+    private Iterator<Object> cursor;
+
+    Eviction(long maxBytes, Policy policy) {
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    Policy policy() {
+        return policy;
+    }
+
+    /**
+     * Se la policy cancella chiavi, e quindi ne vanno registrati gli accessi.
+     */
+    boolean evicts() {
+        return policy != Policy.NOEVICTION;
+    }
+
+    void created(Object key) {
+        accesses.put(key, new Access(System.currentTimeMillis()));
+    }
+
+    void removed(Object key) {
+        accesses.remove(key);
+    }
+
+    /**
+     * Registra un accesso (lettura o scrittura) alla chiave.
+     */
+    void touch(Object key) {
+        Access access = accesses.get(key);
+        if (access == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (policy.lfu) {
+            access.frequency = increment(decayed(access, now));
+        }
+        access.lastAccess = now;
+    }
+
+    /**
+     * Prossima chiave da cancellare, null se non ce ne sono. volatileKeys
+     * sono le chiavi con una scadenza, per le policy volatile-*.
+     * La chiave restituita può nel frattempo essere stata cancellata.
+     */
+    Object nextVictim(Set<Object> volatileKeys) {
+        Set<Object> keys = policy.volatileOnly ? volatileKeys : accesses.keySet();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < SAMPLES; i++) {
+            if (cursor == null || !cursor.hasNext()) {
+                cursor = keys.iterator();
+                if (!cursor.hasNext()) {
+                    break;
+                }
+            }
+            Object key = cursor.next();
+            Access access = accesses.get(key);
+            if (access != null) {
+                offer(key, score(access, now));
+            }
+        }
+        if (poolSize == 0) {
+            return null;
+        }
+        // La candidata migliore è l'ultima del pool
+        Object victim = poolKeys[--poolSize];
+        poolKeys[poolSize] = null;
+        return victim;
+    }
+
+    /**
+     * Inserisce la chiave nel pool ordinato per punteggio crescente; se il
+     * pool è pieno scarta la peggiore.
+     */
+    private void offer(Object key, long score) {
+        for (int i = 0; i < poolSize; i++) {
+            if (poolKeys[i].equals(key)) {
+                return;
+            }
+        }
+        int index = 0;
+        while (index < poolSize && poolScores[index] < score) {
+            index++;
+        }
+        if (poolSize < POOL_SIZE) {
+            System.arraycopy(poolKeys, index, poolKeys, index + 1, poolSize - index);
+            System.arraycopy(poolScores, index, poolScores, index + 1, poolSize - index);
+            poolSize++;
+        } else if (index == 0) {
+            return;
+        } else {
+            // Pieno: esce la prima (la meno adatta), le precedenti scalano
+            index--;
+            System.arraycopy(poolKeys, 1, poolKeys, 0, index);
+            System.arraycopy(poolScores, 1, poolScores, 0, index);
+        }
+        poolKeys[index] = key;
+        poolScores[index] = score;
+    }
+
+    /**
+     * Più alto per le chiavi da cancellare prima: millisecondi di inattività
+     * per l'LRU, frequenza mancante per l'LFU (a parità, l'inattività).
+     */
+    private long score(Access access, long now) {
+        long idle = Math.min(Math.max(0, now - access.lastAccess), Integer.MAX_VALUE);
+        return policy.lfu ? (long) (LFU_MAX - decayed(access, now)) << 32 | idle : idle;
+    }
+
+    private static int decayed(Access access, long now) {
+        long periods = Math.max(0, now - access.lastAccess) / LFU_DECAY_MILLIS;
+        return (int) Math.max(0, access.frequency - periods);
+    }
+
+    /**
+     * Incremento logaritmico: più il contatore è alto, meno è probabile
+     * che un accesso lo aumenti, così 255 basta per milioni di accessi.
+     */
+    private static int increment(int frequency) {
+        if (frequency >= LFU_MAX) {
+            return LFU_MAX;
+        }
+        double probability = 1.0 / (Math.max(0, frequency - LFU_INITIAL) * LFU_LOG_FACTOR + 1);
+        return ThreadLocalRandom.current().nextDouble() < probability ? frequency + 1 : frequency;
+    }
+}
@@ -0,0 +1,12 @@
+package it.unimib.sd2025;
+
+/**
+ * Valore con scadenza, come compare nel flusso di chiavi e valori letto e
+ * scritto da {@link Snapshot} e {@link AppendOnlyFile}: deadline è in
+ * millisecondi epoch, 0 se la chiave non scade.
+ *
+ * Con value null indica solo un cambio di scadenza di una chiave esistente
+ * (le righe {@code PEXPIREAT} e {@code PERSIST} del log).
+ */
+record Expiring(Object value, long deadline) {
+}
@@ -0,0 +1,91 @@
+package it.unimib.sd2025;
+
+import java.util.regex.Pattern;
+
+/**
+ * Pattern glob di KEYS e SCAN, compilato una volta sola per comando.
+ *
+ * Sintassi: {@code *} qualsiasi sequenza, {@code ?} un carattere, {@code \}
+ * rende letterale il carattere successivo; tutto il resto è letterale.
+ * La parte letterale iniziale ({@code user:} in {@code user:*}) è esposta come
+ * prefisso, così chi scorre un indice ordinato può saltare direttamente
+ * all'intervallo di chiavi che possono corrispondere.
+ */
+final class GlobPattern {
+    private final String prefix;
+
+    // null se il pattern è "prefisso*" o senza caratteri speciali: basta il prefisso
+    private final Pattern regex;
+    private final boolean exact;
+
+    private GlobPattern(String prefix, Pattern regex, boolean exact) {
+        this.prefix = prefix;
+        this.regex = regex;
+        this.exact = exact;
+    }
+
+    static GlobPattern compile(String glob) {
+        StringBuilder prefix = new StringBuilder();
+        int i = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                break;
+            }
+            if (c == '\\' && i + 1 < glob.length()) {
+                c = glob.charAt(++i);
+            }
+            prefix.append(c);
+            i++;
+        }
+
+        if (i == glob.length()) {
+            return new GlobPattern(prefix.toString(), null, true);
+        }
+        if (i == glob.length() - 1 && glob.charAt(i) == '*') {
+            return new GlobPattern(prefix.toString(), null, false);
+        }
+        return new GlobPattern(prefix.toString(), Pattern.compile(toRegex(glob), Pattern.DOTALL), false);
+    }
+
+    /**
+     * Parte letterale iniziale: ogni chiave che corrisponde inizia con essa.
+     */
+    String prefix() {
+        return prefix;
+    }
+
+    boolean matches(String key) {
+        if (exact) {
+            return key.equals(prefix);
+        }
+        if (!key.startsWith(prefix)) {
+            return false;
+        }
+        return regex == null || regex.matcher(key).matches();
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (!literal.isEmpty()) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                if (c == '\\' && i + 1 < glob.length()) {
+                    c = glob.charAt(++i);
+                }
+                literal.append(c);
+            }
+        }
+        if (!literal.isEmpty()) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+}
@@ -0,0 +1,164 @@
+package it.unimib.sd2025;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Valore di tipo hash: una piccola mappa campo → valore che rappresenta
+ * un'intera entità (es. {@code user:1} con name, surname, ...).
+ *
+ * È immutabile e compatta: campi e valori sono alternati in un unico array
+ * e la ricerca è lineare, che per entità di una decina di campi costa meno
+ * di una HashMap sia in memoria sia in tempo. Ogni modifica produce una
+ * nuova istanza, quindi chi legge non vede mai un hash modificato a metà.
+ *
+ * Nomi dei campi e valori a bassa cardinalità passano da {@link Interner}
+ * in {@link #with}, così milioni di entità condividono le stesse istanze.
+ * I valori numerici (budget, importi, id) sono memorizzati come
+ * {@link Decimal}; {@link #get} e {@link #forEach} li restituiscono come testo.
+ */
+final class Hash {
+    static final Hash EMPTY = new Hash(new Object[0]);
+
+    // [campo0, valore0, campo1, valore1, ...]: i campi sono String, i valori String o Decimal
+    private final Object[] entries;
+
+    private Hash(Object[] entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Hash da campi e valori alternati, senza campi ripetuti (es. appena decodificato).
+     * Non passa da {@link Interner} né da {@link Decimal}: serve per copie
+     * temporanee come quelle decodificate dal motore off-heap a ogni lettura,
+     * dove i numeri restano testo.
+     */
+    static Hash of(String[] entries) {
+        return entries.length == 0 ? EMPTY : new Hash(entries);
+    }
+
+    int size() {
+        return entries.length / 2;
+    }
+
+    boolean isEmpty() {
+        return entries.length == 0;
+    }
+
+    /**
+     * Valore di un campo come testo, null se il campo non esiste.
+     */
+    String get(String field) {
+        Object value = value(field);
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Valore di un campo com'è memorizzato: String, Decimal o null.
+     */
+    Object value(String field) {
+        int index = indexOf(field);
+        return index >= 0 ? entries[index + 1] : null;
+    }
+
+    /**
+     * Nuovo hash con i campi indicati impostati (aggiunti o sovrascritti);
+     * i valori sono testi, dove i numeri diventano Decimal, o Decimal già calcolati.
+     */
+    Hash with(Map<String, ?> fields) {
+        // Object[] anche se entries è lo String[] di of, per poterci mettere Decimal
+        Object[] updated = Arrays.copyOf(entries, entries.length + fields.size() * 2, Object[].class);
+        int length = entries.length;
+        for (Map.Entry<String, ?> field : fields.entrySet()) {
+            String name = Interner.field(field.getKey());
+            Object value = field.getValue() instanceof String text ? Decimal.encode(text) : field.getValue();
+            value = Interner.value(name, value);
+            int index = indexOf(updated, length, name);
+            if (index >= 0) {
+                updated[index + 1] = value;
+            } else {
+                updated[length++] = name;
+                updated[length++] = value;
+            }
+        }
+        return new Hash(length == updated.length ? updated : Arrays.copyOf(updated, length));
+    }
+
+    /**
+     * Nuovo hash senza i campi indicati.
+     */
+    Hash without(List<String> fields) {
+        Object[] remaining = new Object[entries.length];
+        int length = 0;
+        for (int i = 0; i < entries.length; i += 2) {
+            if (!fields.contains(entries[i])) {
+                remaining[length++] = entries[i];
+                remaining[length++] = entries[i + 1];
+            }
+        }
+        return length == entries.length ? this : new Hash(Arrays.copyOf(remaining, length));
+    }
+
+    /**
+     * Numero di campi che non esistono ancora in questo hash.
+     */
+    int countNewFields(Iterable<String> fields) {
+        int count = 0;
+        for (String field : fields) {
+            if (indexOf(field) < 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Memoria occupata dall'hash in byte, stimata (per il limite di
+     * memoria): i nomi dei campi non contano, sono condivisi da tutti.
+     */
+    long estimatedBytes() {
+        long bytes = 32 + 4L * entries.length;
+        for (int i = 1; i < entries.length; i += 2) {
+            bytes += entries[i] instanceof String text ? estimatedBytes(text) : Decimal.ESTIMATED_BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Stima di una String compatta: oggetto, array e un byte per carattere.
+     */
+    static long estimatedBytes(String value) {
+        return 40 + value.length();
+    }
+
+    /**
+     * Campi e valori in ordine, con i valori come testo.
+     */
+    void forEach(BiConsumer<String, String> action) {
+        for (int i = 0; i < entries.length; i += 2) {
+            action.accept((String) entries[i], entries[i + 1].toString());
+        }
+    }
+
+    Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        forEach(map::put);
+        return map;
+    }
+
+    private int indexOf(String field) {
+        return indexOf(entries, entries.length, field);
+    }
+
+    private static int indexOf(Object[] entries, int length, String field) {
+        for (int i = 0; i < length; i += 2) {
+            if (entries[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,44 @@
+package it.unimib.sd2025;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Motore di default: una ConcurrentHashMap, il cui compute blocca solo il
+ * bucket della chiave. Ogni voce costa un nodo della mappa più la chiave e
+ * il valore come oggetti Java (per un hash anche l'array di campi e valori,
+ * in gran parte istanze condivise, vedi {@link Interner}).
+ */
+final class HeapStorageEngine implements StorageEngine {
+    private final ConcurrentHashMap<Object, Object> storage = new ConcurrentHashMap<>();
+
+    @Override
+    public Object get(Object key) {
+        return storage.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return storage.containsKey(key);
+    }
+
+    @Override
+    public Object compute(Object key, BiFunction<Object, Object, Object> function) {
+        return storage.compute(key, function);
+    }
+
+    @Override
+    public int size() {
+        return storage.size();
+    }
+
+    @Override
+    public String name() {
+        return "heap";
+    }
+
+    @Override
+    public long offHeapBytes() {
+        return 0;
+    }
+}
@@ -0,0 +1,79 @@
+package it.unimib.sd2025;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tabella di intern per i campi degli {@link Hash}.
+ *
+ * I nomi dei campi (name, status, ...) si ripetono in ogni entità, e molti
+ * campi hanno pochi valori distinti (status, category, budget iniziali):
+ * senza intern ogni hash arrivato dalla rete o dal log ne conserva una
+ * copia propria. Qui
+ * ogni campo ha un dizionario dei suoi valori finché questi restano meno
+ * di {@link #MAX_VALUES_PER_FIELD}; un campo che li supera (email, date,
+ * importi) è considerato ad alta cardinalità e i suoi valori non vengono
+ * più cercati.
+ *
+ * Condivisa da tutto il processo, come String.intern: stringhe e
+ * {@link Decimal} sono immutabili, quindi conta solo che siano uguali.
+ */
+final class Interner {
+    private static final int MAX_FIELDS = 4096;
+    private static final int MAX_VALUES_PER_FIELD = 256;
+    private static final int MAX_VALUE_LENGTH = 64;
+
+    private static final ConcurrentHashMap<String, Field> fields = new ConcurrentHashMap<>();
+
+    private Interner() {
+    }
+
+    /**
+     * Istanza canonica del nome di campo.
+     */
+    static String field(String name) {
+        Field field = fields.get(name);
+        if (field == null) {
+            if (fields.size() >= MAX_FIELDS) {
+                return name;
+            }
+            field = fields.computeIfAbsent(name, Field::new);
+        }
+        return field.name;
+    }
+
+    /**
+     * Istanza canonica del valore (String o Decimal), se il campo ha pochi
+     * valori distinti.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T value(String name, T value) {
+        Field field = fields.get(name);
+        if (field == null || field.highCardinality
+                || (value instanceof String text && text.length() > MAX_VALUE_LENGTH)) {
+            return value;
+        }
+        // Uguale a value, quindi della stessa classe
+        T canonical = (T) field.values.get(value);
+        if (canonical != null) {
+            return canonical;
+        }
+        if (field.values.size() >= MAX_VALUES_PER_FIELD) {
+            // Le istanze già condivise restano negli hash che le usano
+            field.highCardinality = true;
+            field.values.clear();
+            return value;
+        }
+        canonical = (T) field.values.putIfAbsent(value, value);
+        return canonical != null ? canonical : value;
+    }
+
+    private static final class Field {
+        final String name;
+        final ConcurrentHashMap<Object, Object> values = new ConcurrentHashMap<>();
+        volatile boolean highCardinality;
+
+        Field(String name) {
+            this.name = name;
+        }
+    }
+}
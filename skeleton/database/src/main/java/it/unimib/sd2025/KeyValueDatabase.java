@@ -3,22 +3,515 @@ package it.unimib.sd2025;
 import java.net.*;
 import java.io.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.Files;
 import java.util.Properties;
 
 /**
  * Database chiave-valore generico in-memory con persistenza opzionale.
- * Utilizza esclusivamente Map<String, String> per garantire massima genericità.
+ * Ogni chiave contiene una stringa, un {@link Hash} (mappa campo → valore
+ * che raccoglie tutti gli attributi di un'entità sotto un'unica chiave)
+ * oppure uno {@link Stream} (sequenza di eventi a cui si aggiunge in coda,
+ * letta a partire dall'ultimo id visto). Le stringhe che sono numeri, anche
+ * come campi di un hash, sono memorizzate come {@link Decimal}.
+ *
+ * Le coppie sono conservate da uno {@link StorageEngine} (sullo heap o in
+ * memoria nativa). Le operazioni su una sola chiave non usano lock globali:
+ * sono atomiche grazie a {@link StorageEngine#compute}, che blocca solo il
+ * bucket o il segmento della chiave.
+ * Le operazioni su più chiavi (MGET/MSET/MDEL), le transazioni (EXEC) e le
+ * stored procedure (CALL) prendono in modo esclusivo i lock striped delle
+ * loro chiavi ({@link StripedLock}); una scrittura su singola chiave prende
+ * la propria striscia in modo condiviso per tutta la durata del compute.
+ * Non è lock-free: se controllasse soltanto che la striscia sia libera,
+ * potrebbe passare il controllo e concludersi mentre EXEC o CALL legge la
+ * stessa chiave per poi riscriverla, perdendo un aggiornamento. Un lock
+ * condiviso non è conteso tra scritture concorrenti, quindi quelle su
+ * chiavi diverse procedono comunque in parallelo.
+ *
+ * Una chiave può avere una scadenza (EXPIRE, SET ... EX): una chiave scaduta
+ * è assente per ogni operazione e viene cancellata al primo accesso
+ * (scadenza lazy) oppure dal thread di una {@link TimingWheel} (scadenza
+ * attiva), senza mai scorrere tutto il keyspace.
+ *
+ * Con un limite di memoria ({@link #limitMemory}) ogni scrittura aggiorna una
+ * stima dei byte occupati; prima di un comando che può occupare memoria
+ * {@link #ensureMemory} cancella chiavi secondo la policy scelta (vedi
+ * {@link Eviction}) o rifiuta il comando.
+ *
+ * Ogni scrittura, registrata come riga del log append-only, viene inviata
+ * anche alle repliche collegate ({@link ReplicationSource}); un database
+ * avviato come replica ({@link #replicaOf}) riceve invece i dati dal primario.
+ *
+ * Se qualcuno è iscritto a un canale {@code __keyspace__:...} o a un pattern,
+ * ogni scrittura pubblica anche una notifica del keyspace ({@link PubSub}),
+ * ad esempio per invalidare le cache dei client.
  */
 public class KeyValueDatabase {
     
-    // Storage generico - SOLO stringhe per massima flessibilità
-    private final Map<String, String> storage = new ConcurrentHashMap<>();
+    // Storage generico: valori String, Decimal, Hash oppure Stream
+    private final StorageEngine storage;
     
-    // Lock per operazioni che richiedono atomicità
-    private final Object storageLock = new Object();
+    // Indice ordinato delle chiavi per KEYS/SCAN: un pattern con prefisso
+    // letterale (user:*) visita solo l'intervallo user:..., non tutte le chiavi.
+    // Aggiornato insieme a storage, dentro il compute della chiave.
+    // Contiene le chiavi codificate (vedi CompactKey), le stesse istanze di storage.
+    private final NavigableSet<Object> keyIndex = new ConcurrentSkipListSet<>(CompactKey.ORDER);
+    
+    // Strisce prese in modo esclusivo dalle operazioni su più chiavi e in
+    // modo condiviso dalle scritture su una chiave (vedi StripedLock)
+    private static final int LOCK_STRIPES = 256;
+    private final StripedLock multiKeyLocks = new StripedLock(LOCK_STRIPES);
+    
+    // Scadenze: chiave codificata → voce della timing wheel (deadline in ms
+    // epoch). Come keyIndex, aggiornate solo dentro il compute della chiave.
+    private static final long EXPIRY_TICK_MILLIS = 10;
+    private static final long KEEP_TTL = -1;
+    private final ConcurrentHashMap<Object, TimingWheel.Entry> expires = new ConcurrentHashMap<>();
+    private final TimingWheel expiryWheel = new TimingWheel(EXPIRY_TICK_MILLIS, this::expire);
+    private final LongAdder expiredKeys = new LongAdder();
+    
+    // Memoria: stima dei byte occupati da chiavi, valori e strutture di
+    // contorno, limite e policy (null = nessun limite). Le cancellazioni per
+    // fare posto sono serializzate da evictionLock.
+    private static final long ENTRY_BYTES = 80;         // voce di storage e nodo di keyIndex
+    private static final long COMPACT_KEY_BYTES = 24;
+    private static final long EXPIRY_BYTES = 64;        // voce di expires e della timing wheel
+    private static final long ACCESS_BYTES = 56;        // statistiche d'accesso di Eviction
+    private static final int MAX_EVICTION_FAILURES = 1024;
+    private static final String OUT_OF_MEMORY = "OOM command not allowed when used memory > 'maxmemory'";
+    private final LongAdder usedMemory = new LongAdder();
+    private volatile Eviction eviction;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final LongAdder evictedKeys = new LongAdder();
+    
+    // Transazioni che osservano (WATCH) ciascuna chiave
+    private final ConcurrentHashMap<String, Set<Transaction>> watchers = new ConcurrentHashMap<>();
+    
+    // Azioni rimandate al rilascio dei lock di runLocked sul thread corrente
+    // (null fuori da runLocked)
+    private final ThreadLocal<List<Runnable>> deferred = new ThreadLocal<>();
+    
+    // Log delle scritture, null se la persistenza è disattivata
+    private volatile AppendOnlyFile appendOnlyFile;
+    
+    // Repliche collegate a questo database e, se è a sua volta una replica,
+    // il collegamento al primario (null se è un primario)
+    private final ReplicationSource replication = new ReplicationSource();
+    private volatile Replica replica;
+    
+    // Sottoscrizioni publish/subscribe e notifiche del keyspace
+    private final PubSub pubSub = new PubSub();
+    
+    // Lettori fermi in XREAD BLOCK: ogni aggiunta a uno stream incrementa
+    // streamAppends e, se qualcuno attende, li sveglia tutti. Il lock non
+    // viene mai tenuto durante una lettura o una scrittura dei dati
+    private final AtomicLong streamAppends = new AtomicLong();
+    private final AtomicInteger blockedReaders = new AtomicInteger();
+    private final ReentrantLock streamLock = new ReentrantLock();
+    private final Condition streamAppended = streamLock.newCondition();
+    
+    // Snapshot: file di destinazione (null se disattivati), salvataggio o
+    // riscrittura del log in corso (uno alla volta) e stato della visita
+    // in corso (vedi forEachAtSnapshot)
+    private volatile Path snapshotPath;
+    private final AtomicBoolean backgroundJob = new AtomicBoolean();
+    private volatile SnapshotCursor snapshotCursor;
+    private volatile long lastSaveMillis = 0;
+    private static final String BACKGROUND_JOB_IN_PROGRESS = "background save or rewrite already in progress";
+    
+    public KeyValueDatabase() {
+        this(new HeapStorageEngine());
+    }
+    
+    KeyValueDatabase(StorageEngine storage) {
+        this.storage = storage;
+    }
+    
+    /**
+     * Motore di storage in uso (per INFO).
+     */
+    StorageEngine storageEngine() {
+        return storage;
+    }
+    
+    /**
+     * Usa path come destinazione degli snapshot e, se load, carica quello
+     * esistente. Restituisce true se lo snapshot è stato caricato.
+     */
+    boolean openSnapshot(Path path, boolean load) throws IOException {
+        snapshotPath = path;
+        if (!load || !Files.exists(path)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        long keys = Snapshot.load(path, this::restore);
+        System.out.printf("Loaded %d keys from snapshot %s in %d ms%n",
+            keys, path, (System.nanoTime() - start) / 1_000_000);
+        return true;
+    }
+    
+    /**
+     * Salva uno snapshot del database così com'era all'inizio del
+     * salvataggio. Non blocca le scritture concorrenti: lancia
+     * IllegalStateException solo se un altro salvataggio è già in corso.
+     * Restituisce il numero di chiavi salvate.
+     */
+    public long saveSnapshot() throws IOException {
+        Path path = snapshotPath;
+        if (path == null) {
+            throw new IllegalStateException("snapshots are disabled");
+        }
+        if (!backgroundJob.compareAndSet(false, true)) {
+            throw new IllegalStateException(BACKGROUND_JOB_IN_PROGRESS);
+        }
+        try {
+            long start = System.nanoTime();
+            long keys = Snapshot.write(path, this::forEachAtSnapshot);
+            lastSaveMillis = System.currentTimeMillis();
+            System.out.printf("Saved %d keys to snapshot %s in %d ms%n",
+                keys, path, (System.nanoTime() - start) / 1_000_000);
+            return keys;
+        } finally {
+            backgroundJob.set(false);
+        }
+    }
+    
+    /**
+     * Avvia {@link #saveSnapshot()} su un thread dedicato.
+     * Restituisce false se un salvataggio o una riscrittura è già in corso.
+     */
+    public boolean startBackgroundSave() {
+        if (snapshotPath == null) {
+            throw new IllegalStateException("snapshots are disabled");
+        }
+        return startBackgroundJob("db-snapshot", this::saveSnapshot, "Snapshot save failed: ");
+    }
+    
+    /**
+     * Riscrive il log append-only con il solo valore attuale di ogni chiave
+     * (vedi {@link AppendOnlyFile#rewrite}); le scritture proseguono.
+     * Lancia IllegalStateException se il log è disattivato o se un
+     * salvataggio o una riscrittura è già in corso.
+     */
+    public long rewriteAppendOnlyFile() throws IOException {
+        AppendOnlyFile log = appendOnlyFile;
+        if (log == null) {
+            throw new IllegalStateException("append-only file is disabled");
+        }
+        if (!backgroundJob.compareAndSet(false, true)) {
+            throw new IllegalStateException(BACKGROUND_JOB_IN_PROGRESS);
+        }
+        try {
+            long start = System.nanoTime();
+            long before = log.size();
+            long keys = log.rewrite(this::forEachAtSnapshot);
+            System.out.printf("Rewrote append-only file: %d keys, %d -> %d bytes in %d ms%n",
+                keys, before, log.size(), (System.nanoTime() - start) / 1_000_000);
+            return keys;
+        } finally {
+            backgroundJob.set(false);
+        }
+    }
+    
+    /**
+     * Avvia {@link #rewriteAppendOnlyFile()} su un thread dedicato.
+     * Restituisce false se un salvataggio o una riscrittura è già in corso.
+     */
+    public boolean startBackgroundRewrite() {
+        if (appendOnlyFile == null) {
+            throw new IllegalStateException("append-only file is disabled");
+        }
+        return startBackgroundJob("db-aof-rewrite", this::rewriteAppendOnlyFile, "Append-only file rewrite failed: ");
+    }
+    
+    /**
+     * Avvia la riscrittura se il log ha raggiunto minSize byte ed è
+     * cresciuto di percentage% dall'ultima (chiamato periodicamente).
+     */
+    void rewriteAppendOnlyFileIfNeeded(long minSize, int percentage) {
+        AppendOnlyFile log = appendOnlyFile;
+        if (log != null && !backgroundJob.get() && log.needsRewrite(minSize, percentage)) {
+            startBackgroundRewrite();
+        }
+    }
+    
+    /**
+     * Dimensione del log append-only in byte, 0 se disattivato.
+     */
+    public long appendOnlyFileSize() {
+        AppendOnlyFile log = appendOnlyFile;
+        return log != null ? log.size() : 0;
+    }
+    
+    /**
+     * Operazione di persistenza che attraversa tutto il database.
+     */
+    @FunctionalInterface
+    private interface BackgroundJob {
+        long run() throws IOException;
+    }
+    
+    private boolean startBackgroundJob(String name, BackgroundJob job, String failureMessage) {
+        if (backgroundJob.get()) {
+            return false;
+        }
+        Thread.ofPlatform().name(name).daemon().start(() -> {
+            try {
+                job.run();
+            } catch (IllegalStateException | IOException e) {
+                System.err.println(failureMessage + e.getMessage());
+            }
+        });
+        return true;
+    }
+    
+    /**
+     * Istante dell'ultimo snapshot salvato (ms dall'epoch), 0 se nessuno.
+     */
+    public long lastSaveMillis() {
+        return lastSaveMillis;
+    }
+    
+    /**
+     * Passa a action ogni chiave con il valore che aveva all'inizio della
+     * visita, senza fermare le scritture.
+     *
+     * Le chiavi sono visitate in ordine dentro il loro compute, e il cursore
+     * ricorda l'ultima visitata. Una scrittura su una chiave non ancora
+     * visitata salva prima il valore precedente (copy-on-write per chiave):
+     * la visita userà quello. Alla fine si aggiungono le chiavi cancellate
+     * prima di essere raggiunte. I valori sono immutabili, quindi basta
+     * conservarne il riferimento.
+     */
+    void forEachAtSnapshot(BiConsumer<String, Object> action) {
+        SnapshotCursor cursor = new SnapshotCursor();
+        snapshotCursor = cursor;
+        try {
+            Object[] value = new Object[1];
+            for (Object key : keyIndex) {
+                storage.compute(key, (k, current) -> {
+                    Object preserved = cursor.preserved.remove(k);
+                    value[0] = preserved != null ? preserved : withDeadline(current, deadlineOf(k, current));
+                    cursor.last = k;
+                    return current;
+                });
+                if (value[0] != null && value[0] != SnapshotCursor.ABSENT) {
+                    action.accept(key.toString(), value[0]);
+                }
+            }
+        } finally {
+            snapshotCursor = null;
+        }
+        cursor.preserved.forEach((key, preserved) -> {
+            if (preserved != SnapshotCursor.ABSENT) {
+                action.accept(key.toString(), preserved);
+            }
+        });
+    }
+    
+    /**
+     * Stato di una visita di {@link #forEachAtSnapshot}.
+     */
+    private static final class SnapshotCursor {
+        // Segnaposto per le chiavi create dopo l'inizio della visita
+        static final Object ABSENT = new Object();
+        
+        final ConcurrentHashMap<Object, Object> preserved = new ConcurrentHashMap<>();
+        volatile Object last;
+        
+        /**
+         * Chiamato dentro il compute della chiave prima di sovrascriverne il
+         * valore o la scadenza.
+         */
+        void beforeWrite(Object key, Object current, long deadline) {
+            Object visited = last;
+            if (visited == null || CompactKey.ORDER.compare(key, visited) > 0) {
+                preserved.putIfAbsent(key, current != null ? withDeadline(current, deadline) : ABSENT);
+            }
+        }
+    }
+    
+    /**
+     * Riesegue il log append-only, se esiste, e da quel momento vi registra
+     * ogni scrittura. Restituisce true se il log esisteva: in quel caso i
+     * dati iniziali non vanno ricaricati.
+     */
+    boolean openAppendOnlyFile(Path path, AppendOnlyFile.Fsync fsync, long intervalMillis) throws IOException {
+        boolean exists = Files.exists(path);
+        if (exists) {
+            long start = System.nanoTime();
+            long records = AppendOnlyFile.replay(path, this::restore);
+            System.out.printf("Replayed %d records from %s in %d ms%n",
+                records, path, (System.nanoTime() - start) / 1_000_000);
+        }
+        appendOnlyFile = new AppendOnlyFile(path, fsync, intervalMillis);
+        return exists;
+    }
+    
+    /**
+     * Con fsync always attende che le scritture del thread corrente siano su
+     * disco: i server la chiamano prima di inviare le risposte.
+     * Restituisce false se il log non è più scrivibile.
+     */
+    public boolean awaitDurable() {
+        AppendOnlyFile log = appendOnlyFile;
+        return log == null || log.awaitDurable();
+    }
+    
+    /**
+     * Come {@link #awaitDurable} ma senza bloccare il thread corrente: il
+     * server non bloccante riceve il risultato in callback, dal thread di
+     * scrittura del log oppure subito se non c'è nulla da attendere.
+     */
+    public void whenDurable(Consumer<Boolean> callback) {
+        AppendOnlyFile log = appendOnlyFile;
+        if (log == null) {
+            callback.accept(true);
+        } else {
+            log.whenDurable(callback);
+        }
+    }
+    
+    /**
+     * Scrive su disco le ultime righe del log e lo chiude (allo spegnimento).
+     */
+    public void closeAppendOnlyFile() throws IOException {
+        AppendOnlyFile log = appendOnlyFile;
+        if (log != null) {
+            appendOnlyFile = null;
+            log.close();
+        }
+    }
+    
+    // === REPLICA ===
+    
+    /**
+     * Trasforma il database in una replica in sola lettura di primary
+     * ({@code host:porta}): da quel momento i suoi dati sono quelli del
+     * primario, ricevuti in background (vedi {@link Replica}).
+     */
+    void replicaOf(String primary) {
+        Replica link = Replica.parse(this, primary);
+        replica = link;
+        link.start();
+    }
+    
+    /**
+     * Se il database è una replica: i comandi di scrittura vanno rifiutati.
+     */
+    public boolean isReplica() {
+        return replica != null;
+    }
+    
+    /**
+     * Serve la replica che ha inviato SYNC su socket, finché resta collegata
+     * (vedi {@link ReplicationSource#serve}).
+     */
+    void serveReplica(Socket socket) {
+        replication.serve(this, socket);
+    }
+    
+    /**
+     * Scrive nel canale lo snapshot iniziale per una replica; se un
+     * salvataggio o una riscrittura è in corso attende che finisca invece di
+     * fallire. Restituisce il numero di chiavi.
+     */
+    long writeReplicationSnapshot(FileChannel channel) throws IOException {
+        while (!backgroundJob.compareAndSet(false, true)) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for background job");
+            }
+        }
+        try {
+            return Snapshot.write(channel, this::forEachAtSnapshot);
+        } finally {
+            backgroundJob.set(false);
+        }
+    }
+    
+    public int connectedReplicas() {
+        return replication.replicas();
+    }
+    
+    /**
+     * Byte dello stream di replica inviati (primario) o applicati (replica).
+     */
+    public long replicationOffset() {
+        Replica link = replica;
+        return link != null ? link.offset() : replication.offset();
+    }
+    
+    public boolean primaryLinkUp() {
+        Replica link = replica;
+        return link != null && link.linkUp();
+    }
+    
+    /**
+     * Ritardo della replica rispetto al primario in ms, -1 se sconosciuto.
+     */
+    public long replicationLagMillis() {
+        Replica link = replica;
+        return link != null ? link.lagMillis() : -1;
+    }
+    
+    // === PUBLISH/SUBSCRIBE ===
+    
+    /**
+     * Operazione PUBLISH - restituisce quanti sottoscrittori hanno ricevuto il messaggio.
+     */
+    public int publish(String channel, String message) {
+        return pubSub.publish(channel, message);
+    }
+    
+    /**
+     * Serve come sottoscrittore la connessione che ha inviato command
+     * (SUBSCRIBE o PSUBSCRIBE), finché resta aperta (vedi {@link Subscriber#serve}).
+     */
+    void serveSubscriber(Socket socket, BufferedReader in, Writer out, String command) {
+        new Subscriber(pubSub, socket).serve(in, out, command);
+    }
+    
+    public int subscribedChannels() {
+        return pubSub.channels();
+    }
+    
+    public int subscribedPatterns() {
+        return pubSub.patterns();
+    }
+    
+    public long publishedMessages() {
+        return pubSub.published();
+    }
     
     /**
      * Inizializza il database con dati preesistenti da file.
@@ -31,7 +524,7 @@ public class KeyValueDatabase {
                 try (var input = Files.newBufferedReader(dataPath)) {
                     props.load(input);
                     for (String key : props.stringPropertyNames()) {
-                        storage.put(key, props.getProperty(key));
+                        store(key, Decimal.encode(props.getProperty(key)));
                     }
                 }
                 System.out.println("Loaded " + storage.size() + " initial records");
@@ -47,61 +540,80 @@ public class KeyValueDatabase {
     
     /**
      * Carica dati di default per testing.
+     * Ogni utente e ogni buono è un hash con un campo per attributo.
      */
     private void loadDefaultData() {
         // Utenti di esempio
-        storage.put("user:1:name", "Mario");
-        storage.put("user:1:surname", "Rossi");
-        storage.put("user:1:email", "mario.rossi@email.com");
-        storage.put("user:1:fiscalCode", "RSSMRA90A01F205X");
-        storage.put("user:1:totalBudget", "500.0");
-        storage.put("user:1:availableBudget", "350.0");
-        storage.put("user:1:usedBudget", "100.0");
-        storage.put("user:1:consumedBudget", "50.0");
-
+        putHash("user:1",
+            "name", "Mario",
+            "surname", "Rossi",
+            "email", "mario.rossi@email.com",
+            "fiscalCode", "RSSMRA90A01F205X",
+            "totalBudget", "500.0",
+            "availableBudget", "350.0",
+            "usedBudget", "100.0",
+            "consumedBudget", "50.0");
         
-        storage.put("user:2:name", "Giulia");
-        storage.put("user:1:surname", "Bianchi");
-        storage.put("user:2:email", "giulia.bianchi@email.com");
-        storage.put("user:2:fiscalCode", "BNCGLI95B02H501Y");
-        storage.put("user:2:totalBudget", "500.0");
-        storage.put("user:2:availableBudget", "500.0");
-        storage.put("user:2:usedBudget", "0.0");
-        storage.put("user:2:consumedBudget", "0.0");
+        putHash("user:2",
+            "name", "Giulia",
+            "surname", "Bianchi",
+            "email", "giulia.bianchi@email.com",
+            "fiscalCode", "BNCGLI95B02H501Y",
+            "totalBudget", "500.0",
+            "availableBudget", "500.0",
+            "usedBudget", "0.0",
+            "consumedBudget", "0.0");
         
         // Buoni di esempio
-        storage.put("voucher:1:userId", "1");
-        storage.put("voucher:1:amount", "50.0");
-        storage.put("voucher:1:category", "cinema");
-        storage.put("voucher:1:status", "consumed");
-        storage.put("voucher:1:createdAt", "2025-06-20T10:30:00");
-        storage.put("voucher:1:consumedAt", "2025-06-25T18:45:00");
-        
-        storage.put("voucher:2:userId", "1");
-        storage.put("voucher:2:amount", "100.0");
-        storage.put("voucher:2:category", "libri");
-        storage.put("voucher:2:status", "active");
-        storage.put("voucher:2:createdAt", "2025-06-28T09:15:00");
+        putHash("voucher:{user:1}:1",
+            "userId", "1",
+            "amount", "50.0",
+            "category", "cinema",
+            "status", "consumed",
+            "createdAt", "2025-06-20T10:30:00",
+            "consumedAt", "2025-06-25T18:45:00");
+        
+        putHash("voucher:{user:1}:2",
+            "userId", "1",
+            "amount", "100.0",
+            "category", "libri",
+            "status", "active",
+            "createdAt", "2025-06-28T09:15:00");
         
         // Contatori per ID auto-incrementali
-        storage.put("counter:user", "2");
-        storage.put("counter:voucher", "2");
+        store("counter:user", Decimal.of(2));
+        store("counter:voucher", Decimal.of(2));
         
         System.out.println("Loaded default test data");
     }
     
+    private void putHash(String key, String... fieldsAndValues) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (int i = 0; i < fieldsAndValues.length; i += 2) {
+            fields.put(fieldsAndValues[i], fieldsAndValues[i + 1]);
+        }
+        store(key, Hash.EMPTY.with(fields));
+    }
+    
     /**
-     * Operazione SET generica.
+     * Operazione SET generica. Toglie l'eventuale scadenza della chiave.
      */
     public boolean set(String key, String value) {
+        return set(key, value, 0);
+    }
+    
+    /**
+     * Operazione SET ... EX/PX - scrive la chiave con scadenza a deadline
+     * (millisecondi epoch, 0 per nessuna scadenza).
+     */
+    public boolean set(String key, String value, long deadline) {
         if (key == null || key.trim().isEmpty()) {
             return false;
         }
         
-        synchronized (storageLock) {
-            storage.put(key, value != null ? value : "");
-            return true;
-        }
+        Object stored = Decimal.encode(value != null ? value : "");
+        update(key, current -> stored, deadline, true);
+        return true;
     }
     
     /**
@@ -112,7 +624,7 @@ public class KeyValueDatabase {
             return null;
         }
         
-        return storage.get(key);
+        return asString(read(key));
     }
     
     /**
@@ -123,9 +635,7 @@ public class KeyValueDatabase {
             return false;
         }
         
-        synchronized (storageLock) {
-            return storage.remove(key) != null;
-        }
+        return removeKey(key) != null;
     }
     
     /**
@@ -136,52 +646,1216 @@ public class KeyValueDatabase {
             return false;
         }
         
-        return storage.containsKey(key);
+        return read(key) != null;
+    }
+    
+    /**
+     * Operazione MGET - legge più chiavi in un colpo solo.
+     * Restituisce i valori nello stesso ordine delle chiavi, null per quelle assenti.
+     * Prende i lock delle sue chiavi, quindi non vede mai un MSET applicato a metà.
+     */
+    public List<String> multiGet(List<String> keys) {
+        int[] stripes = multiKeyLocks.lock(keys);
+        try {
+            List<String> values = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                // Come in Redis, una chiave di tipo diverso da stringa vale NIL
+                Object value = read(key);
+                values.add(value instanceof String || value instanceof Decimal ? value.toString() : null);
+            }
+            return values;
+        } finally {
+            multiKeyLocks.unlock(stripes);
+        }
+    }
+    
+    /**
+     * Operazione MSET - scrive più chiavi in modo atomico.
+     * Se anche una sola chiave non è valida non viene scritto nulla.
+     */
+    public boolean multiSet(Map<String, String> entries) {
+        for (String key : entries.keySet()) {
+            if (key == null || key.trim().isEmpty()) {
+                return false;
+            }
+        }
+        
+        int[] stripes = multiKeyLocks.lock(entries.keySet());
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                store(entry.getKey(), Decimal.encode(entry.getValue() != null ? entry.getValue() : ""));
+            }
+            return true;
+        } finally {
+            multiKeyLocks.unlock(stripes);
+        }
+    }
+    
+    /**
+     * Operazione MDEL - elimina più chiavi in modo atomico.
+     * Restituisce il numero di chiavi effettivamente eliminate.
+     */
+    public int multiDelete(List<String> keys) {
+        int[] stripes = multiKeyLocks.lock(keys);
+        try {
+            int deleted = 0;
+            for (String key : keys) {
+                if (delete(key)) {
+                    deleted++;
+                }
+            }
+            return deleted;
+        } finally {
+            multiKeyLocks.unlock(stripes);
+        }
     }
     
     /**
-     * Operazione KEYS - trova chiavi che matchano un pattern.
+     * Operazione KEYS - trova chiavi che matchano un pattern glob.
+     * Non prende il lock: l'indice è concorrente e la scansione parte dal
+     * prefisso letterale del pattern, in ordine.
      */
     public String getKeys(String pattern) {
-        synchronized (storageLock) {
-            var matchingKeys = storage.keySet().stream()
-                .filter(key -> key.matches(pattern.replace("*", ".*")))
-                .sorted()
-                .toList();
-            
-            return String.join(",", matchingKeys);
+        GlobPattern glob = GlobPattern.compile(pattern);
+        List<String> matchingKeys = new ArrayList<>();
+        for (Object entry : keyIndex.tailSet(glob.prefix(), true)) {
+            String key = entry.toString();
+            if (!key.startsWith(glob.prefix())) {
+                break;
+            }
+            if (glob.matches(key) && !isExpired(entry)) {
+                matchingKeys.add(key);
+            }
         }
+        
+        return String.join(",", matchingKeys);
     }
     
     /**
-     * Operazione INCR - incrementa valore numerico.
+     * Operazione SCAN - una pagina di chiavi che matchano un pattern.
+     * Esamina al massimo count chiavi dopo la chiave after (null = dall'inizio).
+     * È debolmente consistente: le chiavi presenti per tutta la scansione sono
+     * restituite esattamente una volta, quelle aggiunte o rimosse nel frattempo
+     * possono esserci o no.
      */
-    public String increment(String key) {
-        synchronized (storageLock) {
-            String currentValue = storage.get(key);
-            try {
-                int newValue = (currentValue == null) ? 1 : Integer.parseInt(currentValue) + 1;
-                storage.put(key, String.valueOf(newValue));
-                return String.valueOf(newValue);
-            } catch (NumberFormatException e) {
-                return null; // Errore: valore non numerico
+    public ScanPage scan(String after, String pattern, int count) {
+        GlobPattern glob = GlobPattern.compile(pattern);
+        String prefix = glob.prefix();
+        NavigableSet<Object> range = (after != null && after.compareTo(prefix) >= 0)
+            ? keyIndex.tailSet(after, false)
+            : keyIndex.tailSet(prefix, true);
+        
+        List<String> keys = new ArrayList<>();
+        int examined = 0;
+        for (Object entry : range) {
+            String key = entry.toString();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            if (glob.matches(key) && !isExpired(entry)) {
+                keys.add(key);
+            }
+            if (++examined == count) {
+                return new ScanPage(keys, key);
             }
         }
+        return new ScanPage(keys, null);
     }
     
     /**
-     * Operazione SIZE - restituisce numero di chiavi.
+     * Pagina di SCAN: le chiavi trovate e l'ultima chiave esaminata,
+     * da cui riprendere (null se la scansione è finita).
      */
-    public int size() {
-        return storage.size();
+    public record ScanPage(List<String> keys, String lastKey) {
     }
     
     /**
-     * Operazione FLUSH - cancella tutto (solo per testing).
+     * Operazione INCR - incrementa valore numerico.
      */
-    public void flush() {
-        synchronized (storageLock) {
-            storage.clear();
+    public Decimal increment(String key) {
+        return incrementBy(key, 1);
+    }
+    
+    /**
+     * Operazione INCRBY/DECRBY - somma un intero (anche negativo) al valore,
+     * assente = 0. Restituisce il nuovo valore, null se il valore non è un intero.
+     */
+    public Decimal incrementBy(String key, long delta) {
+        try {
+            return (Decimal) update(key, value -> Decimal.of(addExact(integerValue(asStringValue(value)), delta)));
+        } catch (NumberFormatException e) {
+            return null; // Errore: valore non numerico
+        }
+    }
+    
+    /**
+     * Operazione TYPE - tipo del valore associato a una chiave.
+     */
+    public String type(String key) {
+        Object value = read(key);
+        if (value == null) {
+            return "none";
+        }
+        if (value instanceof Stream) {
+            return "stream";
+        }
+        return value instanceof Hash ? "hash" : "string";
+    }
+    
+    // === OPERAZIONI SU HASH ===
+    
+    /**
+     * Operazione HSET - imposta uno o più campi di un hash, creandolo se serve.
+     * Restituisce il numero di campi nuovi (non sovrascritti).
+     */
+    public int hashSet(String key, Map<String, String> fields) {
+        if (key == null || key.trim().isEmpty()) {
+            throw new IllegalArgumentException("invalid key");
+        }
+        
+        int[] added = new int[1];
+        update(key, value -> {
+            Hash hash = asHash(value);
+            added[0] = hash.countNewFields(fields.keySet());
+            return hash.with(fields);
+        });
+        return added[0];
+    }
+    
+    /**
+     * Operazione HGET - valore di un campo, null se hash o campo non esistono.
+     */
+    public String hashGet(String key, String field) {
+        return asHash(read(key)).get(field);
+    }
+    
+    /**
+     * Operazione HMGET - valori di più campi dello stesso hash, letti atomicamente.
+     */
+    public List<String> hashMultiGet(String key, List<String> fields) {
+        Hash hash = asHash(read(key));
+        List<String> values = new ArrayList<>(fields.size());
+        for (String field : fields) {
+            values.add(hash.get(field));
+        }
+        return values;
+    }
+    
+    /**
+     * Operazione HGETALL - tutti i campi di un hash (vuoto se non esiste).
+     */
+    public Map<String, String> hashGetAll(String key) {
+        return asHash(read(key)).toMap();
+    }
+    
+    /**
+     * Operazione HDEL - rimuove campi da un hash; l'hash vuoto viene eliminato.
+     * Restituisce il numero di campi rimossi.
+     */
+    public int hashDelete(String key, List<String> fields) {
+        int[] removed = new int[1];
+        update(key, value -> {
+            if (value == null) {
+                return null;
+            }
+            Hash hash = asHash(value);
+            Hash remaining = hash.without(fields);
+            removed[0] = hash.size() - remaining.size();
+            return remaining.isEmpty() ? null : remaining;
+        });
+        return removed[0];
+    }
+    
+    /**
+     * Operazione HINCRBYFLOAT - somma un decimale a un campo (assente = 0).
+     * L'aritmetica è decimale esatta, quindi 0.1 + 0.2 dà 0.3.
+     * Restituisce il nuovo valore.
+     */
+    public String hashIncrementByFloat(String key, String field, String increment) {
+        Decimal parsed = Decimal.parse(increment);
+        BigDecimal delta = parsed != null ? parsed.toBigDecimal() : parseDecimal(increment);
+        Decimal fixedDelta = parsed != null ? parsed : Decimal.of(delta);
+        
+        Hash updated = (Hash) update(key, value -> {
+            Hash hash = asHash(value);
+            return hash.with(Map.of(field, addDecimal(hash.value(field), delta, fixedDelta)));
+        });
+        return updated.get(field);
+    }
+    
+    /**
+     * Operazione HINCRBY - somma un intero a un campo (assente = 0).
+     * Restituisce il nuovo valore.
+     */
+    public String hashIncrementBy(String key, String field, long delta) {
+        Hash updated = (Hash) update(key, value -> {
+            Hash hash = asHash(value);
+            long sum;
+            try {
+                sum = addExact(integerValue(hash.value(field)), delta);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("hash value is not an integer");
+            }
+            return hash.with(Map.of(field, Decimal.of(sum)));
+        });
+        return updated.get(field);
+    }
+    
+    /**
+     * Operazione HMOVE - sposta un importo da un campo a un altro dello stesso
+     * hash, solo se il campo di origine non diventa negativo. Controllo e
+     * spostamento avvengono nello stesso compute, quindi due richieste
+     * concorrenti non possono spendere lo stesso importo.
+     *
+     * L'aritmetica è a virgola fissa sui centesimi: importi e campi possono
+     * avere al massimo due decimali, i risultati ne hanno sempre due.
+     * Restituisce null se l'hash non esiste.
+     */
+    public HashMove hashMove(String key, String source, String destination, String amount) {
+        if (source.equals(destination)) {
+            throw new IllegalArgumentException("source and destination must be different fields");
+        }
+        long cents = parseCents(amount);
+        if (cents < 0) {
+            throw new IllegalArgumentException("amount must not be negative");
+        }
+        
+        HashMove[] result = new HashMove[1];
+        update(key, value -> {
+            if (value == null) {
+                return null;
+            }
+            Hash hash = asHash(value);
+            long sourceCents = parseCents(hash.value(source));
+            long destinationCents = parseCents(hash.value(destination));
+            if (sourceCents < cents) {
+                result[0] = new HashMove(false, new Decimal(sourceCents, 2), new Decimal(destinationCents, 2));
+                return hash;
+            }
+            
+            Decimal newSource = new Decimal(sourceCents - cents, 2);
+            Decimal newDestination = new Decimal(addExact(destinationCents, cents), 2);
+            result[0] = new HashMove(true, newSource, newDestination);
+            return hash.with(Map.of(source, newSource, destination, newDestination));
+        });
+        return result[0];
+    }
+    
+    /**
+     * Esito di HMOVE: se l'importo è stato spostato e i valori dei due campi
+     * dopo l'operazione (invariati se non è stato spostato).
+     */
+    public record HashMove(boolean moved, Decimal source, Decimal destination) {
+    }
+    
+    // === STREAM ===
+    
+    /**
+     * Operazione XADD - aggiunge una voce in coda allo stream, creandolo se
+     * serve. L'id è {@code *} (generato dall'orologio) oppure esplicito e
+     * maggiore dell'ultimo; con maxLength &gt;= 0 vengono poi tagliate le
+     * voci più vecchie. Restituisce l'id della voce.
+     */
+    public String streamAdd(String key, String id, List<String> fields, long maxLength) {
+        if (key == null || key.trim().isEmpty()) {
+            throw new IllegalArgumentException("invalid key");
+        }
+        if (fields.isEmpty() || fields.size() % 2 != 0) {
+            throw new IllegalArgumentException("stream entries require field value pairs");
+        }
+        String[] entry = new String[fields.size()];
+        for (int i = 0; i < entry.length; i += 2) {
+            entry[i] = Interner.field(fields.get(i));
+            entry[i + 1] = Interner.value(entry[i], fields.get(i + 1));
+        }
+        
+        Stream.Id[] added = new Stream.Id[1];
+        update(key, value -> {
+            Stream stream = asStream(value);
+            added[0] = "*".equals(id) ? stream.lastId().next(System.currentTimeMillis()) : Stream.Id.parse(id, 0);
+            Stream updated = stream.add(added[0], entry);
+            return maxLength >= 0 ? updated.trim(maxLength) : updated;
+        });
+        wakeStreamReaders();
+        return added[0].toString();
+    }
+    
+    /**
+     * Operazione XLEN - numero di voci dello stream (0 se non esiste).
+     */
+    public long streamLength(String key) {
+        Object value = read(key);
+        return value == null ? 0 : asStream(value).length();
+    }
+    
+    /**
+     * Operazione XRANGE - fino a count voci (count &lt;= 0: tutte) con id tra
+     * start e end inclusi; {@code -} e {@code +} sono il primo e l'ultimo id
+     * possibile, un id senza sequenza vale dall'inizio (start) o fino alla
+     * fine (end) di quel millisecondo.
+     */
+    public List<Stream.Entry> streamRange(String key, String start, String end, long count) {
+        Object value = read(key);
+        if (value == null) {
+            return List.of();
+        }
+        Stream.Id from = "-".equals(start) ? Stream.Id.ZERO : Stream.Id.parse(start, 0);
+        Stream.Id to = "+".equals(end) ? Stream.Id.MAX : Stream.Id.parse(end, Long.MAX_VALUE);
+        return asStream(value).range(from, to, count);
+    }
+    
+    /**
+     * Operazione XREVRANGE - come XRANGE, dalla voce più recente: con
+     * {@code + - COUNT 1} restituisce l'ultima voce.
+     */
+    public List<Stream.Entry> streamReverseRange(String key, String end, String start, long count) {
+        Object value = read(key);
+        if (value == null) {
+            return List.of();
+        }
+        Stream.Id to = "+".equals(end) ? Stream.Id.MAX : Stream.Id.parse(end, Long.MAX_VALUE);
+        Stream.Id from = "-".equals(start) ? Stream.Id.ZERO : Stream.Id.parse(start, 0);
+        return asStream(value).reverseRange(to, from, count);
+    }
+    
+    /**
+     * Operazione XREAD - per ogni stream fino a count voci con id maggiore
+     * di quello indicato ({@code $}: l'ultimo id al momento della chiamata,
+     * quindi solo voci future). Restituisce solo gli stream con voci nuove.
+     *
+     * Se non ce ne sono e timeoutMillis &gt;= 0 attende che arrivino, al
+     * massimo timeoutMillis ms (0: senza limite); una mappa vuota indica
+     * che il tempo è scaduto. Chi attende non tiene lock sui dati: viene
+     * svegliato da ogni XADD e rilegge gli stream.
+     */
+    public Map<String, List<Stream.Entry>> streamRead(List<String> keys, List<String> ids, long count,
+                                                      long timeoutMillis) {
+        List<Stream.Id> after = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            if ("$".equals(ids.get(i))) {
+                Object value = read(keys.get(i));
+                after.add(value == null ? Stream.Id.ZERO : asStream(value).lastId());
+            } else {
+                after.add(Stream.Id.parse(ids.get(i), 0));
+            }
+        }
+        
+        Map<String, List<Stream.Entry>> result = readStreams(keys, after, count);
+        if (!result.isEmpty() || timeoutMillis < 0) {
+            return result;
+        }
+        
+        long deadline = timeoutMillis == 0 ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        blockedReaders.incrementAndGet();
+        try {
+            while (true) {
+                // Letto prima degli stream: un'aggiunta successiva lo cambia e sveglia l'attesa
+                long appends = streamAppends.get();
+                result = readStreams(keys, after, count);
+                if (!result.isEmpty()) {
+                    return result;
+                }
+                streamLock.lock();
+                try {
+                    while (streamAppends.get() == appends) {
+                        if (timeoutMillis == 0) {
+                            streamAppended.await();
+                        } else {
+                            long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) {
+                                return result;
+                            }
+                            streamAppended.awaitNanos(remaining);
+                        }
+                    }
+                } finally {
+                    streamLock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Map.of();
+        } finally {
+            blockedReaders.decrementAndGet();
+        }
+    }
+    
+    private Map<String, List<Stream.Entry>> readStreams(List<String> keys, List<Stream.Id> after, long count) {
+        Map<String, List<Stream.Entry>> result = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Object value = read(keys.get(i));
+            if (value != null) {
+                List<Stream.Entry> entries = asStream(value).after(after.get(i), count);
+                if (!entries.isEmpty()) {
+                    result.put(keys.get(i), entries);
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Operazione XTRIM - tiene solo le maxLength voci più recenti.
+     * Restituisce il numero di voci tolte.
+     */
+    public long streamTrim(String key, long maxLength) {
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("MAXLEN must not be negative");
+        }
+        long[] removed = new long[1];
+        update(key, value -> {
+            if (value == null) {
+                return null;
+            }
+            Stream stream = asStream(value);
+            Stream trimmed = stream.trim(maxLength);
+            removed[0] = stream.length() - trimmed.length();
+            return trimmed;
+        });
+        return removed[0];
+    }
+    
+    /**
+     * Sveglia i lettori fermi in XREAD BLOCK dopo un'aggiunta a uno stream.
+     */
+    private void wakeStreamReaders() {
+        streamAppends.incrementAndGet();
+        if (blockedReaders.get() > 0) {
+            streamLock.lock();
+            try {
+                streamAppended.signalAll();
+            } finally {
+                streamLock.unlock();
+            }
+        }
+    }
+    
+    // === AGGREGAZIONI ===
+    
+    /**
+     * Operazione SUM - somma i campi indicati degli hash le cui chiavi
+     * matchano il pattern, o senza campi il valore delle stringhe; un campo
+     * assente vale 0 e le chiavi di altro tipo sono ignorate. Le somme sono
+     * decimali esatte.
+     */
+    public Sum sum(String pattern, List<String> fields) {
+        int width = fields.isEmpty() ? 1 : fields.size();
+        Sum result = matchingKeys(pattern).parallelStream().collect(
+            () -> new Sum(width),
+            (sum, encoded) -> {
+                Object value = storage.get(encoded);
+                if (fields.isEmpty() ? value instanceof String || value instanceof Decimal : value instanceof Hash) {
+                    sum.keys++;
+                    for (int i = 0; i < width; i++) {
+                        Object number = fields.isEmpty() ? value : ((Hash) value).value(fields.get(i));
+                        sum.add(i, number, encoded);
+                    }
+                }
+            },
+            Sum::merge);
+        // Segnalato qui: un'eccezione nel pool arriverebbe avvolta in un'altra
+        if (result.invalidKey != null) {
+            throw new IllegalArgumentException("value is not a number at key " + result.invalidKey);
+        }
+        return result;
+    }
+    
+    /**
+     * Risultato di SUM: chiavi sommate e una somma per campo, accumulati da
+     * ogni thread e poi uniti.
+     */
+    public static final class Sum {
+        private final BigDecimal[] sums;
+        private long keys;
+        private Object invalidKey;
+        
+        private Sum(int width) {
+            sums = new BigDecimal[width];
+            Arrays.fill(sums, BigDecimal.ZERO);
+        }
+        
+        private void add(int index, Object number, Object key) {
+            if (number == null) {
+                return;
+            }
+            try {
+                sums[index] = sums[index].add(number instanceof Decimal decimal
+                    ? decimal.toBigDecimal() : new BigDecimal((String) number));
+            } catch (NumberFormatException e) {
+                invalidKey = key;
+            }
+        }
+        
+        private void merge(Sum other) {
+            keys += other.keys;
+            if (invalidKey == null) {
+                invalidKey = other.invalidKey;
+            }
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] = sums[i].add(other.sums[i]);
+            }
+        }
+        
+        public long keys() {
+            return keys;
+        }
+        
+        public List<BigDecimal> sums() {
+            return List.of(sums);
+        }
+    }
+    
+    /**
+     * Operazione COUNT - conta le chiavi che matchano il pattern raggruppate
+     * per valore del campo indicato degli hash, o senza campo per valore
+     * delle stringhe. Le chiavi senza quel valore non sono contate.
+     */
+    public Map<String, Long> countBy(String pattern, String field) {
+        return matchingKeys(pattern).parallelStream()
+            .map(encoded -> {
+                Object value = storage.get(encoded);
+                if (field == null) {
+                    return value instanceof String || value instanceof Decimal ? value.toString() : null;
+                }
+                return value instanceof Hash hash ? hash.get(field) : null;
+            })
+            .filter(value -> value != null)
+            .collect(Collectors.groupingBy(value -> value, TreeMap::new, Collectors.counting()));
+    }
+    
+    /**
+     * Chiavi codificate che matchano il pattern, non scadute. L'indice si
+     * percorre in sequenza dal prefisso del pattern; la lista si divide poi
+     * a blocchi tra i thread del pool fork-join, che leggono i valori.
+     * Le aggregazioni non contano come accessi per LRU e LFU.
+     */
+    private List<Object> matchingKeys(String pattern) {
+        GlobPattern glob = GlobPattern.compile(pattern);
+        List<Object> keys = new ArrayList<>();
+        for (Object entry : keyIndex.tailSet(glob.prefix(), true)) {
+            String key = entry.toString();
+            if (!key.startsWith(glob.prefix())) {
+                break;
+            }
+            if (glob.matches(key) && !isExpired(entry)) {
+                keys.add(entry);
+            }
+        }
+        return keys;
+    }
+    
+    // === TRANSAZIONI ===
+    
+    /**
+     * Operazione WATCH - da ora ogni modifica della chiave viene segnalata alla transazione.
+     * La registrazione avviene dentro il compute della chiave: una scrittura
+     * concorrente o è già visibile a chi legge dopo WATCH, o vede la transazione.
+     */
+    public void watch(String key, Transaction transaction) {
+        storage.compute(CompactKey.encode(key), (k, current) -> {
+            watchers.computeIfAbsent(key, w -> ConcurrentHashMap.newKeySet()).add(transaction);
+            return current;
+        });
+    }
+    
+    public void unwatch(String key, Transaction transaction) {
+        watchers.computeIfPresent(key, (k, watching) -> {
+            watching.remove(transaction);
+            return watching.isEmpty() ? null : watching;
+        });
+    }
+    
+    /**
+     * Operazione EXEC - esegue i comandi in modo atomico rispetto a ogni altra
+     * scrittura sulle chiavi indicate (quelle dei comandi e quelle osservate).
+     * Restituisce null, senza eseguire nulla, se una chiave osservata è cambiata.
+     */
+    public <T> T executeTransaction(Set<String> keys, Transaction transaction, Supplier<T> commands) {
+        return runLocked(keys, () -> {
+            // Le scritture sulle chiavi osservate iniziate prima del lock sono
+            // concluse (tengono la striscia in modo condiviso): se hanno
+            // modificato una chiave la segnalazione è già visibile
+            if (transaction.isModified()) {
+                return null;
+            }
+            return commands.get();
+        });
+    }
+    
+    /**
+     * Esegue body con i lock striped delle chiavi indicate (es. una stored
+     * procedure): rispetto a quelle chiavi è atomico come MSET o EXEC.
+     * Al termine della più esterna esegue le azioni rimandate con {@link #afterUnlock}.
+     */
+    public <T> T runLocked(Collection<String> keys, Supplier<T> body) {
+        boolean outermost = deferred.get() == null;
+        if (outermost) {
+            deferred.set(new ArrayList<>());
+        }
+        try {
+            int[] stripes = multiKeyLocks.lock(keys);
+            try {
+                return body.get();
+            } finally {
+                multiKeyLocks.unlock(stripes);
+            }
+        } finally {
+            if (outermost) {
+                List<Runnable> actions = deferred.get();
+                deferred.remove();
+                actions.forEach(Runnable::run);
+            }
+        }
+    }
+    
+    /**
+     * Esegue action quando il thread corrente ha rilasciato i lock di
+     * {@link #runLocked} (subito se non ne tiene): serve a una stored
+     * procedure per scrivere una chiave che non ha bloccato, come lo stream
+     * degli eventi, senza attenderne la striscia tenendo le proprie. Dentro
+     * EXEC l'azione parte alla fine della transazione. Non deve lanciare eccezioni.
+     */
+    public void afterUnlock(Runnable action) {
+        List<Runnable> actions = deferred.get();
+        if (actions != null) {
+            actions.add(action);
+        } else {
+            action.run();
+        }
+    }
+    
+    // === MEMORIA ===
+    
+    /**
+     * Limita la memoria stimata di chiavi e valori a maxBytes (0 = nessun
+     * limite), rispettato con la policy indicata. Va chiamato prima di
+     * caricare i dati.
+     */
+    void limitMemory(long maxBytes, Eviction.Policy policy) {
+        eviction = maxBytes > 0 ? new Eviction(maxBytes, policy) : null;
+    }
+    
+    /**
+     * Chiamato prima di un comando che può occupare memoria: se il limite è
+     * superato cancella chiavi secondo la policy finché non rientra; se non
+     * ci riesce (noeviction, o nessuna chiave con scadenza per le policy
+     * volatile-*) lancia IllegalStateException e il comando non va eseguito.
+     */
+    public void ensureMemory() {
+        Eviction limit = eviction;
+        if (limit == null || usedMemory.sum() <= limit.maxBytes()) {
+            return;
+        }
+        if (limit.evicts()) {
+            evictionLock.lock();
+            try {
+                int failures = 0;
+                while (usedMemory.sum() > limit.maxBytes()) {
+                    Object victim = limit.nextVictim(expires.keySet());
+                    if (victim == null || (!evict(victim, limit) && ++failures == MAX_EVICTION_FAILURES)) {
+                        break;
+                    }
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        if (usedMemory.sum() > limit.maxBytes()) {
+            throw new IllegalStateException(OUT_OF_MEMORY);
+        }
+    }
+    
+    /**
+     * Cancella una chiave per fare posto, se esiste ancora, se per le policy
+     * volatile-* ha ancora una scadenza e se nessun'altra operazione
+     * multi-chiave la sta usando: non si attende mai un lock, così chi
+     * tiene i lock di una transazione può fare posto a sua volta, senza
+     * però cancellare le chiavi della transazione stessa.
+     * Restituisce true se l'ha cancellata.
+     */
+    private boolean evict(Object encoded, Eviction limit) {
+        String key = encoded.toString();
+        Lock stripe = multiKeyLocks.shared(key);
+        if (multiKeyLocks.heldExclusively(key) || !stripe.tryLock()) {
+            return false;
+        }
+        boolean[] evicted = new boolean[1];
+        try {
+            storage.compute(encoded, (k, current) -> {
+                if (current == null || (limit.policy().volatileOnly && !expires.containsKey(k))) {
+                    return current;
+                }
+                evicted[0] = true;
+                return apply(key, k, current, value -> null, KEEP_TTL, false);
+            });
+        } finally {
+            stripe.unlock();
+        }
+        if (evicted[0]) {
+            evictedKeys.increment();
+        }
+        return evicted[0];
+    }
+    
+    /**
+     * Byte stimati di una voce (0 se il valore è null).
+     */
+    private long entryBytes(Object encoded, Object value, long deadline) {
+        if (value == null) {
+            return 0;
+        }
+        long bytes = ENTRY_BYTES
+            + (encoded instanceof String key ? Hash.estimatedBytes(key) : COMPACT_KEY_BYTES)
+            + (value instanceof Hash hash ? hash.estimatedBytes()
+                : value instanceof Stream stream ? stream.estimatedBytes()
+                : value instanceof Decimal ? Decimal.ESTIMATED_BYTES
+                : Hash.estimatedBytes((String) value));
+        if (deadline != 0) {
+            bytes += EXPIRY_BYTES;
+        }
+        Eviction limit = eviction;
+        if (limit != null && limit.evicts()) {
+            bytes += ACCESS_BYTES;
+        }
+        return bytes;
+    }
+    
+    /**
+     * Memoria stimata occupata, limite (0 = nessuno), policy e chiavi
+     * cancellate per fare posto (per INFO).
+     */
+    public long usedMemory() {
+        return usedMemory.sum();
+    }
+    
+    public long maxMemory() {
+        Eviction limit = eviction;
+        return limit != null ? limit.maxBytes() : 0;
+    }
+    
+    public String memoryPolicy() {
+        Eviction limit = eviction;
+        return limit != null ? limit.policy().label() : Eviction.Policy.NOEVICTION.label();
+    }
+    
+    public long evictedKeys() {
+        return evictedKeys.sum();
+    }
+    
+    // === SCADENZE ===
+    
+    /**
+     * Operazione PEXPIREAT (EXPIRE/PEXPIRE nel protocollo) - imposta la
+     * scadenza della chiave a deadline (millisecondi epoch); una deadline
+     * già passata cancella la chiave. Restituisce false se la chiave non esiste.
+     */
+    public boolean expireAt(String key, long deadline) {
+        if (deadline <= System.currentTimeMillis()) {
+            return removeKey(key) != null;
+        }
+        boolean[] exists = new boolean[1];
+        update(key, current -> {
+            exists[0] = current != null;
+            return current;
+        }, deadline, true);
+        return exists[0];
+    }
+    
+    /**
+     * Operazione PTTL - millisecondi alla scadenza, -1 se la chiave non
+     * scade, -2 se non esiste.
+     */
+    public long timeToLive(String key) {
+        if (read(key) == null) {
+            return -2;
+        }
+        TimingWheel.Entry expiry = expires.get(CompactKey.encode(key));
+        return expiry != null ? Math.max(0, expiry.deadline - System.currentTimeMillis()) : -1;
+    }
+    
+    /**
+     * Operazione PERSIST - toglie la scadenza. Restituisce true se la
+     * chiave esisteva e aveva una scadenza.
+     */
+    public boolean persist(String key) {
+        Object encoded = CompactKey.encode(key);
+        boolean[] removed = new boolean[1];
+        update(key, current -> {
+            // Dentro il compute della chiave: expires non può cambiare sotto di noi
+            removed[0] = current != null && expires.containsKey(encoded);
+            return current;
+        }, 0, true);
+        return removed[0];
+    }
+    
+    /**
+     * Chiavi con una scadenza e chiavi cancellate perché scadute (per INFO).
+     */
+    public int expiringKeys() {
+        return expires.size();
+    }
+    
+    public long expiredKeys() {
+        return expiredKeys.sum();
+    }
+    
+    /**
+     * Valore della chiave, null se assente o scaduta (in quel caso la cancella).
+     */
+    private Object read(String key) {
+        Object encoded = CompactKey.encode(key);
+        Object value = storage.get(encoded);
+        if (value != null && isExpired(encoded)) {
+            // apply tratta la chiave scaduta come assente e la cancella; una
+            // chiave non bloccata da EXEC o CALL la cancellerà la scadenza attiva
+            if (!multiKeyLocks.lockedElsewhere(key)) {
+                update(key, current -> current);
+            }
+            return null;
+        }
+        Eviction limit = eviction;
+        if (value != null && limit != null && limit.evicts()) {
+            limit.touch(encoded);
+        }
+        return value;
+    }
+    
+    private boolean isExpired(Object encoded) {
+        if (expires.isEmpty()) {
+            return false;
+        }
+        TimingWheel.Entry expiry = expires.get(encoded);
+        return expiry != null && expiry.deadline <= System.currentTimeMillis();
+    }
+    
+    /**
+     * Scadenza attiva, dal thread della timing wheel: cancella la chiave se
+     * è scaduta e dice se la voce è ancora quella della chiave (scadenza
+     * allungata nel frattempo) e va quindi ricollocata.
+     */
+    private boolean expire(TimingWheel.Entry entry) {
+        update(entry.key.toString(), current -> current);
+        return expires.get(entry.key) == entry;
+    }
+    
+    /**
+     * Deadline della chiave; va chiamato dentro il suo compute.
+     */
+    private long deadlineOf(Object encoded, Object current) {
+        if (current == null || expires.isEmpty()) {
+            return 0;
+        }
+        TimingWheel.Entry expiry = expires.get(encoded);
+        return expiry != null ? expiry.deadline : 0;
+    }
+    
+    private static Object withDeadline(Object value, long deadline) {
+        return deadline != 0 ? new Expiring(value, deadline) : value;
+    }
+    
+    /**
+     * Applica un record letto da snapshot o log: un valore (null se
+     * cancellato), un valore con scadenza o un cambio di scadenza. Le
+     * scadenze già passate non vengono applicate qui: i record successivi
+     * del log possono ancora riguardare la chiave, che verrà poi cancellata
+     * normalmente dalla scadenza attiva. Usato anche dalla replica per lo
+     * stream del primario.
+     */
+    void restore(String key, Object value) {
+        if (value instanceof Expiring expiring) {
+            Object restored = encoded(expiring.value());
+            update(key, current -> restored != null ? restored : current, expiring.deadline(), false);
+        } else if (value instanceof Stream.Change change) {
+            update(key, current -> change.operation().apply(asStream(current)), KEEP_TTL, false);
+            wakeStreamReaders();
+        } else {
+            Object restored = encoded(value);
+            update(key, current -> restored, KEEP_TTL, false);
+        }
+    }
+    
+    // Le stringhe lette da snapshot e log tornano Decimal se sono numeri
+    private static Object encoded(Object value) {
+        return value instanceof String text ? Decimal.encode(text) : value;
+    }
+    
+    // Scritture su storage: tutte passano da update, che aggiorna valore,
+    // scadenza e keyIndex in modo atomico rispetto alle altre scritture sulla
+    // stessa chiave
+    
+    /**
+     * Applica function al valore corrente (null se assente) e salva il
+     * risultato; se il risultato è null la chiave viene rimossa.
+     * Restituisce il nuovo valore. Un'eccezione lanciata da function lascia
+     * la chiave invariata.
+     */
+    private Object update(String key, UnaryOperator<Object> function) {
+        return update(key, function, KEEP_TTL, true);
+    }
+    
+    /**
+     * Come {@link #update(String, UnaryOperator)}, impostando anche la
+     * scadenza: deadline in millisecondi epoch, 0 per toglierla, KEEP_TTL
+     * per lasciarla com'è. Con honorExpiry false (replay) una chiave
+     * scaduta non viene trattata come assente.
+     */
+    private Object update(String key, UnaryOperator<Object> function, long deadline, boolean honorExpiry) {
+        if (multiKeyLocks.lockedElsewhere(key)) {
+            // Prendere la striscia qui potrebbe andare in deadlock con chi la tiene
+            throw new IllegalStateException("key " + key + " is not locked by the running transaction or procedure");
+        }
+        Object encoded = CompactKey.encode(key);
+        // Striscia condivisa: se la chiave è coinvolta in un'operazione
+        // multi-chiave o in una transazione si attende che finisca, e una
+        // transazione che inizia attende che questa scrittura sia conclusa
+        Lock stripe = multiKeyLocks.shared(key);
+        stripe.lock();
+        try {
+            return storage.compute(encoded, (k, current) -> apply(key, k, current, function, deadline, honorExpiry));
+        } finally {
+            stripe.unlock();
+        }
+    }
+    
+    // key è la chiave in chiaro (log e WATCH), encoded l'istanza conservata da storage
+    private Object apply(String key, Object encoded, Object current, UnaryOperator<Object> function,
+                         long deadline, boolean honorExpiry) {
+        TimingWheel.Entry expiry = current == null || expires.isEmpty() ? null : expires.get(encoded);
+        long storedDeadline = expiry != null ? expiry.deadline : 0;
+        // Una chiave scaduta ma non ancora cancellata è assente: chi scrive la ricrea senza scadenza
+        boolean expired = honorExpiry && storedDeadline != 0 && storedDeadline <= System.currentTimeMillis();
+        Object updated = function.apply(expired ? null : current);
+        long newDeadline = updated == null ? 0
+            : deadline != KEEP_TTL ? deadline
+            : expired ? 0 : storedDeadline;
+        if (updated == current && newDeadline == storedDeadline) {
+            return updated;
+        }
+        
+        // Letto prima di controllare le repliche: una replica si registra
+        // prima che parta la visita del suo snapshot, quindi se la visita
+        // conserverà il valore precedente la riga va anche nel suo stream
+        SnapshotCursor cursor = snapshotCursor;
+        
+        // Accodato prima di toccare l'indice: se il log fallisce la chiave resta invariata
+        AppendOnlyFile log = appendOnlyFile;
+        if (log != null || replication.hasReplicas()) {
+            if (updated != current) {
+                record(log, AppendOnlyFile.encode(key, current, updated));
+            }
+            if (updated != null && newDeadline != storedDeadline) {
+                record(log, AppendOnlyFile.encodeDeadline(key, newDeadline));
+            }
+        }
+        if (cursor != null) {
+            cursor.beforeWrite(encoded, current, storedDeadline);
+        }
+        if (expired) {
+            expiredKeys.increment();
+        }
+        if (newDeadline != storedDeadline) {
+            if (newDeadline == 0) {
+                expires.remove(encoded);
+            } else if (expiry != null && newDeadline > storedDeadline) {
+                // La voce è già nella ruota: quando scatta si ricolloca alla nuova deadline
+                expiry.deadline = newDeadline;
+            } else {
+                TimingWheel.Entry entry = new TimingWheel.Entry(encoded, newDeadline);
+                expires.put(encoded, entry);
+                expiryWheel.schedule(entry);
+            }
+        }
+        usedMemory.add(entryBytes(encoded, updated, newDeadline) - entryBytes(encoded, current, storedDeadline));
+        Eviction limit = eviction;
+        if (current == null && updated != null) {
+            keyIndex.add(encoded);
+            if (limit != null && limit.evicts()) {
+                limit.created(encoded);
+            }
+        } else if (current != null && updated == null) {
+            keyIndex.remove(encoded);
+            if (limit != null && limit.evicts()) {
+                limit.removed(encoded);
+            }
+        } else if (limit != null && limit.evicts()) {
+            limit.touch(encoded);
+        }
+        if (!watchers.isEmpty()) {
+            Set<Transaction> watching = watchers.get(key);
+            if (watching != null) {
+                watching.forEach(Transaction::markModified);
+            }
+        }
+        if (pubSub.keyspaceEvents()) {
+            // Dentro il compute: le notifiche di una chiave arrivano nell'ordine delle scritture
+            pubSub.notifyKeyspace(key, keyspaceEvent(current, updated, expired, newDeadline));
+        }
+        return updated;
+    }
+    
+    private static String keyspaceEvent(Object current, Object updated, boolean expired, long newDeadline) {
+        if (updated == null) {
+            return expired ? "expired" : "del";
+        }
+        if (updated == current) {
+            return newDeadline != 0 ? "expire" : "persist";
+        }
+        if (updated instanceof Stream stream) {
+            return current instanceof Stream previous && stream.lastId().equals(previous.lastId()) ? "xtrim" : "xadd";
+        }
+        return updated instanceof Hash ? "hset" : "set";
+    }
+    
+    // Una riga va prima nel log, poi alle repliche: se il log fallisce non la ricevono
+    private void record(AppendOnlyFile log, byte[] line) {
+        if (log != null) {
+            log.append(line);
+        }
+        replication.feed(line);
+    }
+    
+    // Come SET: il nuovo valore non ha scadenza
+    private void store(String key, Object value) {
+        update(key, current -> value, 0, true);
+    }
+    
+    private Object removeKey(String key) {
+        Object[] previous = new Object[1];
+        update(key, current -> {
+            previous[0] = current;
+            return null;
+        });
+        return previous[0];
+    }
+    
+    private static BigDecimal parseDecimal(String value) {
+        try {
+            return new BigDecimal(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("value is not a valid float");
+        }
+    }
+    
+    /**
+     * Importo in centesimi, da un argomento o da un valore memorizzato; un
+     * campo assente vale 0. I numeri in forma canonica non passano da BigDecimal.
+     */
+    private static long parseCents(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            Decimal number = value instanceof Decimal stored ? stored : Decimal.parse(value.toString());
+            if (number != null) {
+                return number.unscaled(2);
+            }
+            return parseDecimal(value.toString()).movePointRight(2).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("value is not a valid amount");
+        }
+    }
+    
+    /**
+     * Valore intero di un numero memorizzato (assente = 0); NumberFormatException
+     * se non è un intero.
+     */
+    private static long integerValue(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Decimal number && number.isInteger()) {
+            return number.unscaled();
+        }
+        return Long.parseLong(value.toString().trim());
+    }
+    
+    /**
+     * Somma esatta di HINCRBYFLOAT (assente = 0): sui long se il valore è un
+     * Decimal e il risultato ci sta, altrimenti con BigDecimal.
+     */
+    private static Object addDecimal(Object current, BigDecimal delta, Decimal fixedDelta) {
+        // Con il motore off-heap i campi degli hash arrivano come testo
+        Decimal number = current instanceof String text ? Decimal.parse(text) : (Decimal) current;
+        if (fixedDelta != null && (current == null || number != null)) {
+            try {
+                return number == null ? fixedDelta : number.add(fixedDelta);
+            } catch (ArithmeticException e) {
+                // Troppe cifre per un long: si passa a BigDecimal
+            }
+        }
+        BigDecimal base = current == null ? BigDecimal.ZERO
+            : number != null ? number.toBigDecimal() : parseDecimal(current.toString());
+        return base.add(delta).toPlainString();
+    }
+    
+    private static long addExact(long a, long b) {
+        try {
+            return Math.addExact(a, b);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("increment or decrement would overflow");
+        }
+    }
+    
+    private static String asString(Object value) {
+        Object string = asStringValue(value);
+        return string != null ? string.toString() : null;
+    }
+    
+    /**
+     * Valore di tipo stringa com'è memorizzato: String, Decimal o null.
+     */
+    private static Object asStringValue(Object value) {
+        if (value == null || value instanceof String || value instanceof Decimal) {
+            return value;
+        }
+        throw new WrongTypeException();
+    }
+    
+    /**
+     * Stream contenuto nel valore; uno stream nuovo e vuoto se il valore è null.
+     */
+    private static Stream asStream(Object value) {
+        if (value == null) {
+            return Stream.empty();
+        }
+        if (value instanceof Stream stream) {
+            return stream;
+        }
+        throw new WrongTypeException();
+    }
+    
+    private static Hash asHash(Object value) {
+        if (value == null) {
+            return Hash.EMPTY;
+        }
+        if (value instanceof Hash hash) {
+            return hash;
+        }
+        throw new WrongTypeException();
+    }
+    
+    /**
+     * Operazione SIZE - restituisce numero di chiavi.
+     */
+    public int size() {
+        return storage.size();
+    }
+    
+    /**
+     * Operazione FLUSH - cancella tutto (solo per testing). Prende tutte le
+     * strisce in modo esclusivo, quindi è atomica rispetto alle operazioni
+     * multi-chiave; non si può eseguire dentro EXEC o CALL.
+     */
+    public void flush() {
+        int[] stripes = multiKeyLocks.lockAll();
+        try {
+            // Chiave per chiave, così indice e storage restano allineati
+            // anche con scritture concorrenti
+            for (Object key : keyIndex) {
+                removeKey(key.toString());
+            }
+        } finally {
+            multiKeyLocks.unlock(stripes);
         }
     }
 }
\ No newline at end of file
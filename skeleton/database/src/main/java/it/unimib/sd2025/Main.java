@@ -2,36 +2,213 @@ package it.unimib.sd2025;
 
 import java.net.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Classe principale in cui parte il database.
  */
 public class Main {
     /**
-     * Porta di ascolto.
+     * Porta di ascolto ({@code -Ddb.port}, default 3030).
      */
-    public static final int PORT = 3030;
+    public static final int PORT = Integer.getInteger("db.port", 3030);
+
+    /**
+     * Coda di connessioni in attesa di accept (il default di 50 è troppo basso
+     * quando migliaia di client si connettono insieme).
+     */
+    static final int ACCEPT_BACKLOG = 1024;
+
+    /**
+     * Risposte in pipeline trattenute per una connessione, in caratteri:
+     * raggiunto il limite partono anche se il client ha già inviato altri
+     * comandi, così un client che non legge non fa crescere la memoria.
+     */
+    static final int MAX_PENDING_OUTPUT = 64 * 1024;
     
     /**
-     * Istanza singleton del database.
+     * Modello di gestione delle connessioni, scelto all'avvio con
+     * {@code -Ddb.server.mode=thread|virtual|nio} (default: thread).
+     */
+    private static final String SERVER_MODE = System.getProperty("db.server.mode", "thread");
+
+    /**
+     * Numero di event loop per la modalità nio.
+     */
+    private static final int NIO_THREADS = Integer.getInteger("db.nio.threads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Persistenza su log append-only ({@code -Ddb.aof.enabled=false} per
+     * disattivarla) e policy di fsync: always, interval (ogni
+     * {@code db.aof.fsyncIntervalMs} ms) oppure no (gestito dal sistema operativo).
+     */
+    private static final boolean AOF_ENABLED = Boolean.parseBoolean(System.getProperty("db.aof.enabled", "true"));
+    private static final String AOF_PATH = System.getProperty("db.aof.path", "data/appendonly.aof");
+    private static final String AOF_FSYNC = System.getProperty("db.aof.fsync", "interval");
+    private static final long AOF_FSYNC_INTERVAL_MS = Long.getLong("db.aof.fsyncIntervalMs", 1000L);
+
+    /**
+     * Snapshot binari periodici ({@code -Ddb.snapshot.enabled=false} per
+     * disattivarli), salvati in background ogni {@code db.snapshot.intervalSeconds}
+     * secondi (0 = solo con BGSAVE e allo spegnimento senza log).
+     */
+    private static final boolean SNAPSHOT_ENABLED = Boolean.parseBoolean(System.getProperty("db.snapshot.enabled", "true"));
+    private static final String SNAPSHOT_PATH = System.getProperty("db.snapshot.path", "data/dump.snap");
+    private static final long SNAPSHOT_INTERVAL_SECONDS = Long.getLong("db.snapshot.intervalSeconds", 300L);
+
+    /**
+     * Riscrittura automatica del log quando supera {@code db.aof.rewriteMinSizeMb}
+     * MB ed è cresciuto di {@code db.aof.rewritePercentage}% dall'ultima.
+     */
+    private static final long AOF_REWRITE_MIN_SIZE = Long.getLong("db.aof.rewriteMinSizeMb", 64L) * 1024 * 1024;
+    private static final int AOF_REWRITE_PERCENTAGE = Integer.getInteger("db.aof.rewritePercentage", 100);
+
+    /**
+     * Limite di memoria stimata per chiavi e valori in MB ({@code db.memory.maxMb},
+     * 0 = nessun limite) e cosa fare quando è superato ({@code db.memory.policy}:
+     * noeviction, allkeys-lru, allkeys-lfu, volatile-lru o volatile-lfu).
+     */
+    private static final long MEMORY_MAX_BYTES = Long.getLong("db.memory.maxMb", 0L) * 1024 * 1024;
+    private static final String MEMORY_POLICY = System.getProperty("db.memory.policy", "noeviction");
+
+    /**
+     * Indirizzo {@code host:porta} del primario di cui questo database è una
+     * replica in sola lettura ({@code db.replicaof}); se assente è un primario.
+     */
+    private static final String REPLICA_OF = System.getProperty("db.replicaof");
+
+    /**
+     * Istanza singleton del database, con il motore di storage scelto da
+     * {@code -Ddb.storage=heap|offheap} (default: heap).
      */
-    private static final KeyValueDatabase database = new KeyValueDatabase();
+    private static final KeyValueDatabase database =
+        new KeyValueDatabase(StorageEngine.create(System.getProperty("db.storage", "heap")));
 
     /**
      * Avvia il database e l'ascolto di nuove connessioni.
      */
     public static void startServer() throws IOException {
-        // Carica dati iniziali
-        database.loadInitialData();
-        
-        var server = new ServerSocket(PORT);
-        System.out.println("Database listening at localhost:" + PORT);
-        System.out.println("Initial database size: " + database.size() + " entries");
+        database.limitMemory(MEMORY_MAX_BYTES, Eviction.Policy.parse(MEMORY_POLICY));
+        if (REPLICA_OF != null) {
+            startReplica();
+            return;
+        }
+
+        // Se il log esiste contiene già tutto lo stato: lo snapshot serve
+        // solo senza log. I dati iniziali servono solo al primo avvio
+        boolean logExists = AOF_ENABLED && Files.exists(Paths.get(AOF_PATH));
+        boolean restored = false;
+        if (SNAPSHOT_ENABLED) {
+            restored = database.openSnapshot(Paths.get(SNAPSHOT_PATH), !logExists);
+        }
+        if (AOF_ENABLED) {
+            database.openAppendOnlyFile(Paths.get(AOF_PATH),
+                AppendOnlyFile.Fsync.parse(AOF_FSYNC), AOF_FSYNC_INTERVAL_MS);
+            if (restored) {
+                // Log nuovo su dati caricati dallo snapshot: li registra subito
+                database.rewriteAppendOnlyFile();
+            }
+            restored |= logExists;
+        }
+        if (!restored) {
+            database.loadInitialData();
+        }
+
+        var persistence = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("db-persistence").daemon().factory());
+        if (SNAPSHOT_ENABLED && SNAPSHOT_INTERVAL_SECONDS > 0) {
+            persistence.scheduleWithFixedDelay(database::startBackgroundSave,
+                SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        if (AOF_ENABLED) {
+            persistence.scheduleWithFixedDelay(
+                () -> database.rewriteAppendOnlyFileIfNeeded(AOF_REWRITE_MIN_SIZE, AOF_REWRITE_PERCENTAGE),
+                1, 1, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(Main::shutdown));
+        serve();
+    }
+
+    /**
+     * Avvio come replica: niente log, snapshot o dati iniziali, perché i
+     * dati arrivano dal primario.
+     */
+    private static void startReplica() throws IOException {
+        database.replicaOf(REPLICA_OF);
+        serve();
+    }
+
+    private static void serve() throws IOException {
+        // Registra le stored procedure invocabili con CALL
+        VoucherProcedures.register();
+
+        ServerInfo.setMode(SERVER_MODE);
+        switch (SERVER_MODE) {
+            case "thread":
+                startThreadPerConnectionServer(Thread.ofPlatform().name("db-handler-", 0), "thread per connection");
+                break;
+            case "virtual":
+                startThreadPerConnectionServer(Thread.ofVirtual().name("db-handler-", 0), "virtual thread per connection");
+                break;
+            case "nio":
+                printStartup("nio, " + NIO_THREADS + " event loops");
+                new NioServer(PORT, database, NIO_THREADS).serve();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown server mode: " + SERVER_MODE);
+        }
+    }
+
+    /**
+     * Allo spegnimento chiude il log, oppure, se il log è disattivato, salva
+     * un ultimo snapshot.
+     */
+    private static void shutdown() {
+        if (SNAPSHOT_ENABLED && !AOF_ENABLED) {
+            try {
+                database.saveSnapshot();
+            } catch (IllegalStateException | IOException e) {
+                System.err.println("Error saving snapshot: " + e.getMessage());
+            }
+        }
+        try {
+            database.closeAppendOnlyFile();
+        } catch (IOException e) {
+            System.err.println("Error closing append-only file: " + e.getMessage());
+        }
+    }
+
+    private static void printStartup(String mode) {
+        System.out.println("Database listening at localhost:" + PORT + " (" + mode + ")");
+        System.out.println("Initial database size: " + database.size() + " entries (" + database.storageEngine().name() + " storage)");
+        System.out.println("Stored procedures: " + Procedures.size());
+        if (database.isReplica()) {
+            System.out.println("Read-only replica of " + REPLICA_OF);
+        }
+        if (database.maxMemory() > 0) {
+            System.out.println("Memory limit: " + database.maxMemory() / (1024 * 1024) + " MB (" + database.memoryPolicy() + ")");
+        }
+    }
+
+    /**
+     * Un thread dedicato per ogni connessione accettata: di piattaforma nella
+     * modalità classica, virtuale nella modalità virtual. Con i virtual thread
+     * le letture bloccanti liberano il carrier, quindi decine di migliaia di
+     * connessioni inattive costano pochi KB di heap ciascuna invece di uno stack nativo.
+     */
+    private static void startThreadPerConnectionServer(Thread.Builder threads, String mode) throws IOException {
+        var server = new ServerSocket(PORT, ACCEPT_BACKLOG);
+        printStartup(mode);
 
         try {
             while (true) {
                 Socket clientSocket = server.accept();
-                new Handler(clientSocket, database).start();
+                threads.start(new Handler(clientSocket, database));
             }
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
@@ -41,33 +218,83 @@ public class Main {
     }
 
     /**
-     * Handler di una connessione del client.
-     * Implementa protocollo testuale simile a Redis.
+     * Handler di una connessione del client (modalità thread o virtual).
+     * Il protocollo è interpretato da {@link CommandProcessor}.
+     * Usa BufferedReader/BufferedWriter con flush esplicito: nel JDK 21 questi
+     * stream si sincronizzano con lock interni e non con monitor, quindi non
+     * bloccano il carrier di un virtual thread durante l'I/O.
      */
-    private static class Handler extends Thread {
+    private static class Handler implements Runnable {
         private final Socket client;
         private final KeyValueDatabase database;
-        private PrintWriter out;
+        private final CommandProcessor processor;
+        private BufferedWriter out;
         private BufferedReader in;
 
         public Handler(Socket client, KeyValueDatabase database) {
             this.client = client;
             this.database = database;
+            this.processor = new CommandProcessor(database);
         }
 
         @Override
         public void run() {
+            ServerInfo.connectionOpened();
             try {
-                this.out = new PrintWriter(client.getOutputStream(), true);
-                this.in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                this.out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+                this.in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
 
+                // Pipelining: finché il client ha già inviato altri comandi
+                // le risposte restano qui e partono con un'unica scrittura
+                StringBuilder responses = new StringBuilder();
                 String inputLine;
                 while ((inputLine = in.readLine()) != null) {
-                    String response = processCommand(inputLine.trim());
-                    out.println(response);
+                    if (CommandProcessor.isSync(inputLine) && !database.isReplica()) {
+                        // La connessione diventa lo stream di una replica, dopo
+                        // le risposte già pronte (durabili come tutte le altre)
+                        if (!database.awaitDurable()) {
+                            break;
+                        }
+                        out.write(responses.toString());
+                        out.flush();
+                        database.serveReplica(client);
+                        break;
+                    }
+                    if (CommandProcessor.isSubscribe(inputLine)) {
+                        // La connessione diventa un sottoscrittore, dopo le risposte già pronte
+                        if (!database.awaitDurable()) {
+                            break;
+                        }
+                        out.write(responses.toString());
+                        out.flush();
+                        processor.close();
+                        database.serveSubscriber(client, in, out, inputLine);
+                        break;
+                    }
+                    if (CommandProcessor.isBlocking(inputLine) && responses.length() > 0) {
+                        // Le risposte già pronte non aspettano un XREAD ... BLOCK
+                        if (!database.awaitDurable()) {
+                            break;
+                        }
+                        out.write(responses.toString());
+                        out.flush();
+                        responses.setLength(0);
+                    }
+                    responses.append(processor.process(inputLine.trim())).append('\n');
+                    boolean quit = CommandProcessor.isQuit(inputLine);
+
+                    if (!in.ready() || quit || responses.length() >= MAX_PENDING_OUTPUT) {
+                        // Nessuna risposta parte prima che le sue scritture siano durabili
+                        if (!database.awaitDurable()) {
+                            break;
+                        }
+                        out.write(responses.toString());
+                        out.flush();
+                        responses.setLength(0);
+                    }
                     
                     // Se il comando è QUIT, termina la connessione
-                    if ("QUIT".equalsIgnoreCase(inputLine.trim())) {
+                    if (quit) {
                         break;
                     }
                 }
@@ -75,122 +302,12 @@ public class Main {
             } catch (IOException e) {
                 System.err.println("Client handler error: " + e.getMessage());
             } finally {
+                processor.close();
                 closeConnection();
+                ServerInfo.connectionClosed();
             }
         }
 
-        /**
-         * Processa un comando ricevuto dal client.
-         * Protocollo testuale: COMANDO [arg1] [arg2] ...
-         */
-        private String processCommand(String command) {
-            if (command.isEmpty()) {
-                return "ERR empty command";
-            }
-
-            String[] parts = command.split("\\s+");
-            String cmd = parts[0].toUpperCase();
-
-            try {
-                switch (cmd) {
-                    case "SET":
-                        return handleSet(parts);
-                    case "GET":
-                        return handleGet(parts);
-                    case "DEL":
-                    case "DELETE":
-                        return handleDelete(parts);
-                    case "EXISTS":
-                        return handleExists(parts);
-                    case "KEYS":
-                        return handleKeys(parts);
-                    case "INCR":
-                        return handleIncrement(parts);
-                    case "SIZE":
-                        return handleSize();
-                    case "FLUSH":
-                        return handleFlush();
-                    case "PING":
-                        return "PONG";
-                    case "QUIT":
-                        return "BYE";
-                    default:
-                        return "ERR unknown command: " + cmd;
-                }
-            } catch (Exception e) {
-                return "ERR " + e.getMessage();
-            }
-        }
-
-        private String handleSet(String[] parts) {
-            if (parts.length < 3) {
-                return "ERR SET requires key and value";
-            }
-            
-            String key = parts[1];
-            // Concatena tutti gli argomenti dal terzo in poi come valore
-            StringBuilder valueBuilder = new StringBuilder();
-            for (int i = 2; i < parts.length; i++) {
-                if (i > 2) valueBuilder.append(" ");
-                valueBuilder.append(parts[i]);
-            }
-            String value = valueBuilder.toString();
-            
-            boolean success = database.set(key, value);
-            return success ? "OK" : "ERR invalid key";
-        }
-
-        private String handleGet(String[] parts) {
-            if (parts.length != 2) {
-                return "ERR GET requires exactly one key";
-            }
-            
-            String value = database.get(parts[1]);
-            return value != null ? "OK " + value : "NIL";
-        }
-
-        private String handleDelete(String[] parts) {
-            if (parts.length != 2) {
-                return "ERR DELETE requires exactly one key";
-            }
-            
-            boolean deleted = database.delete(parts[1]);
-            return deleted ? "OK" : "NIL";
-        }
-
-        private String handleExists(String[] parts) {
-            if (parts.length != 2) {
-                return "ERR EXISTS requires exactly one key";
-            }
-            
-            boolean exists = database.exists(parts[1]);
-            return exists ? "OK 1" : "OK 0";
-        }
-
-        private String handleKeys(String[] parts) {
-            String pattern = parts.length > 1 ? parts[1] : "*";
-            String keys = database.getKeys(pattern);
-            return "OK " + keys;
-        }
-
-        private String handleIncrement(String[] parts) {
-            if (parts.length != 2) {
-                return "ERR INCR requires exactly one key";
-            }
-            
-            String newValue = database.increment(parts[1]);
-            return newValue != null ? "OK " + newValue : "ERR value is not a number";
-        }
-
-        private String handleSize() {
-            return "OK " + database.size();
-        }
-
-        private String handleFlush() {
-            database.flush();
-            return "OK";
-        }
-
         private void closeConnection() {
             try {
                 if (out != null) out.close();
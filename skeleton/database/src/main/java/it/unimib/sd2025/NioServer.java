@@ -0,0 +1,487 @@
+package it.unimib.sd2025;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Server non bloccante basato su {@link Selector}.
+ *
+ * Un thread accetta le connessioni e le distribuisce a rotazione su un
+ * piccolo numero di event loop; ogni event loop gestisce con un solo
+ * selector la lettura, l'esecuzione dei comandi e la scrittura delle
+ * risposte di tutte le sue connessioni. Il protocollo è lo stesso del
+ * server a thread per connessione ({@link CommandProcessor}). I comandi che
+ * possono attendere a lungo (XREAD ... BLOCK) vengono eseguiti su un
+ * virtual thread, e la connessione resta ferma finché non rispondono.
+ * Con fsync always le risposte di un blocco di comandi attendono che le
+ * loro scritture siano su disco senza fermare l'event loop: la connessione
+ * smette di leggere e il thread di scrittura del log la risveglia
+ * ({@link KeyValueDatabase#whenDurable}).
+ */
+class NioServer {
+    /**
+     * Lunghezza massima di una riga di comando: oltre, la connessione viene chiusa.
+     */
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final int port;
+    private final KeyValueDatabase database;
+    private final EventLoop[] loops;
+
+    NioServer(int port, KeyValueDatabase database, int ioThreads) throws IOException {
+        this.port = port;
+        this.database = database;
+        this.loops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Avvia gli event loop e accetta connessioni sul thread chiamante.
+     */
+    void serve() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), Main.ACCEPT_BACKLOG);
+            int next = 0;
+            while (true) {
+                SocketChannel client = server.accept();
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /**
+     * Thread di I/O con il proprio selector.
+     */
+    private class EventLoop extends Thread {
+        private final Selector selector;
+
+        // Canali accettati dal thread principale, registrati dall'event loop stesso
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        // Azioni da eseguire sull'event loop, inviate da altri thread
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            super("db-nio-" + index);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerPending();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(channel, key, this));
+                } catch (ClosedChannelException e) {
+                    // Il client ha chiuso prima della registrazione
+                }
+            }
+        }
+    }
+
+    /**
+     * Stato di una connessione: buffer di lettura, buffer di scrittura e interprete dei comandi.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final EventLoop loop;
+        private final CommandProcessor processor;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private boolean closeAfterWrite = false;
+        private boolean syncRequested = false;
+        // Righe rimaste nel buffer di lettura perché le risposte hanno raggiunto Main.MAX_PENDING_OUTPUT
+        private boolean linesPending = false;
+        // Comando SUBSCRIBE o PSUBSCRIBE che rende la connessione un sottoscrittore
+        private String subscribeCommand;
+        // Comando in esecuzione su un virtual thread (vedi runBlocking)
+        private String blockingCommand;
+        // Vero finché il virtual thread usa il processore: close() ne lascia la chiusura a resume
+        private boolean blockingRunning = false;
+        private boolean closed = false;
+
+        Connection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+            this.processor = new CommandProcessor(database);
+            ServerInfo.connectionOpened();
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            processBuffer();
+        }
+
+        /**
+         * Esegue le righe complete arrivate e invia le risposte.
+         */
+        private void processBuffer() throws IOException {
+            readBuffer.flip();
+            processLines();
+            readBuffer.compact();
+            if (syncRequested) {
+                handOffToReplica();
+                return;
+            }
+            if (subscribeCommand != null) {
+                handOffToSubscriber();
+                return;
+            }
+
+            // Le risposte partono solo quando le scritture sono durabili (con
+            // fsync always): fino ad allora la connessione non legge né scrive
+            key.interestOps(0);
+            database.whenDurable(durable -> {
+                if (Thread.currentThread() == loop) {
+                    onDurable(durable);
+                } else {
+                    loop.execute(() -> onDurable(durable));
+                }
+            });
+        }
+
+        /**
+         * Riprende dopo processBuffer quando le risposte accodate possono
+         * partire; se il log non è scrivibile la connessione si chiude.
+         */
+        private void onDurable(boolean durable) {
+            if (closed) {
+                return;
+            }
+            if (!durable) {
+                close();
+                return;
+            }
+            try {
+                sendResponses();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Invia le risposte accodate e torna a leggere, oppure avvia il comando bloccante.
+         */
+        private void sendResponses() throws IOException {
+            if (blockingCommand != null) {
+                onWritable();
+                runBlocking();
+                return;
+            }
+
+            if (!readBuffer.hasRemaining() && !linesPending) {
+                // Riga incompleta più grande del buffer: lo si raddoppia entro il limite
+                if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+                    close();
+                    return;
+                }
+                readBuffer = grow(readBuffer, readBuffer.capacity() * 2);
+            }
+
+            onWritable();
+        }
+
+        /**
+         * Esegue tutte le righe complete presenti nel buffer di lettura (in ordine),
+         * accodando le risposte nel buffer di scrittura.
+         */
+        private void processLines() {
+            int lineStart = readBuffer.position();
+            for (int i = lineStart; i < readBuffer.limit() && !closeAfterWrite && subscribeCommand == null
+                    && blockingCommand == null && writeBuffer.position() < Main.MAX_PENDING_OUTPUT; i++) {
+                if (readBuffer.get(i) != '\n') {
+                    continue;
+                }
+                int lineEnd = i;
+                if (lineEnd > lineStart && readBuffer.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                byte[] bytes = new byte[lineEnd - lineStart];
+                readBuffer.get(lineStart, bytes);
+                String line = new String(bytes, StandardCharsets.UTF_8).trim();
+
+                if (CommandProcessor.isSync(line) && !database.isReplica()) {
+                    syncRequested = true;
+                    closeAfterWrite = true;
+                    lineStart = i + 1;
+                    break;
+                }
+                if (CommandProcessor.isSubscribe(line)) {
+                    // I byte che seguono restano nel buffer per il sottoscrittore
+                    subscribeCommand = line;
+                    lineStart = i + 1;
+                    break;
+                }
+                if (CommandProcessor.isBlocking(line)) {
+                    // Le righe successive aspettano la sua risposta
+                    blockingCommand = line;
+                    lineStart = i + 1;
+                    break;
+                }
+                queueResponse(processor.process(line));
+                if (CommandProcessor.isQuit(line)) {
+                    closeAfterWrite = true;
+                }
+                lineStart = i + 1;
+            }
+            readBuffer.position(closeAfterWrite ? readBuffer.limit() : lineStart);
+            linesPending = writeBuffer.position() >= Main.MAX_PENDING_OUTPUT && !closeAfterWrite
+                && subscribeCommand == null && blockingCommand == null;
+        }
+
+        private void queueResponse(String response) {
+            byte[] bytes = (response + "\n").getBytes(StandardCharsets.UTF_8);
+            if (writeBuffer.remaining() < bytes.length) {
+                int needed = writeBuffer.position() + bytes.length;
+                writeBuffer = grow(writeBuffer, Math.max(needed, writeBuffer.capacity() * 2));
+            }
+            writeBuffer.put(bytes);
+        }
+
+        /**
+         * Scrive quanto possibile del buffer di uscita; se il socket è pieno
+         * si registra per OP_WRITE e riprende quando torna scrivibile. Finché
+         * ci sono risposte da inviare la connessione non legge altri comandi.
+         */
+        void onWritable() throws IOException {
+            writeBuffer.flip();
+            channel.write(writeBuffer);
+            writeBuffer.compact();
+
+            if (writeBuffer.position() > 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (closeAfterWrite) {
+                close();
+            } else {
+                if (writeBuffer.capacity() > INITIAL_BUFFER_SIZE) {
+                    writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+                }
+                if (linesPending) {
+                    // Le righe rimaste si eseguono dal giro successivo dell'event loop, senza ricorsione
+                    key.interestOps(0);
+                    loop.execute(this::processPending);
+                } else {
+                    // Durante un comando bloccante non si leggono altri comandi
+                    key.interestOps(blockingCommand != null ? 0 : SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        /**
+         * Esegue blockingCommand su un virtual thread, che può attendere
+         * senza fermare l'event loop; la risposta torna all'event loop, che
+         * riprende dalle righe arrivate nel frattempo.
+         */
+        private void runBlocking() {
+            String command = blockingCommand;
+            blockingRunning = true;
+            Thread.ofVirtual().name("db-blocking").start(() -> {
+                String response = processor.process(command);
+                loop.execute(() -> resume(response));
+            });
+        }
+
+        private void resume(String response) {
+            blockingRunning = false;
+            if (closed) {
+                // La connessione è stata chiusa durante il comando: il
+                // processore, che non è thread-safe, si chiude solo ora
+                processor.close();
+                return;
+            }
+            blockingCommand = null;
+            queueResponse(response);
+            processPending();
+        }
+
+        /**
+         * Esegue le righe già presenti nel buffer di lettura, fuori da onReadable.
+         */
+        private void processPending() {
+            if (closed) {
+                return;
+            }
+            try {
+                processBuffer();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Passa la connessione, che ha inviato SYNC, a un thread dedicato
+         * che la serve come replica.
+         */
+        private void handOffToReplica() {
+            handOff("db-replication", "Replica", () -> database.serveReplica(channel.socket()));
+        }
+
+        /**
+         * Passa la connessione, che ha inviato SUBSCRIBE o PSUBSCRIBE, a un
+         * thread dedicato che la serve come sottoscrittore, insieme ai byte
+         * già letti dopo il comando.
+         */
+        private void handOffToSubscriber() {
+            readBuffer.flip();
+            byte[] unread = new byte[readBuffer.remaining()];
+            readBuffer.get(unread);
+            String command = subscribeCommand;
+            handOff("db-subscriber", "Subscriber", () -> {
+                Socket socket = channel.socket();
+                InputStream input = new SequenceInputStream(new ByteArrayInputStream(unread), socket.getInputStream());
+                BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+                Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                database.serveSubscriber(socket, in, out, command);
+            });
+        }
+
+        /**
+         * Toglie la connessione dall'event loop e la fa servire da un thread
+         * dedicato in modalità bloccante, dopo aver inviato le risposte già
+         * pronte: repliche e sottoscrittori restano collegati a lungo e non
+         * devono fermare l'event loop.
+         */
+        private void handOff(String threadName, String role, BlockingHandler handler) {
+            closed = true;
+            key.cancel();
+            Thread.ofPlatform().name(threadName).daemon().start(() -> {
+                try {
+                    // Il canale torna bloccante solo dopo che il selector lo ha deregistrato
+                    while (channel.isRegistered()) {
+                        Thread.sleep(1);
+                    }
+                    channel.configureBlocking(true);
+                    if (!database.awaitDurable()) {
+                        return;
+                    }
+                    writeBuffer.flip();
+                    while (writeBuffer.hasRemaining()) {
+                        channel.write(writeBuffer);
+                    }
+                    handler.serve();
+                } catch (IOException | InterruptedException e) {
+                    System.err.println(role + " hand-off failed: " + e.getMessage());
+                } finally {
+                    processor.close();
+                    ServerInfo.connectionClosed();
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        System.err.println("Error closing connection: " + e.getMessage());
+                    }
+                }
+            });
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!blockingRunning) {
+                processor.close();
+            }
+            ServerInfo.connectionClosed();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Servizio bloccante di una connessione tolta dall'event loop.
+     */
+    @FunctionalInterface
+    private interface BlockingHandler {
+        void serve() throws IOException;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,497 @@
+package it.unimib.sd2025;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+/**
+ * Motore che tiene chiavi e valori fuori dallo heap, in slab di memoria
+ * nativa (ByteBuffer diretti da 1 MB), così il garbage collector non deve
+ * visitare milioni di stringhe e hash: per ogni segmento restano sullo heap
+ * solo due array di primitivi e la lista degli slab.
+ *
+ * Le chiavi sono divise in 64 segmenti, ognuno con un read-write lock, un
+ * indice a indirizzamento aperto (sondaggio lineare, cancellazione per
+ * spostamento all'indietro, senza tombstone) e un proprio allocatore. Ogni
+ * record occupa un blocco di una classe di dimensione potenza di 2 (da 32
+ * byte a 1 MB); i blocchi liberati finiscono in una lista per classe e
+ * vengono riusati, i record più grandi di uno slab hanno un buffer dedicato.
+ *
+ * Layout di un record:
+ * <pre>
+ * classe (1 byte), tipo (1 byte: 0 stringa, 1 hash, 2 stream, 3 numero),
+ * lunghezza chiave (int), lunghezza valore (int), chiave, valore
+ * </pre>
+ * Il valore di un numero ({@link Decimal}) è il long senza virgola seguito
+ * dalle cifre decimali (1 byte).
+ * Il valore di un hash è il numero di campi seguito da campo e valore per
+ * ciascuno, ogni stringa preceduta dalla lunghezza (varint). Quello di uno
+ * stream è l'ultimo id (due long), il numero di voci (int) e per ciascuna
+ * l'id seguito dai campi come in un hash: ogni aggiunta lo riscrive per
+ * intero, quindi con questo motore conviene tenere gli stream corti (MAXLEN).
+ *
+ * Le letture decodificano ogni volta nuovi oggetti, di vita breve.
+ */
+final class OffHeapStorageEngine implements StorageEngine {
+    private static final int SEGMENTS = 64;
+    private static final int SEGMENT_SHIFT = Integer.SIZE - Integer.numberOfTrailingZeros(SEGMENTS);
+
+    static final int SLAB_SIZE = 1 << 20;
+    private static final int MIN_BLOCK_SHIFT = 5;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(SLAB_SIZE) - MIN_BLOCK_SHIFT + 1;
+    private static final byte LARGE = (byte) 0x7F;
+
+    private static final int HEADER = 10;
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_HASH = 1;
+    private static final byte TYPE_STREAM = 2;
+    private static final byte TYPE_NUMBER = 3;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    OffHeapStorageEngine() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(bytes(key), hash);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int hash = hash(key);
+        return segmentFor(hash).contains(bytes(key), hash);
+    }
+
+    @Override
+    public Object compute(Object key, BiFunction<Object, Object, Object> function) {
+        int hash = hash(key);
+        return segmentFor(hash).compute(key, bytes(key), hash, function);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    @Override
+    public String name() {
+        return "offheap";
+    }
+
+    @Override
+    public long offHeapBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Byte UTF-8 della chiave in chiaro, che è ciò che viene salvato.
+     */
+    private static byte[] bytes(Object key) {
+        return key instanceof CompactKey compact
+            ? compact.toUtf8()
+            : ((String) key).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    /**
+     * hashCode della chiave mescolato (finalizzatore di MurmurHash3): i bit
+     * alti scelgono il segmento, quelli bassi la posizione nell'indice.
+     */
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private final class Segment {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        // Indice: indirizzo del record (0 = posizione vuota) e hash della chiave.
+        // Un indirizzo è (indice dello slab + 1) << 32 | offset nello slab
+        private long[] addresses = new long[16];
+        private int[] hashes = new int[16];
+        private volatile int count;
+
+        // Slab del segmento (null per un buffer dedicato già liberato)
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private final ArrayDeque<Integer> freeSlabSlots = new ArrayDeque<>();
+        private int currentSlab = -1;
+        private int top = SLAB_SIZE;
+        // Testa della lista dei blocchi liberi di ogni classe (0 = vuota)
+        private final long[] freeBlocks = new long[CLASSES];
+
+        Object get(byte[] key, int hash) {
+            lock.readLock().lock();
+            try {
+                int slot = find(key, hash);
+                return slot >= 0 ? decode(addresses[slot]) : null;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        boolean contains(byte[] key, int hash) {
+            lock.readLock().lock();
+            try {
+                return find(key, hash) >= 0;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        Object compute(Object key, byte[] keyBytes, int hash, BiFunction<Object, Object, Object> function) {
+            lock.writeLock().lock();
+            try {
+                int slot = find(keyBytes, hash);
+                Object current = slot >= 0 ? decode(addresses[slot]) : null;
+                Object updated = function.apply(key, current);
+                if (updated == current) {
+                    return current;
+                }
+
+                if (updated == null) {
+                    free(addresses[slot]);
+                    removeAt(slot);
+                    count--;
+                    return null;
+                }
+
+                long address = write(keyBytes, updated);
+                if (slot >= 0) {
+                    free(addresses[slot]);
+                    addresses[slot] = address;
+                } else {
+                    slot = ~slot;
+                    addresses[slot] = address;
+                    hashes[slot] = hash;
+                    count++;
+                    if (count > addresses.length - (addresses.length >>> 2)) {
+                        resize();
+                    }
+                }
+                return updated;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // === INDICE ===
+
+        /**
+         * Posizione della chiave, oppure ~posizione libera in cui inserirla.
+         */
+        private int find(byte[] key, int hash) {
+            int mask = addresses.length - 1;
+            int slot = hash & mask;
+            while (addresses[slot] != 0) {
+                if (hashes[slot] == hash && keyEquals(addresses[slot], key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return ~slot;
+        }
+
+        /**
+         * Svuota la posizione riportando indietro le voci successive della
+         * stessa sequenza di sondaggio, così le ricerche non si interrompono.
+         */
+        private void removeAt(int slot) {
+            int mask = addresses.length - 1;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (addresses[next] == 0) {
+                    break;
+                }
+                int home = hashes[next] & mask;
+                // La voce resta dov'è se la sua posizione naturale è tra slot (escluso) e next
+                boolean stays = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+                if (!stays) {
+                    addresses[slot] = addresses[next];
+                    hashes[slot] = hashes[next];
+                    slot = next;
+                }
+            }
+            addresses[slot] = 0;
+            hashes[slot] = 0;
+        }
+
+        private void resize() {
+            long[] oldAddresses = addresses;
+            int[] oldHashes = hashes;
+            addresses = new long[oldAddresses.length * 2];
+            hashes = new int[oldHashes.length * 2];
+            int mask = addresses.length - 1;
+            for (int i = 0; i < oldAddresses.length; i++) {
+                if (oldAddresses[i] != 0) {
+                    int slot = oldHashes[i] & mask;
+                    while (addresses[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    addresses[slot] = oldAddresses[i];
+                    hashes[slot] = oldHashes[i];
+                }
+            }
+        }
+
+        // === RECORD ===
+
+        private boolean keyEquals(long address, byte[] key) {
+            ByteBuffer slab = slab(address);
+            int offset = offset(address);
+            return slab.getInt(offset + 2) == key.length
+                && slab.slice(offset + HEADER, key.length).equals(ByteBuffer.wrap(key));
+        }
+
+        private Object decode(long address) {
+            ByteBuffer slab = slab(address);
+            int offset = offset(address);
+            byte type = slab.get(offset + 1);
+            int keyLength = slab.getInt(offset + 2);
+            int valueLength = slab.getInt(offset + 6);
+            int position = offset + HEADER + keyLength;
+            if (type == TYPE_STRING) {
+                return readString(slab, position, valueLength);
+            }
+            if (type == TYPE_NUMBER) {
+                return new Decimal(slab.getLong(position), slab.get(position + 8));
+            }
+
+            int[] cursor = {position};
+            if (type == TYPE_HASH) {
+                return Hash.of(readFields(slab, cursor));
+            }
+
+            Stream.Id lastId = new Stream.Id(slab.getLong(position), slab.getLong(position + 8));
+            int entries = slab.getInt(position + 16);
+            cursor[0] += 20;
+            Stream stream = Stream.empty();
+            for (int e = 0; e < entries; e++) {
+                Stream.Id id = new Stream.Id(slab.getLong(cursor[0]), slab.getLong(cursor[0] + 8));
+                cursor[0] += 16;
+                stream = stream.add(id, readFields(slab, cursor));
+            }
+            return stream.withLastId(lastId);
+        }
+
+        private long write(byte[] key, Object value) {
+            byte type;
+            byte[] encoded;
+            if (value instanceof Hash hash) {
+                type = TYPE_HASH;
+                encoded = encodeHash(hash);
+            } else if (value instanceof Stream stream) {
+                type = TYPE_STREAM;
+                encoded = encodeStream(stream);
+            } else if (value instanceof Decimal number) {
+                type = TYPE_NUMBER;
+                encoded = ByteBuffer.allocate(9).putLong(number.unscaled()).put((byte) number.scale()).array();
+            } else {
+                type = TYPE_STRING;
+                encoded = ((String) value).getBytes(StandardCharsets.UTF_8);
+            }
+
+            long address = allocate(HEADER + key.length + encoded.length);
+            ByteBuffer slab = slab(address);
+            int offset = offset(address);
+            slab.put(offset + 1, type);
+            slab.putInt(offset + 2, key.length);
+            slab.putInt(offset + 6, encoded.length);
+            slab.put(offset + HEADER, key);
+            slab.put(offset + HEADER + key.length, encoded);
+            return address;
+        }
+
+        // === ALLOCATORE ===
+
+        private long allocate(int size) {
+            if (size > SLAB_SIZE) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+                reservedBytes.addAndGet(size);
+                Integer free = freeSlabSlots.poll();
+                int slot = free != null ? free : slabs.size();
+                if (free != null) {
+                    slabs.set(slot, buffer);
+                } else {
+                    slabs.add(buffer);
+                }
+                buffer.put(0, LARGE);
+                return address(slot, 0);
+            }
+
+            int sizeClass = classOf(size);
+            long address = freeBlocks[sizeClass];
+            if (address != 0) {
+                freeBlocks[sizeClass] = slab(address).getLong(offset(address) + 2);
+            } else {
+                int blockSize = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+                if (top + blockSize > SLAB_SIZE) {
+                    newSlab();
+                }
+                address = address(currentSlab, top);
+                top += blockSize;
+            }
+            slab(address).put(offset(address), (byte) sizeClass);
+            return address;
+        }
+
+        private void free(long address) {
+            ByteBuffer slab = slab(address);
+            int offset = offset(address);
+            byte sizeClass = slab.get(offset);
+            if (sizeClass == LARGE) {
+                int slot = (int) (address >>> 32) - 1;
+                slabs.set(slot, null);
+                freeSlabSlots.push(slot);
+                reservedBytes.addAndGet(-slab.capacity());
+                return;
+            }
+            slab.putLong(offset + 2, freeBlocks[sizeClass]);
+            freeBlocks[sizeClass] = address;
+        }
+
+        /**
+         * Passa a un nuovo slab; lo spazio rimasto in quello corrente viene
+         * diviso in blocchi liberi delle classi più grandi che vi entrano.
+         */
+        private void newSlab() {
+            while (currentSlab >= 0 && SLAB_SIZE - top >= 1 << MIN_BLOCK_SHIFT) {
+                int sizeClass = Integer.numberOfTrailingZeros(Integer.highestOneBit(SLAB_SIZE - top)) - MIN_BLOCK_SHIFT;
+                long address = address(currentSlab, top);
+                slab(address).put(top, (byte) sizeClass);
+                free(address);
+                top += 1 << (sizeClass + MIN_BLOCK_SHIFT);
+            }
+            slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+            reservedBytes.addAndGet(SLAB_SIZE);
+            currentSlab = slabs.size() - 1;
+            top = 0;
+        }
+
+        private ByteBuffer slab(long address) {
+            return slabs.get((int) (address >>> 32) - 1);
+        }
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long) (slab + 1) << 32) | offset;
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Classe del più piccolo blocco di almeno size byte.
+     */
+    private static int classOf(int size) {
+        int shift = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(shift, MIN_BLOCK_SHIFT) - MIN_BLOCK_SHIFT;
+    }
+
+    private static byte[] encodeHash(Hash hash) {
+        List<byte[]> parts = new ArrayList<>(hash.size() * 2);
+        hash.forEach((field, value) -> {
+            parts.add(field.getBytes(StandardCharsets.UTF_8));
+            parts.add(value.getBytes(StandardCharsets.UTF_8));
+        });
+        int size = 5;
+        for (byte[] part : parts) {
+            size += 5 + part.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        putVarInt(buffer, hash.size());
+        for (byte[] part : parts) {
+            putVarInt(buffer, part.length);
+            buffer.put(part);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static byte[] encodeStream(Stream stream) {
+        List<Stream.Entry> entries = stream.range(Stream.Id.ZERO, Stream.Id.MAX, 0);
+        List<byte[]> parts = new ArrayList<>();
+        int size = 20 + 21 * entries.size();
+        for (Stream.Entry entry : entries) {
+            for (String part : entry.fields()) {
+                byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+                parts.add(bytes);
+                size += 5 + bytes.length;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putLong(stream.lastId().millis()).putLong(stream.lastId().sequence()).putInt(entries.size());
+        int part = 0;
+        for (Stream.Entry entry : entries) {
+            buffer.putLong(entry.id().millis()).putLong(entry.id().sequence());
+            putVarInt(buffer, entry.fields().length / 2);
+            for (int f = 0; f < entry.fields().length; f++) {
+                putVarInt(buffer, parts.get(part).length);
+                buffer.put(parts.get(part++));
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int readVarInt(ByteBuffer slab, int[] cursor) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = slab.get(cursor[0]++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Campi e valori alternati, preceduti dal loro numero (varint).
+     */
+    private static String[] readFields(ByteBuffer slab, int[] cursor) {
+        String[] fields = new String[readVarInt(slab, cursor) * 2];
+        for (int i = 0; i < fields.length; i++) {
+            int length = readVarInt(slab, cursor);
+            fields[i] = readString(slab, cursor[0], length);
+            cursor[0] += length;
+        }
+        return fields;
+    }
+
+    private static String readString(ByteBuffer slab, int offset, int length) {
+        byte[] bytes = new byte[length];
+        slab.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
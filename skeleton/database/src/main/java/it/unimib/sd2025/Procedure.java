@@ -0,0 +1,30 @@
+package it.unimib.sd2025;
+
+import java.util.List;
+
+/**
+ * Stored procedure: un'operazione di business eseguita interamente sul
+ * database e invocata con {@code CALL nome argomenti...}, quindi con un solo
+ * round trip invece di una sequenza di comandi dal server web.
+ */
+@FunctionalInterface
+interface Procedure {
+    /**
+     * Esegue la procedura. Quando viene chiamata le chiavi (quelle dichiarate
+     * alla registrazione e quelle ricavate dai dati, vedi {@link KeyResolver})
+     * sono già bloccate; la risposta è una riga del protocollo. Un
+     * IllegalArgumentException diventa una risposta ERR. Restituisce null,
+     * senza aver modificato nulla, se le chiavi ricavate non valgono più
+     * (i dati sono cambiati prima del lock): la chiamata si ripete.
+     */
+    String call(KeyValueDatabase database, List<String> keys, List<String> args);
+
+    /**
+     * Chiavi che una procedura usa oltre a quelle passate come argomenti,
+     * ricavate dai dati prima di prendere i lock (es. l'utente di un buono).
+     */
+    @FunctionalInterface
+    interface KeyResolver {
+        List<String> keys(KeyValueDatabase database, List<String> args);
+    }
+}
@@ -0,0 +1,107 @@
+package it.unimib.sd2025;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro delle stored procedure, riempito all'avvio del server.
+ *
+ * Come in EVAL di Redis, ogni procedura dichiara quanti dei suoi primi
+ * argomenti sono chiavi: CALL prende i lock striped di quelle chiavi per
+ * tutta l'esecuzione, così la procedura è atomica rispetto alle altre
+ * operazioni su più chiavi, alle transazioni e alle scritture sulle stesse
+ * chiavi, mentre procedure su chiavi diverse procedono in parallelo.
+ * Le chiavi che si conoscono solo leggendo i dati (l'utente di un buono)
+ * vengono ricavate prima di prendere i lock e bloccate insieme alle altre;
+ * se dopo il lock non valgono più la procedura lo segnala e CALL riparte.
+ */
+final class Procedures {
+    private record Entry(int keyCount, Procedure.KeyResolver derivedKeys, Procedure procedure) {
+    }
+
+    private static final Map<String, Entry> REGISTRY = new ConcurrentHashMap<>();
+
+    private Procedures() {
+    }
+
+    /**
+     * Registra una procedura; i primi {@code keyCount} argomenti sono le chiavi da bloccare.
+     */
+    static void register(String name, int keyCount, Procedure procedure) {
+        register(name, keyCount, (database, args) -> List.of(), procedure);
+    }
+
+    /**
+     * Come {@link #register(String, int, Procedure)}, bloccando anche le
+     * chiavi ricavate da derivedKeys.
+     */
+    static void register(String name, int keyCount, Procedure.KeyResolver derivedKeys, Procedure procedure) {
+        if (REGISTRY.putIfAbsent(name.toLowerCase(Locale.ROOT), new Entry(keyCount, derivedKeys, procedure)) != null) {
+            throw new IllegalStateException("Procedure already registered: " + name);
+        }
+    }
+
+    static int size() {
+        return REGISTRY.size();
+    }
+
+    /**
+     * Chiavi da bloccare per una chiamata, dichiarate e ricavate; vuote se
+     * la procedura non esiste o gli argomenti non bastano.
+     */
+    static List<String> keysOf(KeyValueDatabase database, String name, List<String> args) {
+        Entry entry = REGISTRY.get(name.toLowerCase(Locale.ROOT));
+        if (entry == null || args.size() < entry.keyCount()) {
+            return List.of();
+        }
+        return keysOf(entry, database, args);
+    }
+
+    /**
+     * Esegue una procedura con le sue chiavi bloccate e ne restituisce la risposta.
+     */
+    static String call(KeyValueDatabase database, String name, List<String> args) {
+        Entry entry = REGISTRY.get(name.toLowerCase(Locale.ROOT));
+        if (entry == null) {
+            return "ERR unknown procedure: " + name;
+        }
+        if (args.size() < entry.keyCount()) {
+            return "ERR wrong number of arguments for '" + name + "'";
+        }
+
+        while (true) {
+            List<String> keys = keysOf(entry, database, args);
+            String response = database.runLocked(keys, () -> entry.procedure().call(database, keys, args));
+            if (response != null) {
+                return response;
+            }
+        }
+    }
+
+    /**
+     * Esegue una procedura dentro EXEC, con le chiavi ricavate prima che la
+     * transazione prendesse i lock (keysOf): sono già bloccate, quindi non
+     * si possono ricavare di nuovo.
+     */
+    static String call(KeyValueDatabase database, String name, List<String> args, List<String> keys) {
+        Entry entry = REGISTRY.get(name.toLowerCase(Locale.ROOT));
+        if (entry == null) {
+            return "ERR unknown procedure: " + name;
+        }
+        if (args.size() < entry.keyCount()) {
+            return "ERR wrong number of arguments for '" + name + "'";
+        }
+
+        String response = database.runLocked(keys, () -> entry.procedure().call(database, keys, args));
+        return response != null ? response : "ERR data changed before the transaction locked the keys of '" + name + "'";
+    }
+
+    private static List<String> keysOf(Entry entry, KeyValueDatabase database, List<String> args) {
+        List<String> keys = new ArrayList<>(args.subList(0, entry.keyCount()));
+        keys.addAll(entry.derivedKeys().keys(database, args));
+        return keys;
+    }
+}
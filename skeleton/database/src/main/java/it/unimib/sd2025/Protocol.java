@@ -0,0 +1,86 @@
+package it.unimib.sd2025;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Codifica degli argomenti e dei valori del protocollo testuale.
+ *
+ * Gli argomenti sono separati da spazi; un argomento che inizia con {@code "}
+ * è una stringa quotata che può contenere spazi, con gli escape {@code \"} e
+ * {@code \\}. Nelle risposte con più valori (MGET, ...) ogni valore è quotato
+ * e una chiave assente è indicata dal token non quotato {@code NIL}.
+ */
+final class Protocol {
+
+    private Protocol() {
+    }
+
+    /**
+     * Divide una riga di comando in argomenti, rimuovendo le virgolette.
+     */
+    static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        int length = line.length();
+        while (i < length) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+
+            StringBuilder token = new StringBuilder();
+            if (c == '"') {
+                i++;
+                boolean closed = false;
+                while (i < length) {
+                    char q = line.charAt(i++);
+                    if (q == '\\' && i < length) {
+                        token.append(line.charAt(i++));
+                    } else if (q == '"') {
+                        closed = true;
+                        break;
+                    } else {
+                        token.append(q);
+                    }
+                }
+                if (!closed) {
+                    throw new IllegalArgumentException("unterminated quoted string");
+                }
+            } else {
+                while (i < length && !Character.isWhitespace(line.charAt(i))) {
+                    token.append(line.charAt(i++));
+                }
+            }
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Quota un valore per l'invio nel protocollo.
+     */
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Risposta con più valori: {@code OK "v1" NIL "v3"}.
+     */
+    static String values(List<String> values) {
+        StringBuilder response = new StringBuilder("OK");
+        for (String value : values) {
+            response.append(' ').append(value != null ? quote(value) : "NIL");
+        }
+        return response.toString();
+    }
+}
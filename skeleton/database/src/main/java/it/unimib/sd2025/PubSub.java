@@ -0,0 +1,134 @@
+package it.unimib.sd2025;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registro delle sottoscrizioni publish/subscribe.
+ *
+ * I messaggi non vengono conservati: PUBLISH li consegna ai
+ * {@link Subscriber} collegati in quel momento, iscritti al canale
+ * (SUBSCRIBE) o a un pattern glob che lo comprende (PSUBSCRIBE). La
+ * consegna accoda soltanto la riga nel buffer del sottoscrittore, quindi si
+ * può fare anche dentro il compute di una chiave.
+ *
+ * Notifiche del keyspace: ogni scrittura su una chiave pubblica sul canale
+ * {@code __keyspace__:<chiave>} il tipo di modifica (set, hset, del,
+ * expired, expire, persist). Vengono preparate solo se qualcuno può
+ * riceverle, cioè se c'è un canale {@code __keyspace__:...} sottoscritto o
+ * almeno un pattern; altrimenti costano un controllo per scrittura.
+ */
+final class PubSub {
+    static final String KEYSPACE_PREFIX = "__keyspace__:";
+
+    private final Map<String, Set<Subscriber>> channels = new ConcurrentHashMap<>();
+    private final Map<String, Patterned> patterns = new ConcurrentHashMap<>();
+    private final AtomicInteger keyspaceChannels = new AtomicInteger();
+    private final LongAdder published = new LongAdder();
+
+    /**
+     * Sottoscrittori di un pattern, con il pattern già compilato.
+     */
+    private record Patterned(GlobPattern glob, Set<Subscriber> subscribers) {
+    }
+
+    void subscribe(String channel, Subscriber subscriber) {
+        channels.compute(channel, (name, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = ConcurrentHashMap.newKeySet();
+                if (name.startsWith(KEYSPACE_PREFIX)) {
+                    keyspaceChannels.incrementAndGet();
+                }
+            }
+            subscribers.add(subscriber);
+            return subscribers;
+        });
+    }
+
+    void unsubscribe(String channel, Subscriber subscriber) {
+        channels.computeIfPresent(channel, (name, subscribers) -> {
+            subscribers.remove(subscriber);
+            if (!subscribers.isEmpty()) {
+                return subscribers;
+            }
+            if (name.startsWith(KEYSPACE_PREFIX)) {
+                keyspaceChannels.decrementAndGet();
+            }
+            return null;
+        });
+    }
+
+    void psubscribe(String pattern, Subscriber subscriber) {
+        patterns.compute(pattern, (glob, entry) -> {
+            if (entry == null) {
+                entry = new Patterned(GlobPattern.compile(glob), ConcurrentHashMap.newKeySet());
+            }
+            entry.subscribers().add(subscriber);
+            return entry;
+        });
+    }
+
+    void punsubscribe(String pattern, Subscriber subscriber) {
+        patterns.computeIfPresent(pattern, (glob, entry) -> {
+            entry.subscribers().remove(subscriber);
+            return entry.subscribers().isEmpty() ? null : entry;
+        });
+    }
+
+    /**
+     * Consegna il messaggio ai sottoscrittori del canale e dei pattern che
+     * lo comprendono; restituisce quante consegne ha fatto.
+     */
+    int publish(String channel, String message) {
+        published.increment();
+        int receivers = 0;
+        Set<Subscriber> subscribers = channels.get(channel);
+        if (subscribers != null) {
+            String line = "MESSAGE " + Protocol.quote(channel) + " " + Protocol.quote(message);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.deliver(line);
+                receivers++;
+            }
+        }
+        if (!patterns.isEmpty()) {
+            for (Map.Entry<String, Patterned> entry : patterns.entrySet()) {
+                if (!entry.getValue().glob().matches(channel)) {
+                    continue;
+                }
+                String line = "PMESSAGE " + Protocol.quote(entry.getKey()) + " "
+                    + Protocol.quote(channel) + " " + Protocol.quote(message);
+                for (Subscriber subscriber : entry.getValue().subscribers()) {
+                    subscriber.deliver(line);
+                    receivers++;
+                }
+            }
+        }
+        return receivers;
+    }
+
+    /**
+     * Se le scritture devono pubblicare le notifiche del keyspace.
+     */
+    boolean keyspaceEvents() {
+        return keyspaceChannels.get() > 0 || !patterns.isEmpty();
+    }
+
+    void notifyKeyspace(String key, String event) {
+        publish(KEYSPACE_PREFIX + key, event);
+    }
+
+    int channels() {
+        return channels.size();
+    }
+
+    int patterns() {
+        return patterns.size();
+    }
+
+    long published() {
+        return published.sum();
+    }
+}
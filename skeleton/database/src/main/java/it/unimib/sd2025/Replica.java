@@ -0,0 +1,192 @@
+package it.unimib.sd2025;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Copia in sola lettura di un altro database, il primario (avvio con
+ * {@code -Ddb.replicaof=host:porta}).
+ *
+ * Un thread dedicato si collega al primario, invia {@code SYNC}, carica lo
+ * snapshot ricevuto al posto dei dati attuali e poi applica le righe dello
+ * stream (vedi {@link ReplicationSource}) con lo stesso codice del replay
+ * del log. Se la connessione cade, o il primario tace per più di
+ * {@link #READ_TIMEOUT_MILLIS} ms, si ricollega e riparte da uno snapshot
+ * nuovo. Intanto la replica continua a servire le letture con i dati che ha.
+ *
+ * Il ritardo si misura con gli heartbeat del primario, che portano il suo
+ * orologio: quando arriva un heartbeat tutte le scritture precedenti sono
+ * già applicate, quindi il ritardo è l'età dell'heartbeat (primario e
+ * replica devono avere gli orologi sincronizzati, come sulla stessa macchina).
+ */
+final class Replica {
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final KeyValueDatabase database;
+    private final String host;
+    private final int port;
+
+    private volatile boolean linkUp;
+    // Byte dello stream applicati, nella numerazione del primario
+    private volatile long offset;
+    // Ritardo misurato all'ultimo heartbeat e istante locale in cui è arrivato (0 = mai)
+    private volatile long heartbeatDelay;
+    private volatile long lastHeartbeat;
+
+    Replica(KeyValueDatabase database, String host, int port) {
+        this.database = database;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Indirizzo del primario nella forma {@code host:porta}.
+     */
+    static Replica parse(KeyValueDatabase database, String primary) {
+        int colon = primary.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Invalid primary address (host:port expected): " + primary);
+        }
+        return new Replica(database, primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)));
+    }
+
+    void start() {
+        Thread.ofPlatform().name("db-replica").daemon().start(this::run);
+    }
+
+    String primary() {
+        return host + ":" + port;
+    }
+
+    boolean linkUp() {
+        return linkUp;
+    }
+
+    long offset() {
+        return offset;
+    }
+
+    /**
+     * Ritardo rispetto al primario in ms, -1 se non è mai arrivato un
+     * heartbeat. Se gli heartbeat si interrompono cresce col tempo.
+     */
+    long lagMillis() {
+        long received = lastHeartbeat;
+        if (received == 0) {
+            return -1;
+        }
+        long silence = System.currentTimeMillis() - received - ReplicationSource.HEARTBEAT_MILLIS;
+        return Math.max(0, Math.max(heartbeatDelay, silence));
+    }
+
+    private void run() {
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                synchronize(socket);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Replication from " + primary() + " failed: " + e.getMessage());
+            } finally {
+                linkUp = false;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void synchronize(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write("SYNC\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        InputStream in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+
+        // Intestazione: OK <byte dello snapshot> <offset iniziale>
+        String header = readLine(in);
+        String[] parts = header.split(" ");
+        if (parts.length != 3 || !parts[0].equals("OK")) {
+            throw new IOException("unexpected SYNC response: " + header);
+        }
+        long size = Long.parseLong(parts[1]);
+        long start = System.nanoTime();
+        Path temp = Files.createTempFile("sd2025-replica-", ".snap");
+        long keys;
+        try {
+            try (OutputStream file = Files.newOutputStream(temp)) {
+                copy(in, file, size);
+            }
+            database.flush();
+            keys = Snapshot.load(temp, database::restore);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        offset = Long.parseLong(parts[2]);
+        linkUp = true;
+        // Da qui il primario invia almeno un heartbeat ogni HEARTBEAT_MILLIS ms
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        System.out.printf("Synchronized with primary %s: %d keys in %d ms%n",
+            primary(), keys, (System.nanoTime() - start) / 1_000_000);
+
+        // Stream: righe del log e heartbeat
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            String record = line.toString(StandardCharsets.UTF_8);
+            if (record.startsWith("PING ")) {
+                // Gli heartbeat non fanno parte dell'offset
+                long now = System.currentTimeMillis();
+                heartbeatDelay = now - Long.parseLong(record.substring(5));
+                lastHeartbeat = now;
+            } else {
+                long end = offset + line.size() + 1;
+                AppendOnlyFile.decode(record, end, database::restore);
+                offset = end;
+            }
+            line.reset();
+        }
+        throw new EOFException("connection closed by primary");
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("connection closed by primary");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void copy(InputStream in, OutputStream out, long size) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        long remaining = size;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException("snapshot truncated");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package it.unimib.sd2025;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lato primario della replica: invia a ogni replica collegata con
+ * {@code SYNC} lo stato iniziale e poi ogni scrittura.
+ *
+ * Lo stato iniziale è uno {@link Snapshot} binario preso senza fermare le
+ * scritture; le scritture sono le stesse righe del log append-only
+ * ({@code SET}, {@code HSET}, {@code DEL}, {@code PEXPIREAT}, {@code PERSIST}),
+ * con il valore risultante e non il comando, quindi la replica le applica
+ * senza rieseguire INCR, HMOVE o CALL. La replica viene registrata prima di
+ * iniziare lo snapshot: una scrittura concorrente può finire sia nello
+ * snapshot sia nello stream, e la replica la riapplica. Come nella
+ * riscrittura del log, le righe con il valore intero lo risostituiscono e
+ * quelle di uno stream saltano ciò che lo snapshot contiene già (vedi
+ * {@link Stream.Change}).
+ *
+ * Le righe vengono accodate dentro il compute della chiave in un buffer per
+ * replica; un thread per replica le invia e, ogni {@link #HEARTBEAT_MILLIS}
+ * ms, aggiunge {@code PING <ms epoch>}, con cui la replica misura il ritardo.
+ * Una replica che non riesce a stare al passo viene scollegata quando il
+ * suo buffer supera {@link #MAX_PENDING_BYTES}: ricollegandosi riparte da
+ * uno snapshot nuovo.
+ */
+final class ReplicationSource {
+    static final long HEARTBEAT_MILLIS = 100;
+    private static final int MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    // Byte inviati sullo stream dall'avvio; protetto da lock
+    private long offset;
+
+    /**
+     * Una replica collegata.
+     */
+    private final class Link {
+        final Condition hasPending = lock.newCondition();
+        // Protetti da lock
+        AppendOnlyFile.RecordBuffer pending = new AppendOnlyFile.RecordBuffer();
+        boolean overflowed;
+    }
+
+    /**
+     * Se c'è almeno una replica collegata (le righe vanno preparate).
+     */
+    boolean hasReplicas() {
+        return !links.isEmpty();
+    }
+
+    int replicas() {
+        return links.size();
+    }
+
+    long offset() {
+        lock.lock();
+        try {
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Accoda una riga del log per tutte le repliche; va chiamato dentro il
+     * compute della chiave, così ogni chiave arriva nell'ordine delle scritture.
+     */
+    void feed(byte[] record) {
+        if (links.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            offset += record.length;
+            for (Link link : links) {
+                if (link.overflowed) {
+                    continue;
+                }
+                if (link.pending.size() + record.length > MAX_PENDING_BYTES) {
+                    link.overflowed = true;
+                } else {
+                    link.pending.add(record);
+                }
+                link.hasPending.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Serve la replica collegata a socket finché la connessione resta
+     * aperta: stato iniziale (snapshot di database), poi scritture e
+     * heartbeat. Chiamato dal thread della connessione che ha ricevuto SYNC;
+     * chiude il socket all'uscita.
+     */
+    void serve(KeyValueDatabase database, Socket socket) {
+        Link link = new Link();
+        long start;
+        lock.lock();
+        try {
+            links.add(link);
+            start = offset;
+        } finally {
+            lock.unlock();
+        }
+        String replica = String.valueOf(socket.getRemoteSocketAddress());
+        Path temp = null;
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+
+            // Snapshot in un file temporaneo: una replica lenta non rallenta
+            // la visita del keyspace
+            temp = Files.createTempFile("sd2025-sync-", ".snap");
+            long snapshotStart = System.nanoTime();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long keys = database.writeReplicationSnapshot(channel);
+                long size = channel.size();
+                out.write(("OK " + size + " " + start + "\n").getBytes(StandardCharsets.US_ASCII));
+                channel.position(0);
+                InputStream snapshot = Channels.newInputStream(channel);
+                snapshot.transferTo(out);
+                out.flush();
+                System.out.printf("Replica %s synchronized: %d keys, %d bytes in %d ms%n",
+                    replica, keys, size, (System.nanoTime() - snapshotStart) / 1_000_000);
+            }
+            Files.delete(temp);
+            temp = null;
+            stream(link, out);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Replica " + replica + " disconnected: " + e.getMessage());
+        } finally {
+            links.remove(link);
+            try {
+                socket.close();
+                if (temp != null) {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException e) {
+                System.err.println("Error closing replica connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Invia le righe accodate appena ci sono, e un heartbeat almeno ogni
+     * HEARTBEAT_MILLIS ms. Esce solo con un errore.
+     */
+    private void stream(Link link, OutputStream out) throws IOException {
+        AppendOnlyFile.RecordBuffer sending = new AppendOnlyFile.RecordBuffer();
+        long nextHeartbeat = 0;
+        while (true) {
+            long now;
+            lock.lock();
+            try {
+                while (link.pending.isEmpty() && !link.overflowed) {
+                    long wait = nextHeartbeat - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    link.hasPending.await(wait, TimeUnit.MILLISECONDS);
+                }
+                if (link.overflowed) {
+                    throw new IOException("replication buffer exceeded " + MAX_PENDING_BYTES + " bytes");
+                }
+                AppendOnlyFile.RecordBuffer full = link.pending;
+                link.pending = sending;
+                sending = full;
+                // Tutto ciò che è stato accodato fino a now parte prima dell'heartbeat
+                now = System.currentTimeMillis();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            } finally {
+                lock.unlock();
+            }
+
+            if (!sending.isEmpty()) {
+                out.write(sending.view().array(), 0, sending.size());
+                sending.clear();
+            }
+            if (now >= nextHeartbeat) {
+                out.write(("PING " + now + "\n").getBytes(StandardCharsets.US_ASCII));
+                nextHeartbeat = now + HEARTBEAT_MILLIS;
+            }
+            out.flush();
+        }
+    }
+}
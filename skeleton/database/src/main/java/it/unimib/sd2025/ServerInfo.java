@@ -0,0 +1,79 @@
+package it.unimib.sd2025;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Metriche di processo esposte dal comando INFO.
+ * Servono a confrontare i modelli di server (thread, virtual, nio) a parità di carico.
+ */
+final class ServerInfo {
+    private static volatile String mode = "thread";
+    private static final AtomicInteger connections = new AtomicInteger();
+
+    private ServerInfo() {
+    }
+
+    static void setMode(String serverMode) {
+        mode = serverMode;
+    }
+
+    static void connectionOpened() {
+        connections.incrementAndGet();
+    }
+
+    static void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Riga di risposta di INFO: coppie chiave=valore separate da spazio.
+     * {@code platformThreads} conta solo i thread di piattaforma, non i virtual thread;
+     * {@code offHeapBytes} è la memoria nativa riservata dal motore offheap;
+     * {@code lastSave} è l'istante dell'ultimo snapshot in ms (0 se nessuno),
+     * {@code aofSize} la dimensione del log append-only in byte;
+     * {@code usedMemory} è la stima dei byte occupati da chiavi e valori,
+     * {@code maxMemory} il limite (0 = nessuno);
+     * {@code replicationOffset} sono i byte dello stream di replica inviati
+     * (primario) o applicati (replica), {@code replicationLagMs} il ritardo
+     * della replica (-1 se non ancora misurato);
+     * {@code pubsubChannels} e {@code pubsubPatterns} sono i canali e i
+     * pattern con almeno un sottoscrittore, {@code publishedMessages} i
+     * PUBLISH e le notifiche del keyspace dall'avvio.
+     */
+    static String describe(KeyValueDatabase database) {
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        return "mode=" + mode
+            + " connections=" + connections.get()
+            + " platformThreads=" + ManagementFactory.getThreadMXBean().getThreadCount()
+            + " heapUsed=" + heapUsed
+            + " keys=" + database.size()
+            + " expiringKeys=" + database.expiringKeys()
+            + " expiredKeys=" + database.expiredKeys()
+            + " usedMemory=" + database.usedMemory()
+            + " maxMemory=" + database.maxMemory()
+            + " memoryPolicy=" + database.memoryPolicy()
+            + " evictedKeys=" + database.evictedKeys()
+            + " storage=" + database.storageEngine().name()
+            + " offHeapBytes=" + database.storageEngine().offHeapBytes()
+            + " lastSave=" + database.lastSaveMillis()
+            + " aofSize=" + database.appendOnlyFileSize()
+            + " pubsubChannels=" + database.subscribedChannels()
+            + " pubsubPatterns=" + database.subscribedPatterns()
+            + " publishedMessages=" + database.publishedMessages()
+            + replication(database);
+    }
+
+    private static String replication(KeyValueDatabase database) {
+        if (!database.isReplica()) {
+            return " role=primary"
+                + " replicas=" + database.connectedReplicas()
+                + " replicationOffset=" + database.replicationOffset();
+        }
+        return " role=replica"
+            + " primaryLink=" + (database.primaryLinkUp() ? "up" : "down")
+            + " replicationOffset=" + database.replicationOffset()
+            + " replicationLagMs=" + database.replicationLagMillis();
+    }
+}
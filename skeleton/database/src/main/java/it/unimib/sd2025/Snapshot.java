@@ -0,0 +1,409 @@
+package it.unimib.sd2025;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshot binario dell'intero keyspace.
+ *
+ * Formato: l'intestazione {@code SDSNAP01}, poi una sequenza di segmenti e un
+ * segmento vuoto finale. Ogni segmento ha un'intestazione di 12 byte
+ * (lunghezza in byte, numero di record, CRC32) seguita dai record:
+ * <pre>
+ * tipo (1 byte: 0 stringa, 1 hash, 2 stream; +0x80 se la chiave scade), chiave
+ * [scadenza in millisecondi epoch, se la chiave scade]
+ * stringa: valore
+ * hash:    numero di campi, poi campo e valore per ciascuno
+ * stream:  ultimo id (millisecondi e sequenza), numero di voci, poi per
+ *          ciascuna id, numero di campi, campo e valore per ciascuno
+ * </pre>
+ * dove ogni stringa è una lunghezza seguita dai byte UTF-8. Lunghezze,
+ * numero di campi, scadenze e id sono varint (7 bit per byte). Una chiave con
+ * scadenza viene passata come {@link Expiring}.
+ *
+ * I segmenti sono indipendenti, quindi il caricamento legge prima solo le
+ * intestazioni e poi decodifica i segmenti in parallelo, ognuno da una
+ * propria mappatura in memoria del file: niente parsing di testo e niente
+ * copie attraverso buffer di lettura.
+ *
+ * Lo stesso formato è il preambolo del log append-only riscritto
+ * (vedi {@link AppendOnlyFile#rewrite}).
+ */
+final class Snapshot {
+    private static final byte[] MAGIC = "SDSNAP01".getBytes(StandardCharsets.US_ASCII);
+    private static final int SEGMENT_HEADER = 12;
+    private static final int SEGMENT_TARGET_SIZE = 1 << 20;
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_HASH = 1;
+    private static final byte TYPE_STREAM = 2;
+    private static final int EXPIRING = 0x80;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Esito di un caricamento: chiavi lette e posizione del primo byte dopo lo snapshot.
+     */
+    record Loaded(long keys, long end) {
+    }
+
+    /**
+     * Scrive lo snapshot prodotto da source in un file temporaneo e lo
+     * sostituisce atomicamente a path, così un crash durante il salvataggio
+     * lascia intatto lo snapshot precedente. Restituisce il numero di chiavi.
+     */
+    static long write(Path path, Consumer<BiConsumer<String, Object>> source) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        long keys;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            keys = write(channel, source);
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return keys;
+    }
+
+    /**
+     * Scrive lo snapshot nel canale, dalla sua posizione corrente.
+     * Restituisce il numero di chiavi.
+     */
+    static long write(FileChannel channel, Consumer<BiConsumer<String, Object>> source) throws IOException {
+        SegmentWriter writer = new SegmentWriter(channel);
+        writer.writeFully(ByteBuffer.wrap(MAGIC));
+        try {
+            source.accept(writer::add);
+            writer.flushSegment();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.writeSegmentHeader(0, 0, 0);
+        return writer.records;
+    }
+
+    /**
+     * Indica se il canale contiene uno snapshot a partire da position.
+     */
+    static boolean startsAt(FileChannel channel, long position) throws IOException {
+        if (channel.size() - position < MAGIC.length) {
+            return false;
+        }
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+        readFully(channel, magic, position);
+        return Arrays.equals(magic.array(), MAGIC);
+    }
+
+    /**
+     * Carica uno snapshot passando ogni chiave a apply, da più thread in
+     * parallelo. Restituisce il numero di chiavi caricate.
+     */
+    static long load(Path path, BiConsumer<String, Object> apply) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (!startsAt(channel, 0)) {
+                throw new IOException("Not a snapshot file: " + path);
+            }
+            return load(channel, 0, apply).keys();
+        }
+    }
+
+    /**
+     * Carica lo snapshot che inizia a position nel canale.
+     */
+    static Loaded load(FileChannel channel, long position, BiConsumer<String, Object> apply) throws IOException {
+        // Prima passata: solo le intestazioni, per sapere dove inizia ogni segmento
+        List<long[]> segments = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+        position += MAGIC.length;
+        while (true) {
+            header.clear();
+            readFully(channel, header, position);
+            int length = header.getInt(0);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || position + SEGMENT_HEADER + length > channel.size()) {
+                throw new IOException("Corrupted snapshot: bad segment at byte " + position);
+            }
+            segments.add(new long[] {position + SEGMENT_HEADER, length, header.getInt(4), header.getInt(8)});
+            position += SEGMENT_HEADER + length;
+        }
+
+        AtomicLong loaded = new AtomicLong();
+        try {
+            segments.parallelStream().forEach(segment -> {
+                try {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, segment[0], segment[1]);
+                    loaded.addAndGet(decodeSegment(buffer, (int) segment[2], (int) segment[3], segment[0], apply));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new Loaded(loaded.get(), position + SEGMENT_HEADER);
+    }
+
+    private static int decodeSegment(ByteBuffer buffer, int records, int checksum, long offset,
+                                     BiConsumer<String, Object> apply) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Corrupted snapshot: checksum mismatch in segment at byte " + offset);
+        }
+
+        try {
+            for (int i = 0; i < records; i++) {
+                int type = buffer.get() & 0xFF;
+                String key = readString(buffer);
+                long deadline = (type & EXPIRING) != 0 ? readVarLong(buffer) : 0;
+                Object value;
+                if ((type & ~EXPIRING) == TYPE_STRING) {
+                    value = readString(buffer);
+                } else if ((type & ~EXPIRING) == TYPE_HASH) {
+                    int fields = readVarInt(buffer);
+                    Map<String, String> hash = new LinkedHashMap<>(fields * 2);
+                    for (int f = 0; f < fields; f++) {
+                        hash.put(readString(buffer), readString(buffer));
+                    }
+                    value = Hash.EMPTY.with(hash);
+                } else if ((type & ~EXPIRING) == TYPE_STREAM) {
+                    value = readStream(buffer);
+                } else {
+                    throw new IOException("Corrupted snapshot: unknown record type " + type);
+                }
+                apply.accept(key, deadline != 0 ? new Expiring(value, deadline) : value);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted snapshot: bad record in segment at byte " + offset, e);
+        }
+        return records;
+    }
+
+    private static Stream readStream(ByteBuffer buffer) {
+        Stream.Id lastId = new Stream.Id(readVarLong(buffer), readVarLong(buffer));
+        long entries = readVarLong(buffer);
+        Stream stream = Stream.empty();
+        for (long e = 0; e < entries; e++) {
+            Stream.Id id = new Stream.Id(readVarLong(buffer), readVarLong(buffer));
+            String[] fields = new String[readVarInt(buffer) * 2];
+            for (int f = 0; f < fields.length; f++) {
+                fields[f] = readString(buffer);
+            }
+            stream = stream.add(id, fields);
+        }
+        return stream.withLastId(lastId);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[readVarInt(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Corrupted snapshot: unexpected end of file");
+            }
+        }
+    }
+
+    /**
+     * Accumula i record in un segmento e lo scrive quando supera la dimensione obiettivo.
+     */
+    private static final class SegmentWriter {
+        private final FileChannel channel;
+        private ByteBuffer segment = ByteBuffer.allocate(SEGMENT_TARGET_SIZE + (SEGMENT_TARGET_SIZE >> 2));
+        private int segmentRecords = 0;
+        private long records = 0;
+
+        SegmentWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void add(String key, Object value) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            long deadline = 0;
+            if (value instanceof Expiring expiring) {
+                deadline = expiring.deadline();
+                value = expiring.value();
+            }
+            int expiring = deadline != 0 ? EXPIRING : 0;
+            if (value instanceof Hash hash) {
+                List<byte[]> parts = new ArrayList<>(hash.size() * 2);
+                int size = 1 + 5 + keyBytes.length + 10 + 5;
+                hash.forEach((field, fieldValue) -> {
+                    parts.add(field.getBytes(StandardCharsets.UTF_8));
+                    parts.add(fieldValue.getBytes(StandardCharsets.UTF_8));
+                });
+                for (byte[] part : parts) {
+                    size += 5 + part.length;
+                }
+                ensureCapacity(size);
+                segment.put((byte) (TYPE_HASH | expiring));
+                putBytes(keyBytes);
+                putDeadline(deadline);
+                putVarInt(hash.size());
+                for (byte[] part : parts) {
+                    putBytes(part);
+                }
+            } else if (value instanceof Stream stream) {
+                addStream(keyBytes, expiring, deadline, stream);
+            } else {
+                byte[] valueBytes = value.toString().getBytes(StandardCharsets.UTF_8);
+                ensureCapacity(1 + 10 + 10 + keyBytes.length + valueBytes.length);
+                segment.put((byte) (TYPE_STRING | expiring));
+                putBytes(keyBytes);
+                putDeadline(deadline);
+                putBytes(valueBytes);
+            }
+            segmentRecords++;
+            records++;
+            if (segment.position() >= SEGMENT_TARGET_SIZE) {
+                flushSegment();
+            }
+        }
+
+        private void addStream(byte[] keyBytes, int expiring, long deadline, Stream stream) {
+            List<Stream.Entry> entries = stream.range(Stream.Id.ZERO, Stream.Id.MAX, 0);
+            List<byte[]> parts = new ArrayList<>();
+            int size = 1 + 5 + keyBytes.length + 10 + 30 + 25 * entries.size();
+            for (Stream.Entry entry : entries) {
+                for (String part : entry.fields()) {
+                    byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+                    parts.add(bytes);
+                    size += 5 + bytes.length;
+                }
+            }
+            ensureCapacity(size);
+            segment.put((byte) (TYPE_STREAM | expiring));
+            putBytes(keyBytes);
+            putDeadline(deadline);
+            putVarLong(stream.lastId().millis());
+            putVarLong(stream.lastId().sequence());
+            putVarLong(entries.size());
+            int part = 0;
+            for (Stream.Entry entry : entries) {
+                putVarLong(entry.id().millis());
+                putVarLong(entry.id().sequence());
+                putVarInt(entry.fields().length / 2);
+                for (int f = 0; f < entry.fields().length; f++) {
+                    putBytes(parts.get(part++));
+                }
+            }
+        }
+
+        private void putBytes(byte[] bytes) {
+            putVarInt(bytes.length);
+            segment.put(bytes);
+        }
+
+        private void putDeadline(long deadline) {
+            if (deadline != 0) {
+                putVarLong(deadline);
+            }
+        }
+
+        private void putVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                segment.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            segment.put((byte) value);
+        }
+
+        private void putVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                segment.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            segment.put((byte) value);
+        }
+
+        private void ensureCapacity(int size) {
+            if (segment.remaining() < size) {
+                ByteBuffer larger = ByteBuffer.allocate(segment.position() + size);
+                segment.flip();
+                larger.put(segment);
+                segment = larger;
+            }
+        }
+
+        void flushSegment() {
+            if (segmentRecords == 0) {
+                return;
+            }
+            segment.flip();
+            CRC32 crc = new CRC32();
+            crc.update(segment.duplicate());
+            try {
+                writeSegmentHeader(segment.remaining(), segmentRecords, (int) crc.getValue());
+                writeFully(segment);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segment.clear();
+            segmentRecords = 0;
+        }
+
+        void writeSegmentHeader(int length, int count, int checksum) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+            header.putInt(length).putInt(count).putInt(checksum).flip();
+            writeFully(header);
+        }
+
+        void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package it.unimib.sd2025;
+
+import java.util.function.BiFunction;
+
+/**
+ * Struttura che contiene le coppie chiave-valore di {@link KeyValueDatabase}.
+ * I valori sono String, {@link Hash} o {@link Stream}, immutabili per chi
+ * li legge. Le chiavi sono quelle codificate da {@link CompactKey#encode}
+ * (CompactKey o String): il loro toString è la chiave in chiaro.
+ *
+ * Il motore si sceglie all'avvio con {@code -Ddb.storage=heap|offheap}:
+ * <ul>
+ *   <li>{@code heap} (default): una ConcurrentHashMap, vedi {@link HeapStorageEngine};</li>
+ *   <li>{@code offheap}: chiavi e valori in memoria nativa, vedi {@link OffHeapStorageEngine}.</li>
+ * </ul>
+ */
+interface StorageEngine {
+
+    /**
+     * Valore della chiave, null se assente.
+     */
+    Object get(Object key);
+
+    boolean containsKey(Object key);
+
+    /**
+     * Applica function al valore corrente (null se assente) in modo atomico
+     * rispetto alle altre chiamate sulla stessa chiave, e salva il risultato;
+     * null rimuove la chiave, lo stesso oggetto ricevuto la lascia invariata.
+     * Un'eccezione di function lascia la chiave invariata. Se la chiave
+     * viene creata, l'istanza conservata è quella passata a function.
+     * Restituisce il nuovo valore.
+     */
+    Object compute(Object key, BiFunction<Object, Object, Object> function);
+
+    int size();
+
+    /**
+     * Nome usato in {@code db.storage} e in INFO.
+     */
+    String name();
+
+    /**
+     * Memoria nativa riservata, in byte (0 per il motore heap).
+     */
+    long offHeapBytes();
+
+    static StorageEngine create(String name) {
+        switch (name) {
+            case "heap":
+                return new HeapStorageEngine();
+            case "offheap":
+                return new OffHeapStorageEngine();
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + name);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package it.unimib.sd2025;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Valore di tipo stream: voci in ordine di id crescente, che si aggiungono
+ * solo in coda (XADD) e si tolgono solo dalla testa (XTRIM, XADD ... MAXLEN).
+ * Ogni voce ha un id {@code <millisecondi>-<sequenza>} e alcune coppie
+ * campo-valore; chi legge riprende dall'ultimo id che ha visto.
+ *
+ * Per chi legge è immutabile come {@link Hash}, ma un'aggiunta non copia le
+ * voci: stanno in blocchi da {@link #CHUNK_SIZE} condivisi da tutte le
+ * versioni dello stesso stream, e ogni istanza vede solo le posizioni
+ * {@code [first, end)}. Un'aggiunta scrive la posizione end, che nessuna
+ * versione esistente vede, e restituisce una nuova istanza; un taglio
+ * restituisce un'istanza che parte più avanti, e i blocchi che nessuna
+ * istanza vede più vengono raccolti dal GC. Una visita di snapshot può così
+ * continuare a leggere la versione che ha conservato. Per questo si aggiunge
+ * solo alla versione più recente, cioè al valore corrente dentro il compute
+ * della chiave.
+ */
+final class Stream {
+    private static final int CHUNK_SIZE = 256;
+
+    /**
+     * Id di una voce: millisecondi epoch e numero di sequenza nello stesso millisecondo.
+     */
+    record Id(long millis, long sequence) implements Comparable<Id> {
+        static final Id ZERO = new Id(0, 0);
+        static final Id MAX = new Id(Long.MAX_VALUE, Long.MAX_VALUE);
+
+        /**
+         * Id nel formato {@code ms-seq}; senza sequenza vale defaultSequence.
+         */
+        static Id parse(String value, long defaultSequence) {
+            try {
+                int dash = value.indexOf('-');
+                Id id = dash < 0
+                    ? new Id(Long.parseLong(value), defaultSequence)
+                    : new Id(Long.parseLong(value.substring(0, dash)), Long.parseLong(value.substring(dash + 1)));
+                if (id.millis < 0 || id.sequence < 0) {
+                    throw new NumberFormatException();
+                }
+                return id;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid stream ID: " + value);
+            }
+        }
+
+        /**
+         * Id generato per una nuova voce: l'istante attuale, o lo stesso
+         * millisecondo dell'ultimo id con la sequenza successiva se l'orologio
+         * non è andato avanti.
+         */
+        Id next(long now) {
+            if (now > millis) {
+                return new Id(now, 0);
+            }
+            if (sequence == Long.MAX_VALUE) {
+                return new Id(Math.addExact(millis, 1), 0);
+            }
+            return new Id(millis, sequence + 1);
+        }
+
+        /**
+         * Id immediatamente successivo; non esiste per {@link #MAX}.
+         */
+        Id successor() {
+            return sequence == Long.MAX_VALUE ? new Id(Math.addExact(millis, 1), 0) : new Id(millis, sequence + 1);
+        }
+
+        @Override
+        public int compareTo(Id other) {
+            int byMillis = Long.compare(millis, other.millis);
+            return byMillis != 0 ? byMillis : Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public String toString() {
+            return millis + "-" + sequence;
+        }
+    }
+
+    /**
+     * Voce dello stream; fields alterna campi e valori.
+     */
+    record Entry(Id id, String[] fields) {
+        long estimatedBytes() {
+            long bytes = 64 + 4L * fields.length;
+            for (String field : fields) {
+                bytes += Hash.estimatedBytes(field);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Modifica di uno stream letta dal log (XADD, XTRIM o XSETID): come
+     * {@link Expiring} viaggia al posto del valore nel flusso di chiavi e
+     * valori, e si applica alla versione corrente (vuota se la chiave non esiste).
+     *
+     * Le modifiche devono poter essere riapplicate a una versione che le
+     * contiene già: la riscrittura del log e la SYNC di una replica mettono
+     * uno snapshot davanti a righe che in parte vi sono già incluse. Per
+     * questo si usano {@link #replayAdd}, {@link #trimBefore} e
+     * {@link #replayLastId}, che su una versione successiva non cambiano nulla.
+     */
+    record Change(UnaryOperator<Stream> operation) {
+    }
+
+    // Blocchi di voci; chunks[i] contiene le posizioni da base + i * CHUNK_SIZE.
+    // Le celle oltre l'ultimo blocco usato possono essere null
+    private final Entry[][] chunks;
+    private final long base;
+    private final long first;
+    private final long end;
+    // Ultimo id assegnato, anche se la sua voce è già stata tagliata
+    private final Id lastId;
+    private final long entryBytes;
+    // Identità delle versioni di uno stesso stream (vedi derivesFrom)
+    private final Object origin;
+
+    private Stream(Entry[][] chunks, long base, long first, long end, Id lastId, long entryBytes, Object origin) {
+        this.chunks = chunks;
+        this.base = base;
+        this.first = first;
+        this.end = end;
+        this.lastId = lastId;
+        this.entryBytes = entryBytes;
+        this.origin = origin;
+    }
+
+    /**
+     * Nuovo stream vuoto.
+     */
+    static Stream empty() {
+        return new Stream(new Entry[0][], 0, 0, 0, Id.ZERO, 0, new Object());
+    }
+
+    long length() {
+        return end - first;
+    }
+
+    Id lastId() {
+        return lastId;
+    }
+
+    /**
+     * Voce in posizione index, da 0 (la più vecchia) a length() - 1.
+     */
+    Entry get(long index) {
+        long offset = first + index - base;
+        return chunks[(int) (offset / CHUNK_SIZE)][(int) (offset % CHUNK_SIZE)];
+    }
+
+    /**
+     * Nuova versione con la voce aggiunta in coda; l'id deve essere maggiore di lastId().
+     */
+    Stream add(Id id, String[] fields) {
+        if (id.compareTo(lastId) <= 0) {
+            throw new IllegalArgumentException("The ID specified in XADD is equal or smaller than the target stream top item");
+        }
+        Entry entry = new Entry(id, fields);
+        long offset = end - base;
+        int chunk = (int) (offset / CHUNK_SIZE);
+        Entry[][] target = chunks;
+        if (chunk >= target.length) {
+            target = Arrays.copyOf(target, Math.max(4, target.length * 2));
+        }
+        if (target[chunk] == null) {
+            target[chunk] = new Entry[CHUNK_SIZE];
+        }
+        target[chunk][(int) (offset % CHUNK_SIZE)] = entry;
+        return new Stream(target, base, first, end + 1, id, entryBytes + entry.estimatedBytes(), origin);
+    }
+
+    /**
+     * Come add, ma lascia lo stream com'è se l'id non supera lastId(): la
+     * voce è già stata aggiunta (ed eventualmente tagliata) in questa versione.
+     */
+    Stream replayAdd(Id id, String[] fields) {
+        return id.compareTo(lastId) <= 0 ? this : add(id, fields);
+    }
+
+    /**
+     * Nuova versione con al massimo maxLength voci, le più recenti.
+     */
+    Stream trim(long maxLength) {
+        if (length() <= maxLength) {
+            return this;
+        }
+        long newFirst = end - maxLength;
+        long bytes = entryBytes;
+        for (long i = 0; i < newFirst - first; i++) {
+            bytes -= get(i).estimatedBytes();
+        }
+        // I blocchi interamente tagliati escono dalla nuova versione
+        int dropped = (int) ((newFirst - base) / CHUNK_SIZE);
+        Entry[][] kept = dropped == 0 ? chunks : Arrays.copyOfRange(chunks, Math.min(dropped, chunks.length), chunks.length);
+        return new Stream(kept, base + (long) dropped * CHUNK_SIZE, newFirst, end, lastId, bytes, origin);
+    }
+
+    /**
+     * Nuova versione senza le voci con id minore di minId (record XTRIM del log).
+     */
+    Stream trimBefore(Id minId) {
+        return trim(length() - indexOf(minId, false));
+    }
+
+    /**
+     * Stessa versione con un altro ultimo id.
+     */
+    Stream withLastId(Id id) {
+        return new Stream(chunks, base, first, end, id, entryBytes, origin);
+    }
+
+    /**
+     * Come withLastId, ma l'ultimo id non torna indietro (record XSETID del log).
+     */
+    Stream replayLastId(Id id) {
+        return id.compareTo(lastId) > 0 ? withLastId(id) : this;
+    }
+
+    /**
+     * Fino a count voci con id tra start e end inclusi (count &lt;= 0: tutte).
+     */
+    List<Entry> range(Id start, Id end, long count) {
+        List<Entry> entries = new ArrayList<>();
+        for (long i = indexOf(start, false); i < length(); i++) {
+            Entry entry = get(i);
+            if (entry.id().compareTo(end) > 0 || (count > 0 && entries.size() >= count)) {
+                break;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Come range, ma dalla voce più recente alla più vecchia.
+     */
+    List<Entry> reverseRange(Id end, Id start, long count) {
+        List<Entry> entries = new ArrayList<>();
+        for (long i = indexOf(end, true) - 1; i >= 0; i--) {
+            Entry entry = get(i);
+            if (entry.id().compareTo(start) < 0 || (count > 0 && entries.size() >= count)) {
+                break;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Fino a count voci con id maggiore di after (count &lt;= 0: tutte).
+     */
+    List<Entry> after(Id after, long count) {
+        if (after.compareTo(lastId) >= 0) {
+            return List.of();
+        }
+        return range(after.successor(), lastId, count);
+    }
+
+    /**
+     * Posizione della prima voce con id maggiore o uguale a id, o
+     * strettamente maggiore se after (ricerca binaria).
+     */
+    private long indexOf(Id id, boolean after) {
+        long low = 0;
+        long high = length();
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            int comparison = get(middle).id().compareTo(id);
+            if (comparison < 0 || (after && comparison == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Se questa versione è stata ottenuta da previous con aggiunte e tagli:
+     * allora basta registrare nel log le voci nuove e il taglio.
+     */
+    boolean derivesFrom(Stream previous) {
+        return previous.origin == origin && previous.end <= end && previous.first <= first;
+    }
+
+    /**
+     * Voci aggiunte dopo previous (vedi derivesFrom) ancora presenti in
+     * questa versione.
+     */
+    List<Entry> addedSince(Stream previous) {
+        List<Entry> added = new ArrayList<>();
+        for (long position = Math.max(previous.end, first); position < end; position++) {
+            added.add(get(position - first));
+        }
+        return added;
+    }
+
+    /**
+     * Se rispetto a previous (vedi derivesFrom) sono state tagliate voci.
+     */
+    boolean trimmedSince(Stream previous) {
+        return first > previous.first;
+    }
+
+    /**
+     * Memoria occupata in byte, stimata (per il limite di memoria).
+     */
+    long estimatedBytes() {
+        long usedChunks = (end - base + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        return 64 + 4L * chunks.length + usedChunks * (16 + 4L * CHUNK_SIZE) + entryBytes;
+    }
+}
@@ -0,0 +1,115 @@
+package it.unimib.sd2025;
+
+import java.util.Collection;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Insieme fisso di lock, ognuno dei quali protegge le chiavi il cui hash
+ * cade nella sua "striscia". Le operazioni su più chiavi e le transazioni
+ * prendono le loro strisce in modo esclusivo ({@link #lock}); le scritture
+ * su una singola chiave prendono la loro in modo condiviso ({@link #shared}),
+ * quindi procedono in parallelo tra loro ma non durante un'operazione
+ * esclusiva sulla stessa striscia, e un'operazione esclusiva attende che
+ * finiscano quelle già iniziate.
+ *
+ * I lock di un'operazione vengono presi sempre in ordine crescente di
+ * indice, così due operazioni multi-chiave non possono andare in deadlock.
+ * Chi tiene una striscia in modo esclusivo può prenderla anche in modo
+ * condiviso, non il contrario. Mentre tiene delle strisce in modo
+ * esclusivo, un thread non ne prende altre: attenderebbe chi le tiene, che
+ * può a sua volta attendere una delle sue. Un'operazione annidata (MSET
+ * dentro EXEC) può solo riprendere strisce già sue, e una scrittura su una
+ * chiave fuori da quelle strisce viene rifiutata ({@link #lockedElsewhere}).
+ * Sono lock di java.util.concurrent e non monitor: un virtual thread in
+ * attesa su un monitor resterebbe agganciato (pinned) al suo carrier thread.
+ */
+final class StripedLock {
+    private final ReentrantReadWriteLock[] locks;
+    // Strisce dell'operazione esclusiva più esterna del thread corrente (null se nessuna)
+    private final ThreadLocal<int[]> held = new ThreadLocal<>();
+
+    /**
+     * @param stripes numero di strisce, arrotondato alla potenza di 2 successiva
+     */
+    StripedLock(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        locks = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Prende in modo esclusivo le strisce delle chiavi indicate.
+     * Il risultato va passato a {@link #unlock(int[])}.
+     */
+    int[] lock(Collection<String> keys) {
+        return lock(keys.stream().mapToInt(this::stripe).sorted().distinct().toArray());
+    }
+
+    /**
+     * Prende in modo esclusivo tutte le strisce (FLUSH).
+     */
+    int[] lockAll() {
+        return lock(IntStream.range(0, locks.length).toArray());
+    }
+
+    private int[] lock(int[] stripes) {
+        boolean nested = held.get() != null;
+        if (nested) {
+            for (int stripe : stripes) {
+                if (!locks[stripe].isWriteLockedByCurrentThread()) {
+                    throw new IllegalStateException("keys are not locked by the running transaction or procedure");
+                }
+            }
+        }
+        for (int stripe : stripes) {
+            locks[stripe].writeLock().lock();
+        }
+        if (!nested) {
+            held.set(stripes);
+        }
+        return stripes;
+    }
+
+    void unlock(int[] stripes) {
+        if (held.get() == stripes) {
+            held.remove();
+        }
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            locks[stripes[i]].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indica se il thread corrente è dentro un'operazione esclusiva che non
+     * ha preso la striscia della chiave: in quel caso non può scriverla.
+     */
+    boolean lockedElsewhere(String key) {
+        return held.get() != null && !locks[stripe(key)].isWriteLockedByCurrentThread();
+    }
+
+    /**
+     * Indica se il thread corrente tiene in modo esclusivo la striscia della chiave.
+     */
+    boolean heldExclusively(String key) {
+        return locks[stripe(key)].isWriteLockedByCurrentThread();
+    }
+
+    /**
+     * Lock condiviso della striscia della chiave, per una scrittura su quella sola chiave.
+     */
+    Lock shared(String key) {
+        return locks[stripe(key)].readLock();
+    }
+
+    private int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (locks.length - 1);
+    }
+}
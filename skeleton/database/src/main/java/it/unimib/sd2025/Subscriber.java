@@ -0,0 +1,208 @@
+package it.unimib.sd2025;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connessione in modalità sottoscrittore: dopo il primo SUBSCRIBE o
+ * PSUBSCRIBE accetta solo comandi di sottoscrizione, PING e QUIT, e riceve
+ * i messaggi pubblicati ({@link PubSub}) mescolati alle risposte.
+ *
+ * Il thread della connessione legge i comandi; le risposte e i messaggi
+ * vengono accodati in un buffer che un virtual thread scrive sul socket,
+ * così chi pubblica non aspetta mai un client lento. Un sottoscrittore
+ * che non riesce a stare al passo viene scollegato quando il suo buffer
+ * supera {@link #MAX_PENDING_CHARS}.
+ */
+final class Subscriber {
+    private static final int MAX_PENDING_CHARS = 32 * 1024 * 1024;
+    private static final long WRITER_DRAIN_MILLIS = 1000;
+
+    private final PubSub pubSub;
+    private final Socket socket;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasPending = lock.newCondition();
+    // Protetti da lock
+    private StringBuilder pending = new StringBuilder();
+    private boolean overflowed;
+    private boolean closed;
+
+    // Usati solo dal thread della connessione
+    private final Set<String> channels = new LinkedHashSet<>();
+    private final Set<String> patterns = new LinkedHashSet<>();
+
+    Subscriber(PubSub pubSub, Socket socket) {
+        this.pubSub = pubSub;
+        this.socket = socket;
+    }
+
+    /**
+     * Accoda una riga per il client; non blocca.
+     */
+    void deliver(String line) {
+        lock.lock();
+        try {
+            if (closed || overflowed) {
+                return;
+            }
+            if (pending.length() + line.length() + 1 > MAX_PENDING_CHARS) {
+                overflowed = true;
+            } else {
+                pending.append(line).append('\n');
+            }
+            hasPending.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Serve la connessione a partire dal comando che l'ha resa un
+     * sottoscrittore, finché il client non invia QUIT o si scollega.
+     * Chiude il socket all'uscita.
+     */
+    void serve(BufferedReader in, Writer out, String command) {
+        Thread writer = Thread.ofVirtual().name("db-subscriber-writer").start(() -> write(out));
+        try {
+            String line = command;
+            while (line != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    deliver(process(line));
+                }
+                if (CommandProcessor.isQuit(line)) {
+                    break;
+                }
+                line = in.readLine();
+            }
+        } catch (IOException e) {
+            // Connessione chiusa dal client o dal writer
+        } finally {
+            for (String channel : channels) {
+                pubSub.unsubscribe(channel, this);
+            }
+            for (String pattern : patterns) {
+                pubSub.punsubscribe(pattern, this);
+            }
+            lock.lock();
+            try {
+                closed = true;
+                hasPending.signal();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                // Lascia partire le ultime risposte (BYE)
+                writer.join(WRITER_DRAIN_MILLIS);
+                socket.close();
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Error closing subscriber connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private String process(String line) {
+        List<String> parts;
+        try {
+            parts = Protocol.tokenize(line);
+        } catch (IllegalArgumentException e) {
+            return "ERR " + e.getMessage();
+        }
+        String cmd = parts.get(0).toUpperCase();
+        List<String> names = parts.subList(1, parts.size());
+        switch (cmd) {
+            case "SUBSCRIBE":
+                if (names.isEmpty()) {
+                    return "ERR SUBSCRIBE requires at least one channel";
+                }
+                for (String channel : names) {
+                    if (channels.add(channel)) {
+                        pubSub.subscribe(channel, this);
+                    }
+                }
+                return subscriptions();
+            case "PSUBSCRIBE":
+                if (names.isEmpty()) {
+                    return "ERR PSUBSCRIBE requires at least one pattern";
+                }
+                for (String pattern : names) {
+                    if (patterns.add(pattern)) {
+                        pubSub.psubscribe(pattern, this);
+                    }
+                }
+                return subscriptions();
+            case "UNSUBSCRIBE":
+                // Senza argomenti da tutti i canali
+                for (String channel : names.isEmpty() ? new ArrayList<>(channels) : names) {
+                    if (channels.remove(channel)) {
+                        pubSub.unsubscribe(channel, this);
+                    }
+                }
+                return subscriptions();
+            case "PUNSUBSCRIBE":
+                for (String pattern : names.isEmpty() ? new ArrayList<>(patterns) : names) {
+                    if (patterns.remove(pattern)) {
+                        pubSub.punsubscribe(pattern, this);
+                    }
+                }
+                return subscriptions();
+            case "PING":
+                return "PONG";
+            case "QUIT":
+                return "BYE";
+            default:
+                return "ERR only SUBSCRIBE, PSUBSCRIBE, UNSUBSCRIBE, PUNSUBSCRIBE, PING and QUIT are allowed in subscriber mode";
+        }
+    }
+
+    // Risposta ai comandi di sottoscrizione: canali e pattern sottoscritti dopo il comando
+    private String subscriptions() {
+        return "OK " + (channels.size() + patterns.size());
+    }
+
+    /**
+     * Scrive il buffer sul socket appena contiene qualcosa; esce quando la
+     * connessione è chiusa e il buffer è vuoto, oppure con un errore.
+     */
+    private void write(Writer out) {
+        try {
+            while (true) {
+                StringBuilder chunk;
+                lock.lock();
+                try {
+                    while (pending.isEmpty() && !closed && !overflowed) {
+                        hasPending.await();
+                    }
+                    if (overflowed) {
+                        throw new IOException("subscriber buffer exceeded " + MAX_PENDING_CHARS + " chars");
+                    }
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    chunk = pending;
+                    pending = new StringBuilder();
+                } finally {
+                    lock.unlock();
+                }
+                out.append(chunk);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Subscriber " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+            try {
+                // Sblocca la lettura del thread della connessione
+                socket.close();
+            } catch (IOException closeError) {
+                System.err.println("Error closing subscriber connection: " + closeError.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package it.unimib.sd2025;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timing wheel gerarchica per la scadenza attiva delle chiavi.
+ *
+ * {@link #LEVELS} ruote da {@link #SLOTS} posizioni: con tick da 10 ms la
+ * prima copre 640 ms, la seconda 41 s, la terza 44 minuti, la quarta 46
+ * ore; le scadenze più lontane restano nell'ultima posizione della quarta
+ * e vengono ricollocate quando la raggiungono. Ogni posizione è una lista
+ * concatenata di {@link Entry}: inserire una scadenza costa O(1), e a ogni
+ * tick si visita solo la posizione corrente (più, ogni 64 tick, una
+ * posizione della ruota superiore da ridistribuire), mai l'intero keyspace.
+ *
+ * La ruota appartiene al solo thread {@code db-expiry}: gli altri thread
+ * accodano le nuove voci in una coda concorrente che il thread svuota a
+ * ogni tick. Una voce non si rimuove mai dalla ruota: quando scatta,
+ * {@link Expirer#expire} decide se la chiave va cancellata o se la voce va
+ * ricollocata (scadenza allungata nel frattempo), o scartata (TTL rimosso).
+ * Allungare il TTL di una chiave quindi non alloca nulla, basta cambiare
+ * {@link Entry#deadline}.
+ */
+final class TimingWheel {
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final long MAX_DELAY_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    /**
+     * Scadenza di una chiave. deadline è in millisecondi epoch e può essere
+     * spostata in avanti da chi possiede la chiave (dentro il suo compute).
+     */
+    static final class Entry {
+        final Object key;
+        volatile long deadline;
+        // Usato solo dal thread della ruota
+        private Entry next;
+
+        Entry(Object key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Chiamato dal thread della ruota quando una voce scatta.
+     */
+    interface Expirer {
+        /**
+         * Cancella la chiave se è scaduta. Restituisce true se la voce è
+         * ancora quella della chiave e va ricollocata alla sua deadline.
+         */
+        boolean expire(Entry entry);
+    }
+
+    private final long tickMillis;
+    private final Expirer expirer;
+    private final Entry[][] slots = new Entry[LEVELS][SLOTS];
+    private final ConcurrentLinkedQueue<Entry> inbox = new ConcurrentLinkedQueue<>();
+    private long currentTick;
+    private Entry due;
+    private volatile Thread thread;
+
+    TimingWheel(long tickMillis, Expirer expirer) {
+        this.tickMillis = tickMillis;
+        this.expirer = expirer;
+    }
+
+    /**
+     * Aggiunge una voce; il thread della ruota parte alla prima.
+     */
+    void schedule(Entry entry) {
+        inbox.add(entry);
+        if (thread == null) {
+            start();
+        }
+    }
+
+    private synchronized void start() {
+        if (thread == null) {
+            currentTick = System.currentTimeMillis() / tickMillis;
+            thread = Thread.ofPlatform().name("db-expiry").daemon().start(this::run);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            LockSupport.parkNanos(tickMillis * 1_000_000);
+            try {
+                advance(System.currentTimeMillis() / tickMillis);
+            } catch (RuntimeException e) {
+                System.err.println("Active expiry failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Porta la ruota fino a nowTick, facendo scattare le voci scadute.
+     */
+    private void advance(long nowTick) {
+        for (Entry entry; (entry = inbox.poll()) != null; ) {
+            place(entry);
+        }
+        fireDue();
+        while (currentTick < nowTick) {
+            currentTick++;
+            cascade(1);
+            Entry slot = take(0, (int) (currentTick & (SLOTS - 1)));
+            while (slot != null) {
+                Entry next = slot.next;
+                fire(slot);
+                slot = next;
+            }
+            fireDue();
+        }
+    }
+
+    /**
+     * All'inizio di un giro della ruota inferiore ridistribuisce la posizione
+     * corrente della ruota level, dopo aver fatto lo stesso con quelle sopra.
+     */
+    private void cascade(int level) {
+        if (level >= LEVELS || (currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+            return;
+        }
+        cascade(level + 1);
+        Entry slot = take(level, (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+        while (slot != null) {
+            Entry next = slot.next;
+            place(slot);
+            slot = next;
+        }
+    }
+
+    private void place(Entry entry) {
+        // Arrotondato per eccesso: la voce non scatta mai prima della deadline
+        long deadlineTick = (entry.deadline + tickMillis - 1) / tickMillis;
+        long delay = deadlineTick - currentTick;
+        if (delay <= 0) {
+            entry.next = due;
+            due = entry;
+            return;
+        }
+        if (delay > MAX_DELAY_TICKS) {
+            deadlineTick = currentTick + MAX_DELAY_TICKS;
+            delay = MAX_DELAY_TICKS;
+        }
+        int level = 0;
+        while (delay >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int index = (int) ((deadlineTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        entry.next = slots[level][index];
+        slots[level][index] = entry;
+    }
+
+    private Entry take(int level, int index) {
+        Entry head = slots[level][index];
+        slots[level][index] = null;
+        return head;
+    }
+
+    private void fireDue() {
+        while (due != null) {
+            Entry entry = due;
+            due = entry.next;
+            fire(entry);
+        }
+    }
+
+    private void fire(Entry entry) {
+        entry.next = null;
+        if (entry.deadline > System.currentTimeMillis()) {
+            // Scadenza allungata dopo l'inserimento (o ricollocata dall'ultima ruota)
+            reschedule(entry);
+            return;
+        }
+        boolean live;
+        try {
+            live = expirer.expire(entry);
+        } catch (RuntimeException e) {
+            // Es. log non scrivibile: si riprova al prossimo tick
+            System.err.println("Active expiry of " + entry.key + " failed: " + e.getMessage());
+            live = true;
+        }
+        if (live) {
+            reschedule(entry);
+        }
+    }
+
+    /**
+     * Ricolloca una voce già scattata; se risulterebbe di nuovo scaduta
+     * (orologio tornato indietro, cancellazione fallita) la rimanda al
+     * prossimo tick invece di farla scattare subito all'infinito.
+     */
+    private void reschedule(Entry entry) {
+        if ((entry.deadline + tickMillis - 1) / tickMillis > currentTick) {
+            place(entry);
+        } else {
+            int index = (int) ((currentTick + 1) & (SLOTS - 1));
+            entry.next = slots[0][index];
+            slots[0][index] = entry;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package it.unimib.sd2025;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Stato di MULTI/WATCH di una connessione.
+ *
+ * Le chiavi osservate e la coda dei comandi sono usate solo dal thread della
+ * connessione; {@link #markModified()} invece viene chiamato dai thread che
+ * scrivono una chiave osservata. Per questo, finita una transazione (EXEC,
+ * DISCARD, UNWATCH), la connessione ne crea una nuova invece di azzerare
+ * questa: una segnalazione in ritardo non può sporcare la successiva.
+ */
+final class Transaction {
+    private final Set<String> watchedKeys = new HashSet<>();
+    private volatile boolean modified = false;
+
+    // null finché non viene chiamato MULTI
+    private List<String[]> queued;
+    private boolean queueFailed = false;
+
+    /**
+     * Una chiave osservata è stata modificata: EXEC dovrà annullare la transazione.
+     */
+    void markModified() {
+        modified = true;
+    }
+
+    boolean isModified() {
+        return modified;
+    }
+
+    Set<String> watchedKeys() {
+        return watchedKeys;
+    }
+
+    boolean isQueuing() {
+        return queued != null;
+    }
+
+    void begin() {
+        queued = new ArrayList<>();
+    }
+
+    void queue(String[] command) {
+        queued.add(command);
+    }
+
+    /**
+     * Un comando non valido in coda fa fallire l'intera transazione, come in Redis.
+     */
+    void failQueue() {
+        queueFailed = true;
+    }
+
+    boolean hasQueueFailed() {
+        return queueFailed;
+    }
+
+    List<String[]> queued() {
+        return queued;
+    }
+}
@@ -0,0 +1,257 @@
+package it.unimib.sd2025;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stored procedure per budget e buoni, le operazioni più frequenti del
+ * server web. Seguono le convenzioni delle chiavi del server web: hash
+ * {@code user:<id>} con i tre campi di budget, hash
+ * {@code voucher:{user:<id>}:<numero>} con userId, amount e status. L'hash
+ * tag dell'utente tiene il buono sul nodo del suo utente anche con più
+ * nodi; il numero lo sceglie il server web (da {@code counter:voucher}) e
+ * arriva come chiave di create_voucher, quindi creare un buono non scrive
+ * ogni volta la stessa chiave.
+ *
+ * Gli importi sono spostati con HMOVE, quindi nessun utente può spendere
+ * più del budget disponibile. Le procedure sui buoni bloccano sia l'utente
+ * sia il buono: l'utente di consume_voucher e delete_voucher è una chiave
+ * ricavata dal buono prima del lock.
+ * Tutto ciò che può fallire viene controllato prima di spostare il budget;
+ * se la scrittura del buono fallisce comunque, lo spostamento viene annullato.
+ *
+ * Ogni creazione, consumo o cancellazione di un buono aggiunge una voce
+ * allo stream {@code stream:vouchers} (campi type, voucher, user, amount),
+ * tenuto alle ultime {@link #MAX_EVENTS} voci: chi esporta o aggrega i
+ * buoni riprende dall'ultimo id visto invece di riesaminarli tutti. Lo
+ * stream copre solo queste tre operazioni: il cambio di categoria, che il
+ * server web fa con una transazione ottimistica, non aggiunge eventi. Lo
+ * stream non è tra le chiavi bloccate, altrimenti tutte le procedure sui
+ * buoni si serializzerebbero sulla sua striscia: la voce viene aggiunta con
+ * una scrittura su singola chiave appena la procedura (o l'EXEC che la
+ * contiene) rilascia i lock. Gli eventi di un buono sono in ordine, perché
+ * la risposta di una procedura parte solo dopo l'aggiunta del suo evento e
+ * chi consuma o cancella un buono ne conosce già la creazione; quelli di
+ * procedure concorrenti su buoni diversi sono nell'ordine delle aggiunte.
+ */
+final class VoucherProcedures {
+    private static final String AVAILABLE = "availableBudget";
+    private static final String USED = "usedBudget";
+    private static final String CONSUMED = "consumedBudget";
+
+    private static final String USER_PREFIX = "user:";
+    private static final String EVENTS = "stream:vouchers";
+    private static final long MAX_EVENTS = 100_000;
+    private static final String STATUS_ACTIVE = "active";
+    private static final String STATUS_CONSUMED = "consumed";
+
+    private VoucherProcedures() {
+    }
+
+    static void register() {
+        Procedures.register("reserve_budget", 1, (db, keys, args) -> moveBudget(db, args, AVAILABLE, USED));
+        Procedures.register("release_budget", 1, (db, keys, args) -> moveBudget(db, args, USED, AVAILABLE));
+        Procedures.register("consume_budget", 1, (db, keys, args) -> moveBudget(db, args, USED, CONSUMED));
+        Procedures.register("create_voucher", 2, VoucherProcedures::createVoucher);
+        Procedures.register("consume_voucher", 1, VoucherProcedures::ownerKey, VoucherProcedures::consumeVoucher);
+        Procedures.register("delete_voucher", 1, VoucherProcedures::ownerKey, VoucherProcedures::deleteVoucher);
+    }
+
+    /**
+     * reserve_budget / release_budget / consume_budget utente importo:
+     * risponde come HMOVE.
+     */
+    private static String moveBudget(KeyValueDatabase db, List<String> args, String from, String to) {
+        requireArguments(args, 2, "user amount");
+
+        KeyValueDatabase.HashMove move = db.hashMove(args.get(0), from, to, args.get(1));
+        if (move == null) {
+            return "NIL";
+        }
+        return "OK " + (move.moved() ? 1 : 0) + " " + move.source() + " " + move.destination();
+    }
+
+    /**
+     * Chiave dell'utente a cui appartiene il buono; nessuna se il buono non esiste.
+     */
+    private static List<String> ownerKey(KeyValueDatabase db, List<String> args) {
+        String userId = db.hashGet(args.get(0), "userId");
+        return userId != null ? List.of(USER_PREFIX + userId) : List.of();
+    }
+
+    /**
+     * create_voucher utente buono importo campo valore [campo valore ...]:
+     * riserva l'importo e, se il budget basta, crea il buono con i campi
+     * indicati. Risponde {@code OK 1}, {@code OK 0 <disponibile>} se il
+     * budget non basta, NIL se l'utente non esiste, ERR se il buono esiste già.
+     */
+    private static String createVoucher(KeyValueDatabase db, List<String> keys, List<String> args) {
+        if (args.size() < 5 || args.size() % 2 != 1) {
+            throw new IllegalArgumentException("create_voucher requires user, voucher, amount and field value pairs");
+        }
+
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (int i = 3; i < args.size(); i += 2) {
+            fields.put(args.get(i), args.get(i + 1));
+        }
+
+        String userKey = keys.get(0);
+        String voucherKey = keys.get(1);
+        if (!"none".equals(db.type(voucherKey))) {
+            return "ERR " + voucherKey + " already exists";
+        }
+        String eventsError = checkEvents(db);
+        if (eventsError != null) {
+            return eventsError;
+        }
+
+        String amount = args.get(2);
+        KeyValueDatabase.HashMove move = db.hashMove(userKey, AVAILABLE, USED, amount);
+        if (move == null) {
+            return "NIL";
+        }
+        if (!move.moved()) {
+            return "OK 0 " + move.source();
+        }
+
+        undoOnFailure(db, userKey, USED, AVAILABLE, amount, () -> db.hashSet(voucherKey, fields));
+        recordEvent(db, "create", voucherKey, userKey, amount);
+        return "OK 1";
+    }
+
+    /**
+     * consume_voucher buono consumedAt: segna il buono come consumato e sposta
+     * il suo importo su consumedBudget. Risponde {@code OK 1}, {@code OK 0} se
+     * era già consumato, NIL se non esiste, ERR se il budget dell'utente non
+     * è coerente con il buono.
+     */
+    private static String consumeVoucher(KeyValueDatabase db, List<String> keys, List<String> args) {
+        requireArguments(args, 2, "voucher consumedAt");
+
+        String voucherKey = args.get(0);
+        List<String> voucher = db.hashMultiGet(voucherKey, List.of("userId", "amount", "status"));
+        if (voucher.get(0) == null) {
+            return "NIL";
+        }
+        String userKey = USER_PREFIX + voucher.get(0);
+        if (!keys.contains(userKey)) {
+            return null;
+        }
+        if (!STATUS_ACTIVE.equals(voucher.get(2))) {
+            return "OK 0";
+        }
+        String eventsError = checkEvents(db);
+        if (eventsError != null) {
+            return eventsError;
+        }
+
+        String error = moveVoucherAmount(db, userKey, USED, CONSUMED, voucher.get(1));
+        if (error != null) {
+            return error;
+        }
+        undoOnFailure(db, userKey, CONSUMED, USED, voucher.get(1),
+            () -> db.hashSet(voucherKey, Map.of("status", STATUS_CONSUMED, "consumedAt", args.get(1))));
+        recordEvent(db, "consume", voucherKey, userKey, voucher.get(1));
+        return "OK 1";
+    }
+
+    /**
+     * delete_voucher buono: cancella un buono non consumato e restituisce il
+     * suo importo al budget disponibile. Risponde {@code OK 1}, {@code OK 0}
+     * se è già consumato, NIL se non esiste, ERR se il budget dell'utente non
+     * è coerente con il buono.
+     */
+    private static String deleteVoucher(KeyValueDatabase db, List<String> keys, List<String> args) {
+        requireArguments(args, 1, "voucher");
+
+        String voucherKey = args.get(0);
+        List<String> voucher = db.hashMultiGet(voucherKey, List.of("userId", "amount", "status"));
+        if (voucher.get(0) == null) {
+            return "NIL";
+        }
+        String userKey = USER_PREFIX + voucher.get(0);
+        if (!keys.contains(userKey)) {
+            return null;
+        }
+        if (STATUS_CONSUMED.equals(voucher.get(2))) {
+            return "OK 0";
+        }
+        String eventsError = checkEvents(db);
+        if (eventsError != null) {
+            return eventsError;
+        }
+
+        String error = moveVoucherAmount(db, userKey, USED, AVAILABLE, voucher.get(1));
+        if (error != null) {
+            return error;
+        }
+        undoOnFailure(db, userKey, AVAILABLE, USED, voucher.get(1), () -> db.delete(voucherKey));
+        recordEvent(db, "delete", voucherKey, userKey, voucher.get(1));
+        return "OK 1";
+    }
+
+    /**
+     * Sposta l'importo di un buono esistente; restituisce l'errore da
+     * rispondere se non è stato spostato, altrimenti null.
+     */
+    private static String moveVoucherAmount(KeyValueDatabase db, String userKey, String from, String to, String amount) {
+        KeyValueDatabase.HashMove move = db.hashMove(userKey, from, to, amount);
+        if (move == null) {
+            return "ERR voucher owner " + userKey + " does not exist";
+        }
+        if (!move.moved()) {
+            return "ERR " + from + " of " + userKey + " is lower than the voucher amount";
+        }
+        return null;
+    }
+
+    /**
+     * Esegue write dopo uno spostamento di budget; se fallisce riporta
+     * l'importo da from a to e rilancia l'eccezione.
+     */
+    private static void undoOnFailure(KeyValueDatabase db, String userKey, String from, String to, String amount,
+                                      Runnable write) {
+        try {
+            write.run();
+        } catch (RuntimeException e) {
+            db.hashMove(userKey, from, to, amount);
+            throw e;
+        }
+    }
+
+    /**
+     * Errore da rispondere se stream:vouchers esiste ma non è uno stream:
+     * l'evento non potrebbe essere aggiunto dopo aver modificato il buono.
+     * Lo stream non è bloccato, quindi il controllo non è una garanzia (vedi recordEvent).
+     */
+    private static String checkEvents(KeyValueDatabase db) {
+        String type = db.type(EVENTS);
+        if (!"none".equals(type) && !"stream".equals(type)) {
+            return "ERR " + EVENTS + " is not a stream";
+        }
+        return null;
+    }
+
+    /**
+     * Aggiunge l'evento quando la procedura ha rilasciato i lock; il buono è
+     * già modificato, quindi un'aggiunta fallita (stream sostituito nel
+     * frattempo da un altro tipo) viene solo segnalata.
+     */
+    private static void recordEvent(KeyValueDatabase db, String type, String voucherKey, String userKey, String amount) {
+        List<String> fields = List.of("type", type, "voucher", voucherKey, "user", userKey, "amount", amount);
+        db.afterUnlock(() -> {
+            try {
+                db.streamAdd(EVENTS, "*", fields, MAX_EVENTS);
+            } catch (RuntimeException e) {
+                System.err.println("Voucher event not recorded in " + EVENTS + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private static void requireArguments(List<String> args, int count, String usage) {
+        if (args.size() != count) {
+            throw new IllegalArgumentException("expected arguments: " + usage);
+        }
+    }
+}
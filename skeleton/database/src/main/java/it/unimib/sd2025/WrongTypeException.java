@@ -0,0 +1,13 @@
+package it.unimib.sd2025;
+
+/**
+ * Operazione applicata a una chiave che contiene un valore di tipo diverso
+ * (es. GET su un hash).
+ */
+class WrongTypeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    WrongTypeException() {
+        super("WRONGTYPE Operation against a key holding the wrong kind of value");
+    }
+}
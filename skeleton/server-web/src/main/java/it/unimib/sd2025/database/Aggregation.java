@@ -0,0 +1,147 @@
+package it.unimib.sd2025.database;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregazioni eseguite dal database accanto ai dati (SUM e COUNT, vedi
+ * TCP.md): si accodano e partono tutte insieme, con una pipeline per nodo
+ * inviata in parallelo, e i risultati dei nodi vengono sommati. Il costo è
+ * un round trip, qualunque sia il numero di chiavi.
+ *
+ * <pre>
+ * Aggregation aggregation = DatabaseClient.aggregation();
+ * Aggregation.Sum budgets = aggregation.sum("user:*", "totalBudget", "usedBudget");
+ * Aggregation.Count statuses = aggregation.count("voucher:*", "status");
+ * aggregation.execute();
+ * double used = budgets.get(1);
+ * long active = statuses.get("active");
+ * </pre>
+ */
+public class Aggregation {
+    private final List<String> commands = new ArrayList<>();
+    private final List<Result> results = new ArrayList<>();
+
+    Aggregation() {
+    }
+
+    /**
+     * Risultato di un'aggregazione, completato dalle risposte dei nodi.
+     */
+    private interface Result {
+        void merge(String response) throws DatabaseException;
+    }
+
+    /**
+     * Somme dei campi degli hash (o dei valori delle stringhe) e numero di
+     * chiavi sommate. Le somme dei nodi sono decimali esatte e si uniscono
+     * senza arrotondamenti; solo get le converte in double.
+     */
+    public static final class Sum implements Result {
+        private final BigDecimal[] sums;
+        private long keys;
+
+        private Sum(int fields) {
+            sums = new BigDecimal[fields];
+            Arrays.fill(sums, BigDecimal.ZERO);
+        }
+
+        public long keys() {
+            return keys;
+        }
+
+        /**
+         * Somma del campo in posizione index, nell'ordine passato a sum.
+         */
+        public double get(int index) {
+            return sums[index].doubleValue();
+        }
+
+        @Override
+        public void merge(String response) throws DatabaseException {
+            String[] parts = response.split(" ");
+            if (parts.length != sums.length + 2 || !"OK".equals(parts[0])) {
+                throw new DatabaseException("SUM failed: " + response);
+            }
+            keys += Long.parseLong(parts[1]);
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] = sums[i].add(new BigDecimal(parts[i + 2]));
+            }
+        }
+    }
+
+    /**
+     * Numero di chiavi per valore di un campo.
+     */
+    public static final class Count implements Result {
+        private final Map<String, Long> counts = new TreeMap<>();
+
+        /**
+         * Chiavi con quel valore (0 se nessuna).
+         */
+        public long get(String value) {
+            return counts.getOrDefault(value, 0L);
+        }
+
+        public Map<String, Long> counts() {
+            return Collections.unmodifiableMap(counts);
+        }
+
+        @Override
+        public void merge(String response) throws DatabaseException {
+            if (!response.startsWith("OK ")) {
+                throw new DatabaseException("COUNT failed: " + response);
+            }
+            // OK <gruppi> "valore" <chiavi> ...
+            List<String> tokens = Protocol.parseTokens(response.substring(3));
+            try {
+                for (int i = 1; i + 1 < tokens.size(); i += 2) {
+                    counts.merge(tokens.get(i), Long.parseLong(tokens.get(i + 1)), Long::sum);
+                }
+            } catch (NumberFormatException e) {
+                throw new DatabaseException("Malformed COUNT response: " + response);
+            }
+        }
+    }
+
+    /**
+     * SUM - somma dei campi degli hash che matchano il pattern; senza campi
+     * somma i valori delle stringhe.
+     */
+    public Sum sum(String pattern, String... fields) {
+        StringBuilder command = new StringBuilder("SUM ").append(Protocol.quote(pattern));
+        for (String field : fields) {
+            command.append(' ').append(Protocol.quote(field));
+        }
+        return add(command.toString(), new Sum(Math.max(1, fields.length)));
+    }
+
+    /**
+     * COUNT - chiavi che matchano il pattern raggruppate per valore del campo.
+     */
+    public Count count(String pattern, String field) {
+        return add("COUNT " + Protocol.quote(pattern) + " " + Protocol.quote(field), new Count());
+    }
+
+    private <T extends Result> T add(String command, T result) {
+        commands.add(command);
+        results.add(result);
+        return result;
+    }
+
+    /**
+     * Esegue le aggregazioni accodate su tutti i nodi e completa i risultati.
+     */
+    public void execute() throws DatabaseException {
+        for (List<String> responses : DatabaseClient.executeOnAllNodes(commands)) {
+            for (int i = 0; i < results.size(); i++) {
+                results.get(i).merge(responses.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package it.unimib.sd2025.database;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool limitato di connessioni persistenti verso il database.
+ *
+ * Al massimo {@code maxSize} connessioni possono essere in uso o inattive
+ * contemporaneamente; chi chiede una connessione oltre il limite attende
+ * fino a {@code maxWaitMillis}. Le connessioni inattive da più di
+ * {@code validationIntervalMillis} vengono verificate con PING prima di
+ * essere riconsegnate, e quelle inattive da più di {@code idleTimeoutMillis}
+ * vengono chiuse da un thread di eviction in background.
+ */
+class ConnectionPool {
+    private final String host;
+    private final int port;
+    private final int maxSize;
+    private final long maxWaitMillis;
+    private final long idleTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    // Connessioni inattive: la testa è la più recente (LIFO), così le connessioni
+    // poco usate invecchiano in coda e vengono chiuse dall'eviction
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+
+    // Un permesso per ogni connessione in uso: se ne apre una nuova solo quando
+    // non ce ne sono di inattive, quindi il totale resta entro maxSize
+    private final Semaphore permits;
+
+    private final ScheduledExecutorService evictor;
+
+    ConnectionPool(String host, int port, int maxSize, long maxWaitMillis, long idleTimeoutMillis,
+                   long validationIntervalMillis, int connectTimeoutMillis, int readTimeoutMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+        }
+        this.host = host;
+        this.port = port;
+        this.maxSize = maxSize;
+        this.maxWaitMillis = maxWaitMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "db-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ottiene una connessione sana dal pool, aprendone una nuova se non ce ne sono di inattive.
+     * Attende al massimo {@code maxWaitMillis} se il pool è esaurito.
+     */
+    PooledConnection borrow() throws DatabaseException {
+        try {
+            if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new DatabaseException("Timeout waiting for a database connection (pool size " + maxSize + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                long now = System.currentTimeMillis();
+                if (connection.idleMillis(now) < validationIntervalMillis || connection.validate()) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return new PooledConnection(host, port, connectTimeoutMillis, readTimeoutMillis);
+
+        } catch (IOException e) {
+            permits.release();
+            throw new DatabaseException("Database connection failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Restituisce al pool una connessione ancora utilizzabile.
+     */
+    void release(PooledConnection connection) {
+        connection.touch();
+        idle.offerFirst(connection);
+        permits.release();
+    }
+
+    /**
+     * Scarta una connessione in stato incerto (errore di I/O, risposta mancante).
+     */
+    void invalidate(PooledConnection connection) {
+        connection.close();
+        permits.release();
+    }
+
+    /**
+     * Chiude le connessioni rimaste inattive oltre il timeout.
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext()) {
+            PooledConnection connection = oldestFirst.next();
+            if (connection.idleMillis(now) >= idleTimeoutMillis && idle.removeLastOccurrence(connection)) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Chiude tutte le connessioni inattive e ferma l'eviction.
+     */
+    void close() {
+        evictor.shutdownNow();
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+}
@@ -1,51 +1,319 @@
 package it.unimib.sd2025.database;
 
 import java.io.*;
-import java.net.*;
+import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Client per comunicare con il database via protocollo TCP.
- * Implementa connection pooling semplificato e gestione errori robusta.
+ * Usa un pool limitato di connessioni persistenti per ogni nodo, configurabile
+ * tramite system property (es. {@code -Ddb.pool.size=32}).
+ *
+ * Le chiavi possono essere distribuite su più nodi del database
+ * ({@code -Ddb.nodes=localhost:3030,localhost:3031}) con consistent hashing,
+ * vedi {@link ShardRing}: ogni comando su una chiave va al nodo che la
+ * possiede, le operazioni su più chiavi vengono divise per nodo e i
+ * risultati ricomposti, e KEYS, SCAN, SIZE e PING interrogano tutti i nodi.
+ * Atomicità e transazioni valgono solo tra chiavi dello stesso nodo: le
+ * chiavi di una stessa entità si tengono insieme con un hash tag, ad esempio
+ * {@code {user:1}:name}.
  */
 public class DatabaseClient {
-    private static final String HOST = "localhost";
-    private static final int PORT = 3030;
     private static final DateTimeFormatter DATETIME_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
-    
+
     /**
-     * Esegue un comando sul database e restituisce la risposta.
+     * Numero massimo di comandi inviati in un blocco prima di leggerne le risposte:
+     * evita che client e server si blocchino a vicenda con i buffer del socket pieni.
      */
-    public static String executeCommand(String command) throws DatabaseException {
-        try (Socket socket = new Socket(HOST, PORT);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            
-            out.println(command);
-            String response = in.readLine();
-            
-            if (response == null) {
-                throw new DatabaseException("No response from database");
-            }
-            
-            if (response.startsWith("ERR")) {
-                throw new DatabaseException(response.substring(4)); // Rimuove "ERR "
+    private static final int MAX_PIPELINE_BATCH = 256;
+
+    /**
+     * Chiavi esaminate dal server per ogni pagina di SCAN.
+     */
+    private static final int SCAN_PAGE_SIZE = 1000;
+
+    /**
+     * Tentativi di una transazione ottimistica prima di rinunciare.
+     */
+    private static final int MAX_TRANSACTION_ATTEMPTS = 10;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("db.pool.connectTimeoutMs", 2000);
+    private static final int READ_TIMEOUT_MILLIS = Integer.getInteger("db.pool.readTimeoutMs", 10000);
+
+    /**
+     * Nodi del database, con un pool di connessioni ciascuno; la dimensione
+     * del pool è per nodo.
+     */
+    private static final ShardRing RING = new ShardRing(
+        ShardRing.parseNodes(System.getProperty("db.nodes", "localhost:3030")),
+        Integer.getInteger("db.nodes.virtualNodes", 160),
+        node -> new ConnectionPool(
+            ShardRing.host(node),
+            ShardRing.port(node),
+            Integer.getInteger("db.pool.size", 16),
+            Long.getLong("db.pool.maxWaitMs", 2000L),
+            Long.getLong("db.pool.idleTimeoutMs", 60000L),
+            Long.getLong("db.pool.validationIntervalMs", 5000L),
+            CONNECT_TIMEOUT_MILLIS,
+            READ_TIMEOUT_MILLIS
+        )
+    );
+
+    /**
+     * Prefisso dei canali su cui il database pubblica le modifiche di ogni chiave.
+     */
+    private static final String KEYSPACE_PREFIX = "__keyspace__:";
+
+    /**
+     * Thread virtuali per interrogare più nodi in parallelo: passano quasi
+     * tutto il tempo in attesa della risposta.
+     */
+    private static final ExecutorService NODE_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Id prenotati con un solo INCRBY per ogni contatore usato da nextId.
+     */
+    private static final int ID_BLOCK_SIZE = Integer.getInteger("db.ids.blockSize", 1000);
+    private static final Map<String, IdAllocator> ID_ALLOCATORS = new ConcurrentHashMap<>();
+
+    /**
+     * Esegue un comando sul nodo che possiede la chiave e restituisce la risposta.
+     * La connessione viene presa dal pool e restituita al termine; in caso di
+     * errore di I/O viene scartata, perché il suo stato non è più affidabile.
+     */
+    public static String executeCommand(String key, String command) throws DatabaseException {
+        return checkResponse(send(RING.poolFor(key), command));
+    }
+
+    /**
+     * Esegue più comandi in pipeline: i comandi partono insieme e le risposte
+     * vengono lette dopo, risparmiando un round trip per comando. keys indica
+     * la chiave di ogni comando; i comandi di nodi diversi vanno in pipeline
+     * separate, inviate in parallelo, e le risposte tornano nell'ordine dei
+     * comandi. L'ordine è garantito solo tra comandi dello stesso nodo.
+     * Se una risposta è un errore l'eccezione viene lanciata solo dopo aver
+     * letto tutte le risposte, così le connessioni restano allineate.
+     */
+    public static List<String> executePipeline(List<String> keys, List<String> commands) throws DatabaseException {
+        if (keys.size() != commands.size()) {
+            throw new IllegalArgumentException(keys.size() + " keys for " + commands.size() + " commands");
+        }
+        List<String> responses;
+        if (RING.size() == 1) {
+            responses = sendAll(RING.pool(0), commands);
+        } else {
+            String[] merged = new String[commands.size()];
+            Map<Integer, List<Integer>> groups = groupByNode(keys);
+            onNodes(groups, (node, indexes) -> {
+                List<String> nodeCommands = new ArrayList<>(indexes.size());
+                for (int index : indexes) {
+                    nodeCommands.add(commands.get(index));
+                }
+                List<String> nodeResponses = sendAll(RING.pool(node), nodeCommands);
+                for (int i = 0; i < indexes.size(); i++) {
+                    merged[indexes.get(i)] = nodeResponses.get(i);
+                }
+                return null;
+            });
+            responses = Arrays.asList(merged);
+        }
+
+        for (String response : responses) {
+            checkResponse(response);
+        }
+
+        return responses;
+    }
+
+    private static String send(ConnectionPool pool, String command) throws DatabaseException {
+        PooledConnection connection = pool.borrow();
+        String response;
+        try {
+            response = connection.execute(command);
+        } catch (IOException e) {
+            pool.invalidate(connection);
+            throw new DatabaseException("Database connection failed: " + e.getMessage(), e);
+        }
+
+        if (response == null) {
+            pool.invalidate(connection);
+            throw new DatabaseException("No response from database");
+        }
+        pool.release(connection);
+        return response;
+    }
+
+    private static List<String> sendAll(ConnectionPool pool, List<String> commands) throws DatabaseException {
+        List<String> responses = new ArrayList<>(commands.size());
+        PooledConnection connection = pool.borrow();
+        try {
+            for (int from = 0; from < commands.size(); from += MAX_PIPELINE_BATCH) {
+                int to = Math.min(from + MAX_PIPELINE_BATCH, commands.size());
+                List<String> batch = connection.executeAll(commands.subList(from, to));
+                if (batch == null) {
+                    pool.invalidate(connection);
+                    throw new DatabaseException("No response from database");
+                }
+                responses.addAll(batch);
             }
-            
-            return response;
-            
         } catch (IOException e) {
+            pool.invalidate(connection);
             throw new DatabaseException("Database connection failed: " + e.getMessage(), e);
         }
+        pool.release(connection);
+        return responses;
+    }
+
+    private static String checkResponse(String response) throws DatabaseException {
+        if (response.startsWith("ERR")) {
+            throw new DatabaseException(response.substring(4)); // Rimuove "ERR "
+        }
+        return response;
+    }
+
+    // === DISTRIBUZIONE SUI NODI ===
+
+    /**
+     * Lavoro da svolgere su un nodo, con le posizioni delle chiavi che gli appartengono.
+     */
+    @FunctionalInterface
+    private interface NodeTask<T> {
+        T run(int node, List<Integer> indexes) throws DatabaseException;
+    }
+
+    /**
+     * Posizioni delle chiavi raggruppate per nodo, nell'ordine in cui compaiono.
+     */
+    private static Map<Integer, List<Integer>> groupByNode(List<String> keys) {
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            groups.computeIfAbsent(RING.nodeFor(keys.get(i)), node -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    /**
+     * Tutti i nodi, ciascuno senza posizioni.
+     */
+    private static Map<Integer, List<Integer>> allNodes() {
+        Map<Integer, List<Integer>> nodes = new LinkedHashMap<>();
+        for (int node = 0; node < RING.size(); node++) {
+            nodes.put(node, List.of());
+        }
+        return nodes;
+    }
+
+    /**
+     * Esegue task su ogni nodo del gruppo, in parallelo se sono più di uno,
+     * e restituisce i risultati nell'ordine dei nodi. Attende sempre tutti i
+     * nodi e poi lancia il primo errore, così nessuna richiesta resta a metà.
+     */
+    private static <T> List<T> onNodes(Map<Integer, List<Integer>> groups, NodeTask<T> task) throws DatabaseException {
+        if (groups.size() == 1) {
+            Map.Entry<Integer, List<Integer>> group = groups.entrySet().iterator().next();
+            return Collections.singletonList(task.run(group.getKey(), group.getValue()));
+        }
+
+        List<Future<T>> futures = new ArrayList<>(groups.size());
+        for (Map.Entry<Integer, List<Integer>> group : groups.entrySet()) {
+            futures.add(NODE_EXECUTOR.submit(() -> task.run(group.getKey(), group.getValue())));
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        DatabaseException failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof DatabaseException cause ? cause
+                        : new DatabaseException("Database request failed: " + e.getCause().getMessage(), e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DatabaseException("Interrupted while waiting for the database", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    /**
+     * Crea una pipeline vuota a cui accodare comandi da inviare insieme.
+     */
+    public static Pipeline pipeline() {
+        return new Pipeline();
+    }
+
+    /**
+     * Crea un insieme vuoto di aggregazioni (SUM, COUNT) da eseguire sul database.
+     */
+    public static Aggregation aggregation() {
+        return new Aggregation();
+    }
+
+    /**
+     * Invia gli stessi comandi in pipeline a ogni nodo, in parallelo, e
+     * restituisce le risposte di ciascun nodo nell'ordine dei comandi.
+     */
+    static List<List<String>> executeOnAllNodes(List<String> commands) throws DatabaseException {
+        return onNodes(allNodes(), (node, indexes) -> {
+            List<String> responses = sendAll(RING.pool(node), commands);
+            for (String response : responses) {
+                checkResponse(response);
+            }
+            return responses;
+        });
+    }
+
+    /**
+     * Corpo di una transazione: osserva e legge le chiavi tramite la
+     * transazione e vi accoda le scritture, senza chiamare exec.
+     */
+    @FunctionalInterface
+    public interface TransactionBody<T, E extends Exception> {
+        T run(Transaction transaction) throws DatabaseException, E;
+    }
+
+    /**
+     * Esegue una transazione ottimistica (WATCH/MULTI/EXEC): se una chiave
+     * osservata cambia prima di EXEC nulla viene applicato e il corpo viene
+     * rieseguito da capo, sui dati aggiornati. Sostituisce i lock nel server
+     * web, quindi funziona anche con più istanze.
+     * Restituisce il valore restituito dal corpo nel tentativo riuscito.
+     */
+    public static <T, E extends Exception> T transaction(TransactionBody<T, E> body) throws DatabaseException, E {
+        for (int attempt = 0; attempt < MAX_TRANSACTION_ATTEMPTS; attempt++) {
+            try (Transaction transaction = new Transaction(RING)) {
+                T result = body.run(transaction);
+                if (transaction.exec() != null) {
+                    return result;
+                }
+            }
+        }
+        throw new DatabaseException("Transaction aborted " + MAX_TRANSACTION_ATTEMPTS + " times by concurrent updates");
     }
     
     /**
      * Operazione SET generica.
+     * Il valore viene quotato, quindi spazi e stringhe vuote sono preservati.
      */
     public static boolean set(String key, String value) throws DatabaseException {
-        String command = String.format("SET %s %s", key, value != null ? value : "");
-        String response = executeCommand(command);
+        String command = String.format("SET %s %s", key, Protocol.quote(value));
+        String response = executeCommand(key, command);
         return response.equals("OK");
     }
     
@@ -54,7 +322,7 @@ public class DatabaseClient {
      */
     public static String get(String key) throws DatabaseException {
         String command = String.format("GET %s", key);
-        String response = executeCommand(command);
+        String response = executeCommand(key, command);
         
         if ("NIL".equals(response)) {
             return null;
@@ -72,7 +340,7 @@ public class DatabaseClient {
      */
     public static boolean delete(String key) throws DatabaseException {
         String command = String.format("DEL %s", key);
-        String response = executeCommand(command);
+        String response = executeCommand(key, command);
         return "OK".equals(response);
     }
     
@@ -81,23 +349,310 @@ public class DatabaseClient {
      */
     public static boolean exists(String key) throws DatabaseException {
         String command = String.format("EXISTS %s", key);
-        String response = executeCommand(command);
+        String response = executeCommand(key, command);
         return "OK 1".equals(response);
     }
     
     /**
-     * Operazione KEYS - trova chiavi che matchano pattern.
+     * Operazione MGET - legge più chiavi con un solo round trip per nodo.
+     * Restituisce i valori nello stesso ordine delle chiavi, null per quelle assenti.
+     */
+    public static String[] mget(String... keys) throws DatabaseException {
+        String[] values = new String[keys.length];
+        onNodes(groupByNode(Arrays.asList(keys)), (node, indexes) -> {
+            StringBuilder command = new StringBuilder("MGET");
+            for (int index : indexes) {
+                command.append(' ').append(keys[index]);
+            }
+            String response = checkResponse(send(RING.pool(node), command.toString()));
+            
+            if (!response.startsWith("OK")) {
+                throw new DatabaseException("MGET failed: " + response);
+            }
+            
+            List<String> nodeValues = Protocol.parseValues(response.substring(2));
+            if (nodeValues.size() != indexes.size()) {
+                throw new DatabaseException("MGET returned " + nodeValues.size() + " values for " + indexes.size() + " keys");
+            }
+            for (int i = 0; i < indexes.size(); i++) {
+                values[indexes.get(i)] = nodeValues.get(i);
+            }
+            return null;
+        });
+        return values;
+    }
+    
+    /**
+     * Operazione MSET - scrive più chiavi con un solo round trip per nodo.
+     * È atomica solo tra le chiavi dello stesso nodo: se un nodo fallisce le
+     * scritture degli altri restano. L'ordine di iterazione della mappa è
+     * l'ordine di scrittura su ogni nodo.
+     */
+    public static boolean mset(Map<String, String> entries) throws DatabaseException {
+        List<String> keys = new ArrayList<>(entries.keySet());
+        List<Boolean> results = onNodes(groupByNode(keys), (node, indexes) -> {
+            StringBuilder command = new StringBuilder("MSET");
+            for (int index : indexes) {
+                String key = keys.get(index);
+                command.append(' ').append(key).append(' ').append(Protocol.quote(entries.get(key)));
+            }
+            return "OK".equals(checkResponse(send(RING.pool(node), command.toString())));
+        });
+        return !results.contains(false);
+    }
+    
+    /**
+     * Operazione MDEL - elimina più chiavi con un solo round trip per nodo.
+     * Restituisce il numero di chiavi eliminate.
+     */
+    public static int mdelete(String... keys) throws DatabaseException {
+        List<Integer> deleted = onNodes(groupByNode(Arrays.asList(keys)), (node, indexes) -> {
+            StringBuilder command = new StringBuilder("MDEL");
+            for (int index : indexes) {
+                command.append(' ').append(keys[index]);
+            }
+            return parseCount("MDEL", checkResponse(send(RING.pool(node), command.toString())));
+        });
+        return deleted.stream().mapToInt(Integer::intValue).sum();
+    }
+    
+    // === OPERAZIONI SU HASH ===
+    
+    /**
+     * Operazione HSET - imposta uno o più campi di un hash in modo atomico.
+     * Restituisce il numero di campi nuovi.
+     */
+    public static int hset(String key, Map<String, String> fields) throws DatabaseException {
+        return parseCount("HSET", executeCommand(key, hsetCommand(key, fields)));
+    }
+    
+    /**
+     * Operazione HGET - valore di un campo, null se assente.
+     */
+    public static String hget(String key, String field) throws DatabaseException {
+        String response = executeCommand(key, String.format("HGET %s %s", key, field));
+        return response.startsWith("OK ") ? response.substring(3) : null;
+    }
+    
+    /**
+     * Operazione HMGET - più campi dello stesso hash con un solo round trip.
+     * Restituisce i valori nell'ordine dei campi, null per quelli assenti.
+     */
+    public static String[] hmget(String key, String... fields) throws DatabaseException {
+        String response = executeCommand(key, hmgetCommand(key, fields));
+        return parseHashValues(response, fields.length);
+    }
+    
+    /**
+     * HMGET degli stessi campi su più hash, inviati in pipeline (una per nodo).
+     * Restituisce un array di valori per ogni chiave, nello stesso ordine.
+     */
+    public static List<String[]> hmgetMany(String[] keys, String... fields) throws DatabaseException {
+        List<String> commands = new ArrayList<>(keys.length);
+        for (String key : keys) {
+            commands.add(hmgetCommand(key, fields));
+        }
+        
+        List<String[]> results = new ArrayList<>(keys.length);
+        for (String response : executePipeline(Arrays.asList(keys), commands)) {
+            results.add(parseHashValues(response, fields.length));
+        }
+        return results;
+    }
+    
+    /**
+     * Operazione HGETALL - tutti i campi di un hash (mappa vuota se non esiste).
+     */
+    public static Map<String, String> hgetAll(String key) throws DatabaseException {
+        return parseHash(executeCommand(key, String.format("HGETALL %s", key)));
+    }
+    
+    /**
+     * Interpreta la risposta di un HGETALL inviato in pipeline.
+     */
+    public static Map<String, String> parseHash(String response) throws DatabaseException {
+        if (!response.startsWith("OK")) {
+            throw new DatabaseException("HGETALL failed: " + response);
+        }
+        
+        List<String> values = Protocol.parseValues(response.substring(2));
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < values.size(); i += 2) {
+            fields.put(values.get(i), values.get(i + 1));
+        }
+        return fields;
+    }
+    
+    /**
+     * Operazione HDEL - rimuove campi da un hash.
+     * Restituisce il numero di campi rimossi.
+     */
+    public static int hdel(String key, String... fields) throws DatabaseException {
+        String command = "HDEL " + key + " " + String.join(" ", fields);
+        return parseCount("HDEL", executeCommand(key, command));
+    }
+    
+    /**
+     * Operazione HINCRBYFLOAT - somma atomica su un campo numerico.
+     * Restituisce il nuovo valore.
+     */
+    public static double hincrByFloat(String key, String field, double increment) throws DatabaseException {
+        String response = executeCommand(key, String.format("HINCRBYFLOAT %s %s %s", key, field, increment));
+        if (response.startsWith("OK ")) {
+            return Double.parseDouble(response.substring(3));
+        }
+        throw new DatabaseException("HINCRBYFLOAT failed: " + response);
+    }
+    
+    /**
+     * Operazione HMOVE - sposta in modo atomico un importo (al massimo due
+     * decimali) da un campo a un altro dello stesso hash, solo se il campo di
+     * origine non diventa negativo. Restituisce null se l'hash non esiste.
+     */
+    public static HashMove hmove(String key, String source, String destination, double amount) throws DatabaseException {
+        return parseMove(executeCommand(key, hmoveCommand(key, source, destination, amount)));
+    }
+    
+    /**
+     * Esito di HMOVE: se l'importo è stato spostato e i valori dei due campi dopo l'operazione.
+     */
+    public record HashMove(boolean moved, double source, double destination) {
+    }
+    
+    /**
+     * Interpreta la risposta di un HMOVE inviato in pipeline o in una transazione.
+     */
+    public static HashMove parseMove(String response) throws DatabaseException {
+        if ("NIL".equals(response)) {
+            return null;
+        }
+        String[] parts = response.split(" ");
+        if (parts.length != 4 || !"OK".equals(parts[0])) {
+            throw new DatabaseException("HMOVE failed: " + response);
+        }
+        return new HashMove("1".equals(parts[1]), Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+    }
+    
+    static String hmoveCommand(String key, String source, String destination, double amount) {
+        // toPlainString evita la notazione esponenziale di Double.toString
+        return String.format("HMOVE %s %s %s %s", key, source, destination, BigDecimal.valueOf(amount).toPlainString());
+    }
+    
+    static String hsetCommand(String key, Map<String, String> fields) {
+        StringBuilder command = new StringBuilder("HSET ").append(key);
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            command.append(' ').append(field.getKey()).append(' ').append(Protocol.quote(field.getValue()));
+        }
+        return command.toString();
+    }
+    
+    static String hmgetCommand(String key, String... fields) {
+        return "HMGET " + key + " " + String.join(" ", fields);
+    }
+    
+    static String[] parseHashValues(String response, int expected) throws DatabaseException {
+        if (!response.startsWith("OK")) {
+            throw new DatabaseException("HMGET failed: " + response);
+        }
+        
+        List<String> values = Protocol.parseValues(response.substring(2));
+        if (values.size() != expected) {
+            throw new DatabaseException("HMGET returned " + values.size() + " values for " + expected + " fields");
+        }
+        return values.toArray(new String[0]);
+    }
+    
+    private static int parseCount(String command, String response) throws DatabaseException {
+        if (response.startsWith("OK ")) {
+            return Integer.parseInt(response.substring(3));
+        }
+        throw new DatabaseException(command + " failed: " + response);
+    }
+    
+    // === SCADENZA DELLE CHIAVI ===
+    
+    /**
+     * Operazione EXPIRE - la chiave viene cancellata dal database dopo
+     * seconds secondi. Restituisce false se la chiave non esiste.
+     */
+    public static boolean expire(String key, long seconds) throws DatabaseException {
+        return "OK 1".equals(executeCommand(key, String.format("EXPIRE %s %d", key, seconds)));
+    }
+    
+    /**
+     * Operazione TTL - secondi prima della scadenza, -1 se la chiave non
+     * scade, -2 se non esiste.
+     */
+    public static long ttl(String key) throws DatabaseException {
+        String response = executeCommand(key, String.format("TTL %s", key));
+        if (response.startsWith("OK ")) {
+            return Long.parseLong(response.substring(3));
+        }
+        throw new DatabaseException("TTL failed: " + response);
+    }
+    
+    /**
+     * Operazione PERSIST - toglie la scadenza. Restituisce false se la
+     * chiave non esiste o non aveva una scadenza.
+     */
+    public static boolean persist(String key) throws DatabaseException {
+        return "OK 1".equals(executeCommand(key, String.format("PERSIST %s", key)));
+    }
+    
+    /**
+     * Operazione KEYS - trova chiavi che matchano pattern, su tutti i nodi.
      */
     public static String[] getKeys(String pattern) throws DatabaseException {
         String command = String.format("KEYS %s", pattern);
-        String response = executeCommand(command);
+        List<String> keys = new ArrayList<>();
+        for (String response : onNodes(allNodes(), (node, indexes) -> checkResponse(send(RING.pool(node), command)))) {
+            if (response.startsWith("OK ") && response.length() > 3) {
+                keys.addAll(Arrays.asList(response.substring(3).split(",")));
+            }
+        }
         
-        if (response.startsWith("OK ")) {
-            String keys = response.substring(3);
-            return keys.isEmpty() ? new String[0] : keys.split(",");
+        if (RING.size() > 1) {
+            Collections.sort(keys);
+        }
+        return keys.toArray(new String[0]);
+    }
+    
+    /**
+     * Tutte le chiavi che matchano un pattern glob, lette a pagine con SCAN
+     * da tutti i nodi in parallelo: nessuna risposta contiene l'intero elenco
+     * e nessun server resta impegnato su una singola scansione lunga.
+     * Le chiavi sono in ordine.
+     */
+    public static String[] scan(String pattern) throws DatabaseException {
+        List<String> keys = new ArrayList<>();
+        for (List<String> nodeKeys : onNodes(allNodes(), (node, indexes) -> scan(RING.pool(node), pattern))) {
+            keys.addAll(nodeKeys);
+        }
+        
+        if (RING.size() > 1) {
+            Collections.sort(keys);
         }
+        return keys.toArray(new String[0]);
+    }
+    
+    private static List<String> scan(ConnectionPool pool, String pattern) throws DatabaseException {
+        List<String> keys = new ArrayList<>();
+        String cursor = "0";
+        do {
+            String command = String.format("SCAN %s MATCH %s COUNT %d", cursor, Protocol.quote(pattern), SCAN_PAGE_SIZE);
+            String response = checkResponse(send(pool, command));
+            if (!response.startsWith("OK ")) {
+                throw new DatabaseException("SCAN failed: " + response);
+            }
+            
+            int end = response.indexOf(' ', 3);
+            cursor = end < 0 ? response.substring(3) : response.substring(3, end);
+            if (end >= 0) {
+                keys.addAll(Protocol.parseValues(response.substring(end)));
+            }
+        } while (!"0".equals(cursor));
         
-        return new String[0];
+        return keys;
     }
     
     /**
@@ -105,7 +660,7 @@ public class DatabaseClient {
      */
     public static int increment(String key) throws DatabaseException {
         String command = String.format("INCR %s", key);
-        String response = executeCommand(command);
+        String response = executeCommand(key, command);
         
         if (response.startsWith("OK ")) {
             return Integer.parseInt(response.substring(3));
@@ -115,48 +670,234 @@ public class DatabaseClient {
     }
     
     /**
-     * Operazione SIZE.
+     * Nuovo id dal contatore key, unico tra tutti i server web: gli id si
+     * prenotano a blocchi con INCRBY (vedi {@link IdAllocator}), quindi quasi
+     * sempre non serve un round trip. A differenza di INCR gli id non sono
+     * consecutivi tra server web diversi, e GET del contatore restituisce la
+     * fine dell'ultimo blocco prenotato.
      */
-    public static int getSize() throws DatabaseException {
-        String response = executeCommand("SIZE");
+    public static long nextId(String key) throws DatabaseException {
+        return ID_ALLOCATORS.computeIfAbsent(key, k -> new IdAllocator(k, ID_BLOCK_SIZE)).next();
+    }
+    
+    /**
+     * Operazione CALL - esegue una stored procedure registrata sul database,
+     * in un solo round trip, e ne restituisce la risposta (OK ... oppure NIL).
+     * Va al nodo della chiave passata come primo argomento: le altre chiavi
+     * che la procedura usa devono stare sullo stesso nodo, ad esempio i buoni
+     * {@code voucher:{user:1}:<numero>} con l'hash tag del loro utente.
+     */
+    public static String call(String procedure, String... args) throws DatabaseException {
+        StringBuilder command = new StringBuilder("CALL ").append(procedure);
+        for (String arg : args) {
+            command.append(' ').append(Protocol.quote(arg));
+        }
+        return executeCommand(args.length > 0 ? args[0] : procedure, command.toString());
+    }
+    
+    /**
+     * Operazione INCRBY - somma atomica di un intero (anche negativo) a un contatore.
+     */
+    public static long incrementBy(String key, long delta) throws DatabaseException {
+        String response = executeCommand(key, String.format("INCRBY %s %d", key, delta));
         
         if (response.startsWith("OK ")) {
-            return Integer.parseInt(response.substring(3));
+            return Long.parseLong(response.substring(3));
         }
         
-        throw new DatabaseException("Could not get database size");
+        throw new DatabaseException("Increment failed for key: " + key);
     }
     
     /**
-     * Test connessione database.
+     * Operazione SIZE - numero di chiavi, sommato su tutti i nodi.
+     */
+    public static int getSize() throws DatabaseException {
+        List<String> responses = onNodes(allNodes(), (node, indexes) -> checkResponse(send(RING.pool(node), "SIZE")));
+        
+        int size = 0;
+        for (String response : responses) {
+            if (!response.startsWith("OK ")) {
+                throw new DatabaseException("Could not get database size");
+            }
+            size += Integer.parseInt(response.substring(3));
+        }
+        return size;
+    }
+    
+    /**
+     * Test connessione database: true solo se rispondono tutti i nodi.
      */
     public static boolean ping() {
         try {
-            String response = executeCommand("PING");
-            return "PONG".equals(response);
+            List<String> responses = onNodes(allNodes(), (node, indexes) -> checkResponse(send(RING.pool(node), "PING")));
+            return responses.stream().allMatch("PONG"::equals);
         } catch (DatabaseException e) {
             return false;
         }
     }
     
+    // === STREAM ===
+    
+    /**
+     * Voce di uno stream: id ({@code <millisecondi>-<sequenza>}) e campi.
+     */
+    public record StreamEntry(String id, Map<String, String> fields) {
+    }
+    
+    /**
+     * Operazione XADD - aggiunge una voce con id generato dal database,
+     * tenendo lo stream alle ultime maxLength voci (maxLength &lt; 0: senza
+     * limite). Restituisce l'id della voce.
+     */
+    public static String xadd(String key, Map<String, String> fields, long maxLength) throws DatabaseException {
+        StringBuilder command = new StringBuilder("XADD ").append(Protocol.quote(key));
+        if (maxLength >= 0) {
+            command.append(" MAXLEN ").append(maxLength);
+        }
+        command.append(" *");
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            command.append(' ').append(Protocol.quote(field.getKey())).append(' ').append(Protocol.quote(field.getValue()));
+        }
+        String response = executeCommand(key, command.toString());
+        if (response.startsWith("OK ")) {
+            return response.substring(3);
+        }
+        throw new DatabaseException("XADD failed: " + response);
+    }
+    
+    /**
+     * Operazione XRANGE - fino a count voci con id tra start e end inclusi
+     * ({@code -} e {@code +}: dal primo all'ultimo).
+     */
+    public static List<StreamEntry> xrange(String key, String start, String end, int count) throws DatabaseException {
+        String command = String.format("XRANGE %s %s %s COUNT %d", Protocol.quote(key), start, end, count);
+        return parseEntries("XRANGE", executeCommand(key, command));
+    }
+    
+    /**
+     * Operazione XREVRANGE - come xrange, dalla voce più recente: con
+     * {@code "+", "-", 1} restituisce l'ultima voce.
+     */
+    public static List<StreamEntry> xrevrange(String key, String end, String start, int count) throws DatabaseException {
+        String command = String.format("XREVRANGE %s %s %s COUNT %d", Protocol.quote(key), end, start, count);
+        return parseEntries("XREVRANGE", executeCommand(key, command));
+    }
+    
+    /**
+     * Operazione XREAD - fino a count voci successive a afterId. Con
+     * blockMillis &gt; 0, se non ce ne sono, attende che arrivino al massimo
+     * blockMillis ms, da tenere sotto il timeout di lettura del pool
+     * (db.pool.readTimeoutMs): la connessione resta occupata per tutta
+     * l'attesa. Restituisce una lista vuota se non ci sono voci.
+     */
+    public static List<StreamEntry> xread(String key, String afterId, int count, long blockMillis) throws DatabaseException {
+        if (blockMillis >= READ_TIMEOUT_MILLIS) {
+            throw new DatabaseException("XREAD BLOCK must be shorter than the read timeout (" + READ_TIMEOUT_MILLIS + " ms)");
+        }
+        StringBuilder command = new StringBuilder("XREAD COUNT ").append(count);
+        if (blockMillis > 0) {
+            command.append(" BLOCK ").append(blockMillis);
+        }
+        command.append(" STREAMS ").append(Protocol.quote(key)).append(' ').append(afterId);
+        String response = executeCommand(key, command.toString());
+        if ("NIL".equals(response)) {
+            return List.of();
+        }
+        // Risposta di un solo stream: OK "chiave" <voci> ...
+        if (!response.startsWith("OK ")) {
+            throw new DatabaseException("XREAD failed: " + response);
+        }
+        List<String> tokens = Protocol.parseTokens(response.substring(3));
+        return parseEntries("XREAD", tokens.subList(1, tokens.size()));
+    }
+    
+    private static List<StreamEntry> parseEntries(String command, String response) throws DatabaseException {
+        if (!response.startsWith("OK ")) {
+            throw new DatabaseException(command + " failed: " + response);
+        }
+        return parseEntries(command, Protocol.parseTokens(response.substring(3)));
+    }
+    
+    /**
+     * Voci nel formato delle risposte: numero di voci, poi per ciascuna
+     * id, numero di coppie e coppie campo-valore.
+     */
+    private static List<StreamEntry> parseEntries(String command, List<String> tokens) throws DatabaseException {
+        try {
+            int count = Integer.parseInt(tokens.get(0));
+            List<StreamEntry> entries = new ArrayList<>(count);
+            int i = 1;
+            for (int entry = 0; entry < count; entry++) {
+                String id = tokens.get(i);
+                int pairs = Integer.parseInt(tokens.get(i + 1));
+                i += 2;
+                Map<String, String> fields = new LinkedHashMap<>();
+                for (int pair = 0; pair < pairs; pair++, i += 2) {
+                    fields.put(tokens.get(i), tokens.get(i + 1));
+                }
+                entries.add(new StreamEntry(id, fields));
+            }
+            return entries;
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new DatabaseException("Malformed " + command + " response");
+        }
+    }
+    
+    // === PUBLISH/SUBSCRIBE ===
+    
+    /**
+     * Operazione PUBLISH - invia un messaggio ai sottoscrittori del canale.
+     * Restituisce quanti lo hanno ricevuto: ogni sottoscrizione è collegata
+     * a tutti i nodi, quindi basta pubblicare su uno.
+     */
+    public static int publish(String channel, String message) throws DatabaseException {
+        String command = String.format("PUBLISH %s %s", Protocol.quote(channel), Protocol.quote(message));
+        return parseCount("PUBLISH", executeCommand(channel, command));
+    }
+    
+    /**
+     * Apre una sottoscrizione su connessioni dedicate verso tutti i nodi;
+     * canali e pattern si aggiungono poi con {@link Subscription#subscribe}
+     * e {@link Subscription#psubscribe}. Va chiusa con close.
+     */
+    public static Subscription subscribe(Subscription.Listener listener) {
+        List<String> nodes = new ArrayList<>(RING.size());
+        for (int node = 0; node < RING.size(); node++) {
+            nodes.add(RING.name(node));
+        }
+        return new Subscription(nodes, listener, CONNECT_TIMEOUT_MILLIS);
+    }
+    
+    /**
+     * Canale delle notifiche di modifica di una chiave (o pattern di chiavi,
+     * per psubscribe): il messaggio è il tipo di modifica, cioè set, hset,
+     * del, expired, expire, persist, oppure xadd e xtrim per gli stream.
+     */
+    public static String keyspaceChannel(String key) {
+        return KEYSPACE_PREFIX + key;
+    }
+    
+    /**
+     * Chiave a cui si riferisce un canale di notifica del keyspace.
+     */
+    public static String keyOfKeyspaceChannel(String channel) {
+        return channel.startsWith(KEYSPACE_PREFIX) ? channel.substring(KEYSPACE_PREFIX.length()) : null;
+    }
+    
     // === METODI HELPER PER OPERAZIONI COMMON ===
     
     /**
      * Salva un oggetto datetime come stringa.
      */
     public static void setDateTime(String key, LocalDateTime dateTime) throws DatabaseException {
-        String dateTimeStr = dateTime != null ? dateTime.format(DATETIME_FORMATTER) : "";
-        set(key, dateTimeStr);
+        set(key, formatDateTime(dateTime));
     }
     
     /**
      * Recupera un datetime da stringa.
      */
     public static LocalDateTime getDateTime(String key) throws DatabaseException {
-        String dateTimeStr = get(key);
-        return (dateTimeStr != null && !dateTimeStr.isEmpty()) 
-            ? LocalDateTime.parse(dateTimeStr, DATETIME_FORMATTER) 
-            : null;
+        return parseDateTime(get(key));
     }
     
     /**
@@ -170,8 +911,7 @@ public class DatabaseClient {
      * Recupera un double da stringa.
      */
     public static double getDouble(String key) throws DatabaseException {
-        String valueStr = get(key);
-        return (valueStr != null && !valueStr.isEmpty()) ? Double.parseDouble(valueStr) : 0.0;
+        return parseDouble(get(key));
     }
     
     /**
@@ -185,23 +925,43 @@ public class DatabaseClient {
      * Recupera un int da stringa.
      */
     public static int getInt(String key) throws DatabaseException {
-        String valueStr = get(key);
+        return parseInt(get(key));
+    }
+    
+    // === CONVERSIONI (usate anche sui valori restituiti da MGET) ===
+    
+    public static String formatDateTime(LocalDateTime dateTime) {
+        return dateTime != null ? dateTime.format(DATETIME_FORMATTER) : "";
+    }
+    
+    public static LocalDateTime parseDateTime(String valueStr) {
+        return (valueStr != null && !valueStr.isEmpty()) 
+            ? LocalDateTime.parse(valueStr, DATETIME_FORMATTER) 
+            : null;
+    }
+    
+    public static double parseDouble(String valueStr) {
+        return (valueStr != null && !valueStr.isEmpty()) ? Double.parseDouble(valueStr) : 0.0;
+    }
+    
+    public static int parseInt(String valueStr) {
         return (valueStr != null && !valueStr.isEmpty()) ? Integer.parseInt(valueStr) : 0;
     }
     
     /**
-     * Operazione transazionale per aggiornare i budget di un utente.
-     * Questa è una simulazione di transazione - in un database reale useresti BEGIN/COMMIT.
+     * Aggiorna i tre budget di un utente con un unico HSET,
+     * applicato dal database in modo atomico (tutti o nessuno).
      */
     public static boolean updateUserBudgets(int userId, double availableBudget, 
                                           double usedBudget, double consumedBudget) throws DatabaseException {
         try {
-            setDouble(String.format("user:%d:availableBudget", userId), availableBudget);
-            setDouble(String.format("user:%d:usedBudget", userId), usedBudget);
-            setDouble(String.format("user:%d:consumedBudget", userId), consumedBudget);
+            Map<String, String> budgets = new LinkedHashMap<>();
+            budgets.put("availableBudget", String.valueOf(availableBudget));
+            budgets.put("usedBudget", String.valueOf(usedBudget));
+            budgets.put("consumedBudget", String.valueOf(consumedBudget));
+            hset("user:" + userId, budgets);
             return true;
         } catch (DatabaseException e) {
-            // In un vero database dovresti fare ROLLBACK qui
             throw new DatabaseException("Failed to update user budgets: " + e.getMessage(), e);
         }
     }
@@ -0,0 +1,53 @@
+package it.unimib.sd2025.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generatore di id da un contatore del database (es. {@code counter:user})
+ * senza un round trip per id: prenota blocchi di id consecutivi con un solo
+ * INCRBY e li distribuisce localmente da un AtomicLong. Il database vede
+ * una scrittura sul contatore ogni blockSize id invece di una per id.
+ *
+ * Gli id restano unici anche con più server web sullo stesso contatore, ma
+ * non seguono l'ordine di creazione tra server diversi; gli id prenotati e
+ * non usati (ad esempio quando il server web si ferma) vanno persi.
+ */
+final class IdAllocator {
+    /**
+     * Blocco prenotato: gli id da next a end inclusi.
+     */
+    private record Block(AtomicLong next, long end) {
+    }
+
+    private final String key;
+    private final int blockSize;
+    private volatile Block block = new Block(new AtomicLong(1), 0);
+
+    IdAllocator(String key, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        this.key = key;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Prossimo id; va sul database solo quando il blocco corrente è esaurito.
+     */
+    long next() throws DatabaseException {
+        while (true) {
+            Block current = block;
+            long id = current.next().getAndIncrement();
+            if (id <= current.end()) {
+                return id;
+            }
+            synchronized (this) {
+                // Un altro thread può aver già prenotato il blocco successivo
+                if (block == current) {
+                    long end = DatabaseClient.incrementBy(key, blockSize);
+                    block = new Block(new AtomicLong(end - blockSize + 1), end);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package it.unimib.sd2025.database;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sequenza di comandi da inviare al database in un solo round trip per nodo.
+ * I metodi di scrittura rispecchiano quelli di {@link DatabaseClient}.
+ *
+ * <pre>
+ * DatabaseClient.pipeline()
+ *     .set("user:1:name", "Mario")
+ *     .setDouble("user:1:totalBudget", 500.0)
+ *     .execute();
+ * </pre>
+ */
+public class Pipeline {
+    // Chiave di ogni comando, per instradarlo al suo nodo
+    private final List<String> keys = new ArrayList<>();
+    private final List<String> commands = new ArrayList<>();
+
+    Pipeline() {
+    }
+
+    public Pipeline set(String key, String value) {
+        return add(key, String.format("SET %s %s", key, Protocol.quote(value)));
+    }
+
+    public Pipeline setDouble(String key, double value) {
+        return set(key, String.valueOf(value));
+    }
+
+    public Pipeline setInt(String key, int value) {
+        return set(key, String.valueOf(value));
+    }
+
+    public Pipeline setDateTime(String key, LocalDateTime dateTime) {
+        return set(key, DatabaseClient.formatDateTime(dateTime));
+    }
+
+    public Pipeline delete(String key) {
+        return add(key, String.format("DEL %s", key));
+    }
+
+    public Pipeline increment(String key) {
+        return add(key, String.format("INCR %s", key));
+    }
+
+    public Pipeline hset(String key, Map<String, String> fields) {
+        return add(key, DatabaseClient.hsetCommand(key, fields));
+    }
+
+    /**
+     * HGETALL in pipeline; la risposta si interpreta con {@link DatabaseClient#parseHash}.
+     */
+    public Pipeline hgetAll(String key) {
+        return add(key, String.format("HGETALL %s", key));
+    }
+
+    public Pipeline expire(String key, long seconds) {
+        return add(key, String.format("EXPIRE %s %d", key, seconds));
+    }
+
+    /**
+     * HMOVE in pipeline; la risposta si interpreta con {@link DatabaseClient#parseMove}.
+     */
+    public Pipeline hmove(String key, String source, String destination, double amount) {
+        return add(key, DatabaseClient.hmoveCommand(key, source, destination, amount));
+    }
+
+    private Pipeline add(String key, String command) {
+        keys.add(key);
+        commands.add(command);
+        return this;
+    }
+
+    /**
+     * Invia tutti i comandi accodati e restituisce le risposte nello stesso ordine.
+     * I comandi sulla stessa chiave vengono eseguiti nell'ordine in cui sono accodati.
+     */
+    public List<String> execute() throws DatabaseException {
+        return DatabaseClient.executePipeline(keys, commands);
+    }
+}
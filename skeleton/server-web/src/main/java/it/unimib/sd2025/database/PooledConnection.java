@@ -0,0 +1,93 @@
+package it.unimib.sd2025.database;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connessione TCP persistente verso il database, gestita da {@link ConnectionPool}.
+ * Non è thread-safe: viene usata da un solo thread alla volta tra borrow e release.
+ */
+class PooledConnection implements Closeable {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final BufferedWriter out;
+    private volatile long lastUsedAt;
+
+    PooledConnection(String host, int port, int connectTimeoutMillis, int readTimeoutMillis) throws IOException {
+        this.socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+        socket.setSoTimeout(readTimeoutMillis);
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        this.lastUsedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Invia un comando e attende la riga di risposta.
+     * Restituisce null se il server ha chiuso la connessione.
+     */
+    String execute(String command) throws IOException {
+        out.write(command);
+        out.write('\n');
+        out.flush();
+        return in.readLine();
+    }
+
+    /**
+     * Invia più comandi con un'unica scrittura e legge le risposte nello stesso ordine.
+     * Restituisce null se il server chiude la connessione prima di aver risposto a tutti.
+     */
+    List<String> executeAll(List<String> commands) throws IOException {
+        for (String command : commands) {
+            out.write(command);
+            out.write('\n');
+        }
+        out.flush();
+
+        List<String> responses = new ArrayList<>(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            String response = in.readLine();
+            if (response == null) {
+                return null;
+            }
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    /**
+     * Health check: verifica che il server risponda ancora a PING.
+     */
+    boolean validate() {
+        if (socket.isClosed() || !socket.isConnected()) {
+            return false;
+        }
+        try {
+            return "PONG".equals(execute("PING"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void touch() {
+        lastUsedAt = System.currentTimeMillis();
+    }
+
+    long idleMillis(long now) {
+        return now - lastUsedAt;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Connessione già chiusa lato server: niente da fare
+        }
+    }
+}
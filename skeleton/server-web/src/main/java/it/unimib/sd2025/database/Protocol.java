@@ -0,0 +1,100 @@
+package it.unimib.sd2025.database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Codifica dei valori nel protocollo testuale del database (vedi TCP.md).
+ * I valori viaggiano quotati ({@code "..."} con gli escape {@code \"} e {@code \\});
+ * nelle risposte con più valori una chiave assente è il token non quotato {@code NIL}.
+ */
+final class Protocol {
+
+    private Protocol() {
+    }
+
+    /**
+     * Quota un valore. Il protocollo è a righe, quindi eventuali a capo
+     * vengono sostituiti da spazi invece di spezzare il comando.
+     */
+    static String quote(String value) {
+        if (value == null) {
+            value = "";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n') {
+                c = ' ';
+            } else if (c == '"' || c == '\\') {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Decodifica una lista di valori quotati separati da spazi ({@code "v1" NIL "v3"}),
+     * restituendo null per ogni {@code NIL}.
+     */
+    static List<String> parseValues(String payload) throws DatabaseException {
+        List<String> values = new ArrayList<>();
+        int i = 0;
+        int length = payload.length();
+        while (i < length) {
+            char c = payload.charAt(i);
+            if (c == ' ') {
+                i++;
+            } else if (c == '"') {
+                StringBuilder value = new StringBuilder();
+                i++;
+                while (i < length && payload.charAt(i) != '"') {
+                    if (payload.charAt(i) == '\\' && i + 1 < length) {
+                        i++;
+                    }
+                    value.append(payload.charAt(i++));
+                }
+                if (i >= length) {
+                    throw new DatabaseException("Malformed response: unterminated value");
+                }
+                i++;
+                values.add(value.toString());
+            } else if (payload.startsWith("NIL", i)) {
+                values.add(null);
+                i += 3;
+            } else {
+                throw new DatabaseException("Malformed response: " + payload);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Come parseValues, ma accetta anche token non quotati (numeri e id
+     * delle voci di uno stream), restituiti così come sono.
+     */
+    static List<String> parseTokens(String payload) throws DatabaseException {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        int length = payload.length();
+        while (i < length) {
+            if (payload.charAt(i) == ' ') {
+                i++;
+            } else if (payload.charAt(i) == '"') {
+                int start = i++;
+                while (i < length && payload.charAt(i) != '"') {
+                    i += payload.charAt(i) == '\\' ? 2 : 1;
+                }
+                i++;
+                tokens.addAll(parseValues(payload.substring(start, Math.min(i, length))));
+            } else {
+                int end = payload.indexOf(' ', i);
+                String token = payload.substring(i, end < 0 ? length : end);
+                tokens.add("NIL".equals(token) ? null : token);
+                i += token.length();
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,155 @@
+package it.unimib.sd2025.database;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Distribuzione delle chiavi tra più nodi del database con consistent hashing.
+ *
+ * Ogni nodo occupa {@code virtualNodes} posizioni su un anello di hash a 64
+ * bit, calcolate dal suo indirizzo; una chiave appartiene al primo nodo che
+ * si incontra sull'anello dopo il suo hash. Con molte posizioni per nodo le
+ * chiavi si distribuiscono in modo uniforme, e aggiungere o togliere un nodo
+ * sposta solo le chiavi della sua parte di anello (circa 1/N), non quasi
+ * tutte come un semplice {@code hash % N}. Le posizioni dipendono solo dagli
+ * indirizzi, quindi ogni istanza del server web instrada allo stesso modo.
+ *
+ * Hash tag: se la chiave contiene {@code {...}} si usa solo il testo tra le
+ * prime graffe, così le chiavi di una stessa entità ({@code {user:1}:name},
+ * {@code {user:1}:email}) stanno sullo stesso nodo e possono comparire
+ * insieme in una transazione. Il tag {@code {user:1}} porta anche sul nodo
+ * della chiave {@code user:1}.
+ */
+final class ShardRing {
+    private final String[] names;
+    private final ConnectionPool[] pools;
+    // Posizioni sull'anello in ordine crescente e nodo di ciascuna
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * nodes sono indirizzi {@code host:porta}; pool crea il pool di connessioni di un nodo.
+     */
+    ShardRing(List<String> nodes, int virtualNodes, Function<String, ConnectionPool> pool) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("At least one database node is required");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Virtual nodes must be positive: " + virtualNodes);
+        }
+        this.names = nodes.toArray(new String[0]);
+        this.pools = new ConnectionPool[names.length];
+        for (int i = 0; i < names.length; i++) {
+            pools[i] = pool.apply(names[i]);
+        }
+
+        int count = names.length * virtualNodes;
+        long[][] entries = new long[count][];
+        for (int node = 0; node < names.length; node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                entries[node * virtualNodes + i] = new long[] {hash(names[node] + "#" + i), node};
+            }
+        }
+        Arrays.sort(entries, Comparator.comparingLong(entry -> entry[0]));
+        this.points = new long[count];
+        this.owners = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = entries[i][0];
+            owners[i] = (int) entries[i][1];
+        }
+    }
+
+    /**
+     * Nodi in formato {@code host:porta,host:porta} (es. il valore di {@code -Ddb.nodes}).
+     */
+    static List<String> parseNodes(String nodes) {
+        return Arrays.stream(nodes.split(","))
+            .map(String::trim)
+            .filter(node -> !node.isEmpty())
+            .toList();
+    }
+
+    static String host(String node) {
+        return node.substring(0, separator(node));
+    }
+
+    static int port(String node) {
+        return Integer.parseInt(node.substring(separator(node) + 1));
+    }
+
+    private static int separator(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Invalid database node (host:port expected): " + node);
+        }
+        return colon;
+    }
+
+    int size() {
+        return pools.length;
+    }
+
+    String name(int node) {
+        return names[node];
+    }
+
+    ConnectionPool pool(int node) {
+        return pools[node];
+    }
+
+    ConnectionPool poolFor(String key) {
+        return pools[nodeFor(key)];
+    }
+
+    /**
+     * Indice del nodo a cui appartiene la chiave.
+     */
+    int nodeFor(String key) {
+        if (pools.length == 1) {
+            return 0;
+        }
+        long hash = hash(hashTag(key));
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        // Oltre l'ultima posizione l'anello ricomincia dalla prima
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Parte della chiave usata per l'instradamento: il testo tra le prime
+     * graffe se non è vuoto, altrimenti l'intera chiave.
+     */
+    static String hashTag(String key) {
+        int open = key.indexOf('{');
+        if (open >= 0) {
+            int close = key.indexOf('}', open + 1);
+            if (close > open + 1) {
+                return key.substring(open + 1, close);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * FNV-1a a 64 bit sui caratteri, seguito dal mix finale di MurmurHash3:
+     * chiavi che differiscono solo nelle ultime cifre ({@code user:1},
+     * {@code user:2}) finiscono in punti lontani dell'anello.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
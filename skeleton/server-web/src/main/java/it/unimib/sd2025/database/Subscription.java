@@ -0,0 +1,239 @@
+package it.unimib.sd2025.database;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sottoscrizione a canali publish/subscribe del database, su connessioni
+ * dedicate e di lunga durata (una per nodo, fuori dal pool).
+ *
+ * I messaggi arrivano al {@link Listener} sul thread della connessione del
+ * nodo che li pubblica. Se una connessione cade viene riaperta dopo
+ * {@link #RETRY_MILLIS} ms con le stesse sottoscrizioni, e il listener ne
+ * viene avvisato: i messaggi pubblicati nel frattempo sono persi, quindi
+ * una cache deve svuotarsi.
+ *
+ * <pre>
+ * Subscription subscription = DatabaseClient.subscribe(listener);
+ * subscription.psubscribe(DatabaseClient.keyspaceChannel("user:*"));
+ * </pre>
+ */
+public class Subscription implements AutoCloseable {
+    private static final long RETRY_MILLIS = 1000;
+
+    /**
+     * Riceve i messaggi di una sottoscrizione.
+     */
+    public interface Listener {
+        /**
+         * Messaggio pubblicato su channel (direttamente o tramite un pattern).
+         */
+        void onMessage(String channel, String message);
+
+        /**
+         * Una connessione è stata riaperta dopo un'interruzione: i messaggi
+         * pubblicati mentre era chiusa non sono stati ricevuti.
+         */
+        default void onReconnect() {
+        }
+    }
+
+    private final Listener listener;
+    private final int connectTimeoutMillis;
+    private final List<Link> links = new ArrayList<>();
+    // Protetti dal monitor della sottoscrizione, come le scritture sulle connessioni
+    private final Set<String> channels = new LinkedHashSet<>();
+    private final Set<String> patterns = new LinkedHashSet<>();
+    private volatile boolean closed;
+
+    Subscription(List<String> nodes, Listener listener, int connectTimeoutMillis) {
+        this.listener = listener;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        for (String node : nodes) {
+            Link link = new Link(node);
+            links.add(link);
+            Thread.ofPlatform().name("db-subscription-" + node).daemon().start(link::run);
+        }
+    }
+
+    public void subscribe(String... channels) {
+        update("SUBSCRIBE", this.channels, channels, true);
+    }
+
+    public void psubscribe(String... patterns) {
+        update("PSUBSCRIBE", this.patterns, patterns, true);
+    }
+
+    public void unsubscribe(String... channels) {
+        update("UNSUBSCRIBE", this.channels, channels, false);
+    }
+
+    public void punsubscribe(String... patterns) {
+        update("PUNSUBSCRIBE", this.patterns, patterns, false);
+    }
+
+    private synchronized void update(String command, Set<String> names, String[] changed, boolean add) {
+        List<String> sent = new ArrayList<>(changed.length);
+        for (String name : changed) {
+            if (add ? names.add(name) : names.remove(name)) {
+                sent.add(name);
+            }
+        }
+        if (sent.isEmpty()) {
+            return;
+        }
+        // Le connessioni chiuse riceveranno tutto alla riapertura
+        String line = command(command, sent);
+        for (Link link : links) {
+            link.send(line);
+        }
+    }
+
+    private static String command(String command, Iterable<String> names) {
+        StringBuilder line = new StringBuilder(command);
+        for (String name : names) {
+            line.append(' ').append(Protocol.quote(name));
+        }
+        return line.toString();
+    }
+
+    /**
+     * Chiude tutte le connessioni; i thread terminano subito dopo.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Link link : links) {
+            link.disconnect();
+        }
+    }
+
+    /**
+     * Connessione verso un nodo, riaperta finché la sottoscrizione non viene chiusa.
+     */
+    private class Link {
+        private final String node;
+        // Protetti dal monitor della sottoscrizione
+        private Socket socket;
+        private BufferedWriter out;
+
+        Link(String node) {
+            this.node = node;
+        }
+
+        void run() {
+            boolean reconnecting = false;
+            while (!closed) {
+                try (Socket connection = new Socket()) {
+                    connection.connect(new InetSocketAddress(ShardRing.host(node), ShardRing.port(node)), connectTimeoutMillis);
+                    connection.setTcpNoDelay(true);
+                    connection.setKeepAlive(true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+                    connect(connection);
+                    if (reconnecting) {
+                        listener.onReconnect();
+                    }
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        dispatch(line);
+                    }
+                } catch (IOException | DatabaseException e) {
+                    // Nodo irraggiungibile o connessione caduta: si riprova
+                } finally {
+                    disconnect();
+                }
+                reconnecting = true;
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Rende attiva la connessione inviando tutte le sottoscrizioni correnti.
+         */
+        private void connect(Socket connection) throws IOException {
+            synchronized (Subscription.this) {
+                if (closed) {
+                    throw new IOException("subscription closed");
+                }
+                socket = connection;
+                out = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8));
+                if (!channels.isEmpty()) {
+                    send(command("SUBSCRIBE", channels));
+                }
+                if (!patterns.isEmpty()) {
+                    send(command("PSUBSCRIBE", patterns));
+                }
+            }
+        }
+
+        /**
+         * Invia una riga se la connessione è aperta; va chiamato col monitor della sottoscrizione.
+         */
+        void send(String line) {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.write(line);
+                out.write('\n');
+                out.flush();
+            } catch (IOException e) {
+                // La lettura fallirà a sua volta e la connessione verrà riaperta
+                closeSocket();
+            }
+        }
+
+        void disconnect() {
+            synchronized (Subscription.this) {
+                closeSocket();
+            }
+        }
+
+        private void closeSocket() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Connessione già chiusa: niente da fare
+                }
+            }
+            socket = null;
+            out = null;
+        }
+
+        /**
+         * Messaggi: {@code MESSAGE "canale" "messaggio"} e
+         * {@code PMESSAGE "pattern" "canale" "messaggio"}; le altre righe sono
+         * risposte ai comandi di sottoscrizione.
+         */
+        private void dispatch(String line) throws DatabaseException {
+            List<String> values;
+            if (line.startsWith("MESSAGE ")) {
+                values = Protocol.parseValues(line.substring(8));
+            } else if (line.startsWith("PMESSAGE ")) {
+                values = Protocol.parseValues(line.substring(9));
+            } else {
+                return;
+            }
+            // Canale e messaggio sono sempre gli ultimi due valori
+            int size = values.size();
+            if (size != (line.startsWith("MESSAGE ") ? 2 : 3)) {
+                throw new DatabaseException("Malformed message: " + line);
+            }
+            try {
+                listener.onMessage(values.get(size - 2), values.get(size - 1));
+            } catch (RuntimeException e) {
+                // Un errore del listener non deve far perdere i messaggi successivi
+            }
+        }
+    }
+}
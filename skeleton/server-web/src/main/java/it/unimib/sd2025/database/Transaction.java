@@ -0,0 +1,209 @@
+package it.unimib.sd2025.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transazione ottimistica su una connessione dedicata del pool.
+ *
+ * Le chiavi osservate con {@link #watch(String...)} e le letture avvengono
+ * subito; le scritture vengono accodate e inviate con {@link #exec()} come
+ * MULTI ... EXEC in un solo round trip. Il database le applica in modo
+ * atomico solo se nessuna chiave osservata è cambiata dopo il WATCH.
+ * Di solito si usa tramite {@link DatabaseClient#transaction}, che
+ * ripete la transazione in caso di conflitto.
+ *
+ * Con più nodi la transazione si lega al nodo della prima chiave usata e
+ * tutte le altre devono stare sullo stesso nodo (stesso hash tag, ad esempio
+ * {@code {user:1}:name} e {@code {user:1}:budget}).
+ */
+public class Transaction implements AutoCloseable {
+    private final ShardRing ring;
+    // Nodo della transazione, -1 finché non si usa la prima chiave
+    private int node = -1;
+    private ConnectionPool pool;
+    private PooledConnection connection;
+    private final List<String> queuedKeys = new ArrayList<>();
+    private final List<String> queued = new ArrayList<>();
+    private boolean watching = false;
+
+    Transaction(ShardRing ring) {
+        this.ring = ring;
+    }
+
+    /**
+     * Osserva le chiavi: se cambiano prima di {@link #exec()} la transazione viene annullata.
+     * Va chiamato prima di leggerle.
+     */
+    public void watch(String... keys) throws DatabaseException {
+        bind(keys);
+        execute("WATCH " + String.join(" ", keys));
+        watching = true;
+    }
+
+    /**
+     * Lega la transazione al nodo delle chiavi, prendendo una connessione
+     * dal suo pool alla prima chiave.
+     */
+    private void bind(String... keys) throws DatabaseException {
+        for (String key : keys) {
+            int keyNode = ring.nodeFor(key);
+            if (node == -1) {
+                pool = ring.pool(keyNode);
+                connection = pool.borrow();
+                node = keyNode;
+            } else if (keyNode != node) {
+                throw new DatabaseException("Key " + key + " is on database node " + ring.name(keyNode)
+                    + " but the transaction is on " + ring.name(node) + ": use a common hash tag such as {user:1}");
+            }
+        }
+    }
+
+    /**
+     * Esegue subito un comando (tipicamente una lettura) sulla connessione
+     * della transazione; la transazione deve essere già legata a una chiave.
+     */
+    public String execute(String command) throws DatabaseException {
+        if (connection == null) {
+            throw new DatabaseException("Transaction has no database connection");
+        }
+        String response;
+        try {
+            response = connection.execute(command);
+        } catch (IOException e) {
+            discardConnection();
+            throw new DatabaseException("Database connection failed: " + e.getMessage(), e);
+        }
+        if (response == null) {
+            discardConnection();
+            throw new DatabaseException("No response from database");
+        }
+        if (response.startsWith("ERR")) {
+            throw new DatabaseException(response.substring(4)); // Rimuove "ERR "
+        }
+        return response;
+    }
+
+    /**
+     * Operazione HMGET eseguita subito, come {@link DatabaseClient#hmget}.
+     */
+    public String[] hmget(String key, String... fields) throws DatabaseException {
+        bind(key);
+        return DatabaseClient.parseHashValues(execute(DatabaseClient.hmgetCommand(key, fields)), fields.length);
+    }
+
+    /**
+     * Operazione INCR eseguita subito, fuori dal MULTI: l'id resta consumato
+     * anche se la transazione viene annullata.
+     */
+    public int increment(String key) throws DatabaseException {
+        bind(key);
+        String response = execute("INCR " + key);
+        if (response.startsWith("OK ")) {
+            return Integer.parseInt(response.substring(3));
+        }
+        throw new DatabaseException("Increment failed for key: " + key);
+    }
+
+    /**
+     * Accoda un comando sulla chiave key da eseguire in {@link #exec()}.
+     */
+    public Transaction queue(String key, String command) {
+        queuedKeys.add(key);
+        queued.add(command);
+        return this;
+    }
+
+    public Transaction hset(String key, Map<String, String> fields) {
+        return queue(key, DatabaseClient.hsetCommand(key, fields));
+    }
+
+    public Transaction delete(String key) {
+        return queue(key, "DEL " + key);
+    }
+
+    public Transaction hmove(String key, String source, String destination, double amount) {
+        return queue(key, DatabaseClient.hmoveCommand(key, source, destination, amount));
+    }
+
+    /**
+     * Invia MULTI, i comandi accodati ed EXEC.
+     * Restituisce le risposte dei comandi, oppure null se una chiave osservata
+     * è cambiata e quindi non è stato applicato nulla.
+     */
+    public List<String> exec() throws DatabaseException {
+        bind(queuedKeys.toArray(new String[0]));
+        queuedKeys.clear();
+        if (connection == null) {
+            // Nessuna chiave osservata né comando accodato
+            queued.clear();
+            return List.of();
+        }
+        List<String> commands = new ArrayList<>(queued.size() + 2);
+        commands.add("MULTI");
+        commands.addAll(queued);
+        commands.add("EXEC");
+        queued.clear();
+
+        List<String> responses;
+        try {
+            responses = connection.executeAll(commands);
+        } catch (IOException e) {
+            discardConnection();
+            throw new DatabaseException("Database connection failed: " + e.getMessage(), e);
+        }
+        if (responses == null) {
+            discardConnection();
+            throw new DatabaseException("No response from database");
+        }
+        // EXEC chiude anche il WATCH, sia che la transazione riesca sia che no
+        watching = false;
+
+        for (String response : responses) {
+            if (response.startsWith("ERR")) {
+                throw new DatabaseException(response.substring(4));
+            }
+        }
+
+        String result = responses.get(responses.size() - 1);
+        if ("NIL".equals(result)) {
+            return null;
+        }
+        List<String> results = Protocol.parseValues(result.substring(2));
+        for (String response : results) {
+            if (response.startsWith("ERR")) {
+                throw new DatabaseException(response.substring(4));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Restituisce la connessione al pool, annullando un eventuale WATCH ancora attivo.
+     */
+    @Override
+    public void close() {
+        if (connection == null) {
+            return;
+        }
+        if (watching) {
+            try {
+                execute("UNWATCH");
+            } catch (DatabaseException e) {
+                discardConnection();
+                return;
+            }
+        }
+        pool.release(connection);
+        connection = null;
+    }
+
+    private void discardConnection() {
+        if (connection != null) {
+            pool.invalidate(connection);
+            connection = null;
+        }
+    }
+}
@@ -58,7 +58,7 @@ public class Voucher {
         }
     }
 
-    private int id;
+    private long id;
     private int userId;
     private double amount;
     private Category category;
@@ -80,8 +80,8 @@ public class Voucher {
     }
 
     // Getters e Setters
-    public int getId() { return id; }
-    public void setId(int id) { this.id = id; }
+    public long getId() { return id; }
+    public void setId(long id) { this.id = id; }
 
     public int getUserId() { return userId; }
     public void setUserId(int userId) { this.userId = userId; }
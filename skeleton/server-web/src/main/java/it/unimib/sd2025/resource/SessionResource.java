@@ -2,6 +2,8 @@ package it.unimib.sd2025.resource;
 
 import it.unimib.sd2025.service.UserService;
 import it.unimib.sd2025.service.ServiceException;
+import it.unimib.sd2025.service.SessionService;
+import it.unimib.sd2025.service.SessionService.Session;
 import it.unimib.sd2025.model.User;
 
 import jakarta.ws.rs.*;
@@ -12,10 +14,6 @@ import jakarta.json.bind.JsonbBuilder;
 import jakarta.json.bind.JsonbException;
 
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 
 /**
  * Resource REST per la gestione delle sessioni utente.
@@ -26,9 +24,8 @@ public class SessionResource {
     
     private final UserService userService = new UserService();
     
-    // In-memory session storage (in produzione si userebbe Redis o database)
-    private static final Map<String, SessionData> activeSessions = new ConcurrentHashMap<>();
-    private static final int SESSION_TIMEOUT_HOURS = 8; // 8 ore di timeout
+    // Sessioni sul database, con scadenza rinnovata a ogni accesso
+    private final SessionService sessionService = new SessionService();
     
     /**
      * POST /session/login - Login utente tramite codice fiscale
@@ -63,17 +60,13 @@ public class SessionResource {
             }
             
             // Crea nuova sessione
-            String sessionId = UUID.randomUUID().toString();
-            SessionData session = new SessionData(user.getId(), user.getFiscalCode(), LocalDateTime.now());
-            activeSessions.put(sessionId, session);
-            
-            // Non facciamo cleanup qui per evitare race conditions con più richieste parallele
+            String sessionId = sessionService.createSession(user).id();
             
             // Crea cookie di sessione con SameSite LAX
             NewCookie sessionCookie = new NewCookie.Builder("CARTA_CULTURA_SESSION")
                 .value(sessionId)
                 .path("/")
-                .maxAge(SESSION_TIMEOUT_HOURS * 3600)
+                .maxAge(SessionService.SESSION_TIMEOUT_SECONDS)
                 .httpOnly(true)
                 .sameSite(NewCookie.SameSite.LAX)   // LAX per farlo accettare anche su cross-origin dev
                 .build();
@@ -113,44 +106,38 @@ public class SessionResource {
                          .build();
         }
         
-        synchronized (activeSessions) {
-            SessionData session = activeSessions.get(sessionId);
+        try {
+            // Rinnova la scadenza (last access)
+            Session session = sessionService.touchSession(sessionId);
             
-            if (session == null || isSessionExpired(session)) {
-                activeSessions.remove(sessionId);
-                
+            if (session == null) {
                 return Response.status(Response.Status.UNAUTHORIZED)
                              .entity(Map.of("error", "Sessione scaduta"))
                              .build();
             }
             
-            try {
-                // Aggiorna last access
-                session.setLastAccess(LocalDateTime.now());
-                
-                // Recupera dati utente aggiornati
-                User user = userService.getUserById(session.getUserId());
-                
-                if (user == null) {
-                    activeSessions.remove(sessionId);
-                    return Response.status(Response.Status.UNAUTHORIZED)
-                                 .entity(Map.of("error", "Utente non più valido"))
-                                 .build();
-                }
-                
-                Map<String, Object> response = Map.of(
-                    "user", user,
-                    "sessionId", sessionId,
-                    "lastAccess", session.getLastAccess().toString()
-                );
-                
-                return Response.ok(response).build();
-                
-            } catch (ServiceException e) {
-                return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                             .entity(Map.of("error", "Errore durante il recupero sessione"))
+            // Recupera dati utente aggiornati
+            User user = userService.getUserById(session.userId());
+            
+            if (user == null) {
+                sessionService.deleteSession(sessionId);
+                return Response.status(Response.Status.UNAUTHORIZED)
+                             .entity(Map.of("error", "Utente non più valido"))
                              .build();
             }
+            
+            Map<String, Object> response = Map.of(
+                "user", user,
+                "sessionId", sessionId,
+                "lastAccess", session.lastAccess().toString()
+            );
+            
+            return Response.ok(response).build();
+            
+        } catch (ServiceException e) {
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                         .entity(Map.of("error", "Errore durante il recupero sessione"))
+                         .build();
         }
     }
     
@@ -161,8 +148,12 @@ public class SessionResource {
     @Path("/logout")
     @Produces(MediaType.APPLICATION_JSON)
     public Response logout(@CookieParam("CARTA_CULTURA_SESSION") String sessionId) {
-        if (sessionId != null) {
-            activeSessions.remove(sessionId);
+        try {
+            sessionService.deleteSession(sessionId);
+        } catch (ServiceException e) {
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                         .entity(Map.of("error", "Errore durante il logout"))
+                         .build();
         }
         
         // Cancella cookie
@@ -191,54 +182,27 @@ public class SessionResource {
                          .build();
         }
         
-        SessionData session = activeSessions.get(sessionId);
+        Session session;
+        try {
+            // Rinnova la scadenza (last access)
+            session = sessionService.touchSession(sessionId);
+        } catch (ServiceException e) {
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                         .entity(Map.of("valid", false, "error", "Session lookup failed"))
+                         .build();
+        }
         
-        if (session == null || isSessionExpired(session)) {
-            activeSessions.remove(sessionId);
+        if (session == null) {
             return Response.status(Response.Status.UNAUTHORIZED)
                          .entity(Map.of("valid", false, "error", "Session expired"))
                          .build();
         }
         
-        // Aggiorna last access
-        session.setLastAccess(LocalDateTime.now());
-        
         return Response.ok(Map.of(
             "valid", true,
-            "userId", session.getUserId(),
-            "fiscalCode", session.getFiscalCode()
+            "userId", session.userId(),
+            "fiscalCode", session.fiscalCode()
         )).build();
     }
-    
-    /**
-     * Utility per verificare se una sessione è scaduta.
-     */
-    private boolean isSessionExpired(SessionData session) {
-        LocalDateTime expiry = session.getLastAccess().plus(SESSION_TIMEOUT_HOURS, ChronoUnit.HOURS);
-        return LocalDateTime.now().isAfter(expiry);
-    }
-    
-    /**
-     * Classe per rappresentare i dati di una sessione.
-     */
-    private static class SessionData {
-        private final int userId;
-        private final String fiscalCode;
-        private final LocalDateTime createdAt;
-        private LocalDateTime lastAccess;
-        
-        public SessionData(int userId, String fiscalCode, LocalDateTime createdAt) {
-            this.userId = userId;
-            this.fiscalCode = fiscalCode;
-            this.createdAt = createdAt;
-            this.lastAccess = createdAt;
-        }
-        
-        public int getUserId() { return userId; }
-        public String getFiscalCode() { return fiscalCode; }
-        public LocalDateTime getCreatedAt() { return createdAt; }
-        public LocalDateTime getLastAccess() { return lastAccess; }
-        public void setLastAccess(LocalDateTime lastAccess) { this.lastAccess = lastAccess; }
-    }
 }
 
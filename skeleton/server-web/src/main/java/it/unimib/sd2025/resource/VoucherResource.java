@@ -98,7 +98,7 @@ public class VoucherResource {
     @GET
     @Path("/{id}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getVoucherById(@PathParam("id") int voucherId) {
+    public Response getVoucherById(@PathParam("id") long voucherId) {
         try {
             Voucher voucher = voucherService.getVoucherById(voucherId);
             
@@ -142,7 +142,7 @@ public class VoucherResource {
          @PUT
          @Path("/{id}/consume")
          @Produces(MediaType.APPLICATION_JSON)
-         public Response consumeVoucher(@PathParam("id") int voucherId) throws DatabaseException {
+         public Response consumeVoucher(@PathParam("id") long voucherId) throws DatabaseException {
         try {
             boolean success = voucherService.consumeVoucher(voucherId);
             
@@ -168,7 +168,7 @@ public class VoucherResource {
          @DELETE
          @Path("/{id}")
          @Produces(MediaType.APPLICATION_JSON)
-         public Response deleteVoucher(@PathParam("id") int voucherId) throws DatabaseException {
+         public Response deleteVoucher(@PathParam("id") long voucherId) throws DatabaseException {
         try {
             boolean success = voucherService.deleteVoucher(voucherId);
             
@@ -194,7 +194,7 @@ public class VoucherResource {
     @Path("/{id}/category")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response updateVoucherCategory(@PathParam("id") int voucherId, String rawCategoryData) {
+    public Response updateVoucherCategory(@PathParam("id") long voucherId, String rawCategoryData) {
         try {
             var jsonb = JsonbBuilder.create();
             
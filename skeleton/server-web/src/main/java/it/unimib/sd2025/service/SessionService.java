@@ -0,0 +1,104 @@
+package it.unimib.sd2025.service;
+
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import it.unimib.sd2025.database.DatabaseClient;
+import it.unimib.sd2025.database.DatabaseException;
+import it.unimib.sd2025.model.User;
+
+/**
+ * Service layer per le sessioni utente.
+ * Ogni sessione è un hash session:<id> con una scadenza sul database, che
+ * viene rinnovata a ogni accesso: le sessioni abbandonate vengono
+ * cancellate dal database stesso e sono condivise tra più istanze del
+ * server web.
+ */
+public class SessionService {
+    
+    public static final int SESSION_TIMEOUT_SECONDS = 8 * 3600; // 8 ore di inattività
+    
+    /**
+     * Dati di una sessione valida; lastAccess è l'accesso corrente.
+     */
+    public record Session(String id, int userId, String fiscalCode, LocalDateTime createdAt, LocalDateTime lastAccess) {
+    }
+    
+    /**
+     * Crea una nuova sessione per l'utente.
+     */
+    public Session createSession(User user) throws ServiceException {
+        String sessionId = UUID.randomUUID().toString();
+        LocalDateTime now = LocalDateTime.now();
+        
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("userId", String.valueOf(user.getId()));
+        fields.put("fiscalCode", user.getFiscalCode());
+        fields.put("createdAt", DatabaseClient.formatDateTime(now));
+        
+        try {
+            // Hash e scadenza nello stesso round trip
+            DatabaseClient.pipeline()
+                .hset(sessionKey(sessionId), fields)
+                .expire(sessionKey(sessionId), SESSION_TIMEOUT_SECONDS)
+                .execute();
+        } catch (DatabaseException e) {
+            throw new ServiceException("Errore durante la creazione della sessione: " + e.getMessage(), e);
+        }
+        return new Session(sessionId, user.getId(), user.getFiscalCode(), now, now);
+    }
+    
+    /**
+     * Restituisce la sessione e ne rinnova la scadenza, null se non esiste
+     * o è scaduta.
+     */
+    public Session touchSession(String sessionId) throws ServiceException {
+        if (sessionId == null || sessionId.trim().isEmpty()) {
+            return null;
+        }
+        
+        try {
+            // EXPIRE non crea la chiave: una sessione scaduta nel frattempo resta tale
+            List<String> responses = DatabaseClient.pipeline()
+                .hgetAll(sessionKey(sessionId))
+                .expire(sessionKey(sessionId), SESSION_TIMEOUT_SECONDS)
+                .execute();
+            
+            Map<String, String> fields = DatabaseClient.parseHash(responses.get(0));
+            if (fields.isEmpty() || !"OK 1".equals(responses.get(1))) {
+                return null;
+            }
+            return new Session(
+                sessionId,
+                DatabaseClient.parseInt(fields.get("userId")),
+                fields.get("fiscalCode"),
+                DatabaseClient.parseDateTime(fields.get("createdAt")),
+                LocalDateTime.now()
+            );
+        } catch (DatabaseException e) {
+            throw new ServiceException("Errore durante il recupero della sessione: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Chiude una sessione; non fa nulla se non esiste.
+     */
+    public void deleteSession(String sessionId) throws ServiceException {
+        if (sessionId == null || sessionId.trim().isEmpty()) {
+            return;
+        }
+        
+        try {
+            DatabaseClient.delete(sessionKey(sessionId));
+        } catch (DatabaseException e) {
+            throw new ServiceException("Errore durante il logout: " + e.getMessage(), e);
+        }
+    }
+    
+    private static String sessionKey(String sessionId) {
+        return "session:" + sessionId;
+    }
+}
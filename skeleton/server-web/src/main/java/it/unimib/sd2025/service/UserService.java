@@ -3,8 +3,11 @@ package it.unimib.sd2025.service;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import it.unimib.sd2025.database.Aggregation;
 import it.unimib.sd2025.database.DatabaseClient;
 import it.unimib.sd2025.database.DatabaseException;
 import it.unimib.sd2025.model.SystemStats;
@@ -18,6 +21,15 @@ public class UserService {
     
     private static final DateTimeFormatter DATETIME_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
     
+    /**
+     * Campi dell'hash di un utente, nell'ordine usato da HMGET/HSET.
+     */
+    private static final String[] USER_FIELDS = {
+        "name", "surname", "email", "fiscalCode",
+        "totalBudget", "availableBudget", "usedBudget", "consumedBudget",
+        "registrationDate"
+    };
+    
     /**
      * Registra un nuovo utente nel sistema.
      * Valida i dati e verifica l'unicità del codice fiscale.
@@ -53,8 +65,8 @@ public class UserService {
                 throw new ServiceException("Codice fiscale già registrato");
             }
             
-            // Genera nuovo ID utente
-            int newUserId = DatabaseClient.increment("counter:user");
+            // Genera nuovo ID utente (da un blocco prenotato, di solito senza round trip)
+            int newUserId = Math.toIntExact(DatabaseClient.nextId("counter:user"));
             
             // Crea utente
             User user = new User(name.trim(), surname.trim(), email.trim(), fiscalCode.trim().toUpperCase());
@@ -79,13 +91,13 @@ public class UserService {
         }
         
         try {
-            // Cerca tra tutti gli utenti
-            String[] userKeys = DatabaseClient.getKeys("user:*:fiscalCode");
-            for (String key : userKeys) {
-                String storedFiscalCode = DatabaseClient.get(key);
-                if (fiscalCode.trim().equalsIgnoreCase(storedFiscalCode)) {
-                    // Estrai ID utente dalla chiave: "user:123:fiscalCode" -> "123"
-                    String userIdStr = key.split(":")[1];
+            // Cerca tra tutti gli utenti (codici fiscali letti in pipeline)
+            String[] userKeys = DatabaseClient.scan("user:*");
+            List<String[]> storedFiscalCodes = DatabaseClient.hmgetMany(userKeys, "fiscalCode");
+            for (int i = 0; i < userKeys.length; i++) {
+                if (fiscalCode.trim().equalsIgnoreCase(storedFiscalCodes.get(i)[0])) {
+                    // Estrai ID utente dalla chiave: "user:123" -> "123"
+                    String userIdStr = userKeys[i].split(":")[1];
                     int userId = Integer.parseInt(userIdStr);
                     return getUserById(userId);
                 }
@@ -106,30 +118,15 @@ public class UserService {
         }
         
         try {
+            // Carica tutti i dati utente con un solo round trip
+            String[] values = DatabaseClient.hmget(userKey(userId), USER_FIELDS);
+            
             // Verifica esistenza utente
-            if (!DatabaseClient.exists(String.format("user:%d:name", userId))) {
+            if (values[0] == null) {
                 return null;
             }
             
-            // Carica tutti i dati utente
-            User user = new User();
-            user.setId(userId);
-            user.setName(DatabaseClient.get(String.format("user:%d:name", userId)));
-            user.setSurname(DatabaseClient.get(String.format("user:%d:surname", userId)));
-            user.setEmail(DatabaseClient.get(String.format("user:%d:email", userId)));
-            user.setFiscalCode(DatabaseClient.get(String.format("user:%d:fiscalCode", userId)));
-            
-            user.setTotalBudget(DatabaseClient.getDouble(String.format("user:%d:totalBudget", userId)));
-            user.setAvailableBudget(DatabaseClient.getDouble(String.format("user:%d:availableBudget", userId)));
-            user.setUsedBudget(DatabaseClient.getDouble(String.format("user:%d:usedBudget", userId)));
-            user.setConsumedBudget(DatabaseClient.getDouble(String.format("user:%d:consumedBudget", userId)));
-            
-            LocalDateTime regDate = DatabaseClient.getDateTime(String.format("user:%d:registrationDate", userId));
-            if (regDate != null) {
-                user.setRegistrationDate(regDate);
-            }
-            
-            return user;
+            return toUser(userId, values);
             
         } catch (DatabaseException e) {
             throw new ServiceException("Errore durante il recupero utente: " + e.getMessage(), e);
@@ -137,22 +134,57 @@ public class UserService {
     }
     
     /**
-     * Salva o aggiorna un utente nel database.
+     * Costruisce un utente dai valori letti nell'ordine di USER_FIELDS.
      */
-    private void saveUser(User user) throws DatabaseException {
-        int userId = user.getId();
+    private static User toUser(int userId, String[] values) {
+        User user = new User();
+        user.setId(userId);
+        user.setName(values[0]);
+        user.setSurname(values[1]);
+        user.setEmail(values[2]);
+        user.setFiscalCode(values[3]);
+        
+        user.setTotalBudget(DatabaseClient.parseDouble(values[4]));
+        user.setAvailableBudget(DatabaseClient.parseDouble(values[5]));
+        user.setUsedBudget(DatabaseClient.parseDouble(values[6]));
+        user.setConsumedBudget(DatabaseClient.parseDouble(values[7]));
         
-        DatabaseClient.set(String.format("user:%d:name", userId), user.getName());
-        DatabaseClient.set(String.format("user:%d:surname", userId), user.getSurname());
-        DatabaseClient.set(String.format("user:%d:email", userId), user.getEmail());
-        DatabaseClient.set(String.format("user:%d:fiscalCode", userId), user.getFiscalCode());
+        LocalDateTime regDate = DatabaseClient.parseDateTime(values[8]);
+        if (regDate != null) {
+            user.setRegistrationDate(regDate);
+        }
         
-        DatabaseClient.setDouble(String.format("user:%d:totalBudget", userId), user.getTotalBudget());
-        DatabaseClient.setDouble(String.format("user:%d:availableBudget", userId), user.getAvailableBudget());
-        DatabaseClient.setDouble(String.format("user:%d:usedBudget", userId), user.getUsedBudget());
-        DatabaseClient.setDouble(String.format("user:%d:consumedBudget", userId), user.getConsumedBudget());
+        return user;
+    }
+    
+    /**
+     * Salva o aggiorna un utente nel database (tutti i campi con un unico HSET atomico).
+     */
+    private void saveUser(User user) throws DatabaseException {
+        String[] values = {
+            user.getName(),
+            user.getSurname(),
+            user.getEmail(),
+            user.getFiscalCode(),
+            String.valueOf(user.getTotalBudget()),
+            String.valueOf(user.getAvailableBudget()),
+            String.valueOf(user.getUsedBudget()),
+            String.valueOf(user.getConsumedBudget()),
+            DatabaseClient.formatDateTime(user.getRegistrationDate())
+        };
         
-        DatabaseClient.setDateTime(String.format("user:%d:registrationDate", userId), user.getRegistrationDate());
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (int i = 0; i < USER_FIELDS.length; i++) {
+            fields.put(USER_FIELDS[i], values[i]);
+        }
+        DatabaseClient.hset(userKey(user.getId()), fields);
+    }
+    
+    /**
+     * Chiave dell'hash che contiene tutti i campi di un utente.
+     */
+    static String userKey(int userId) {
+        return "user:" + userId;
     }
     
     /**
@@ -173,43 +205,24 @@ public class UserService {
     
     /**
      * Riserva budget per un nuovo buono.
-     * Verifica che ci sia budget sufficiente e aggiorna i valori.
+     * Il controllo del budget disponibile e lo spostamento su usedBudget sono
+     * un unico HMOVE atomico sul database: nessun utente può spendere più
+     * del suo budget, senza lock e in un solo round trip.
      */
     public boolean reserveBudget(int userId, double amount) throws ServiceException, DatabaseException {
         if (amount <= 0) {
             throw new ServiceException("L'importo deve essere positivo");
         }
         
-        User user = getUserById(userId);
-        if (user == null) {
-            throw new ServiceException("Utente non trovato");
-        }
-        
-        // Verifica budget disponibile
-        if (user.getAvailableBudget() < amount) {
-            return false; // Budget insufficiente
-        }
-        
-        // Riserva budget
-        user.reserveBudget(amount);
-        
-        // Salva nel database
-        updateUserBudgets(user);
-        
-        return true;
+        return moveBudget(userId, "availableBudget", "usedBudget", amount);
     }
+    
     public void releaseBudget(int userId, double amount) throws ServiceException, DatabaseException {
         if (amount <= 0) {
             return;
         }
         
-        User user = getUserById(userId);
-        if (user == null) {
-            throw new ServiceException("Utente non trovato");
-        }
-        
-        user.releaseBudget(amount);
-        updateUserBudgets(user);
+        moveBudget(userId, "usedBudget", "availableBudget", amount);
     }
     
     /**
@@ -220,61 +233,38 @@ public class UserService {
             return;
         }
         
-        User user = getUserById(userId);
-        if (user == null) {
+        moveBudget(userId, "usedBudget", "consumedBudget", amount);
+    }
+    
+    private boolean moveBudget(int userId, String from, String to, double amount) throws ServiceException, DatabaseException {
+        DatabaseClient.HashMove move = DatabaseClient.hmove(userKey(userId), from, to, amount);
+        if (move == null) {
             throw new ServiceException("Utente non trovato");
         }
-        
-        user.consumeBudget(amount);
-        updateUserBudgets(user);
+        return move.moved();
     }
     
     /**
      * Ottiene le statistiche globali del sistema.
+     * Somme e conteggi sono calcolati dal database: un solo round trip,
+     * qualunque sia il numero di utenti e buoni.
      */
     public SystemStats getSystemStats() throws ServiceException {
         try {
-            // Conta utenti totali
-            String[] userKeys = DatabaseClient.getKeys("user:*:name");
-            int totalUsers = userKeys.length;
-            
-            // Calcola budget totali
-            double totalBudget = 0;
-            double availableBudget = 0;
-            double usedBudget = 0;
-            double consumedBudget = 0;
-            
-            for (String key : userKeys) {
-                String userIdStr = key.split(":")[1];
-                int userId = Integer.parseInt(userIdStr);
-                
-                totalBudget += DatabaseClient.getDouble(String.format("user:%d:totalBudget", userId));
-                availableBudget += DatabaseClient.getDouble(String.format("user:%d:availableBudget", userId));
-                usedBudget += DatabaseClient.getDouble(String.format("user:%d:usedBudget", userId));
-                consumedBudget += DatabaseClient.getDouble(String.format("user:%d:consumedBudget", userId));
-            }
-            
-            // Conta buoni
-            String[] voucherKeys = DatabaseClient.getKeys("voucher:*:userId");
-            int totalVouchers = voucherKeys.length;
+            Aggregation aggregation = DatabaseClient.aggregation();
+            Aggregation.Sum budgets = aggregation.sum("user:*",
+                "totalBudget", "availableBudget", "usedBudget", "consumedBudget");
+            Aggregation.Count statuses = aggregation.count("voucher:*", "status");
+            aggregation.execute();
             
-            int activeVouchers = 0;
-            int consumedVouchers = 0;
-            
-            for (String key : voucherKeys) {
-                String voucherIdStr = key.split(":")[1];
-                String status = DatabaseClient.get(String.format("voucher:%s:status", voucherIdStr));
-                
-                if ("active".equals(status)) {
-                    activeVouchers++;
-                } else if ("consumed".equals(status)) {
-                    consumedVouchers++;
-                }
+            long totalVouchers = 0;
+            for (long count : statuses.counts().values()) {
+                totalVouchers += count;
             }
             
-            return new SystemStats(totalUsers, totalBudget, availableBudget, 
-                                 usedBudget, consumedBudget, totalVouchers, 
-                                 activeVouchers, consumedVouchers);
+            return new SystemStats((int) budgets.keys(), budgets.get(0), budgets.get(1), 
+                                 budgets.get(2), budgets.get(3), (int) totalVouchers, 
+                                 (int) statuses.get("active"), (int) statuses.get("consumed"));
             
         } catch (DatabaseException e) {
             throw new ServiceException("Errore durante il calcolo statistiche: " + e.getMessage(), e);
@@ -287,14 +277,15 @@ public class UserService {
     public List<User> getAllUsers() throws ServiceException {
         try {
             List<User> users = new ArrayList<>();
-            String[] userKeys = DatabaseClient.getKeys("user:*:name");
+            String[] userKeys = DatabaseClient.scan("user:*");
+            List<String[]> allValues = DatabaseClient.hmgetMany(userKeys, USER_FIELDS);
             
-            for (String key : userKeys) {
-                String userIdStr = key.split(":")[1];
+            for (int i = 0; i < userKeys.length; i++) {
+                String userIdStr = userKeys[i].split(":")[1];
                 int userId = Integer.parseInt(userIdStr);
-                User user = getUserById(userId);
-                if (user != null) {
-                    users.add(user);
+                String[] values = allValues.get(i);
+                if (values[0] != null) {
+                    users.add(toUser(userId, values));
                 }
             }
             
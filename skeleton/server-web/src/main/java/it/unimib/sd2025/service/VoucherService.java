@@ -2,25 +2,34 @@ package it.unimib.sd2025.service;
 
 import it.unimib.sd2025.database.DatabaseClient;
 import it.unimib.sd2025.database.DatabaseException;
+import it.unimib.sd2025.database.Transaction;
 import it.unimib.sd2025.model.Voucher;
 import it.unimib.sd2025.model.User;
 
+import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
 
 /**
  * Service layer per la gestione dei buoni.
- * Gestisce la concorrenza per prevenire over-spending dello stesso utente.
+ * Gestisce la concorrenza per prevenire over-spending dello stesso utente:
+ * creazione, consumo e cancellazione sono stored procedure eseguite in modo
+ * atomico sul database (CALL), la modifica della categoria è una transazione
+ * ottimistica (WATCH/MULTI/EXEC); nessun lock nel server web.
  */
 public class VoucherService {
     
     private final UserService userService;
     
-    // Lock per gestire accessi concorrenti per utente
-    // In produzione si userebbe un distributed lock (Redis, Hazelcast, etc.)
-    private final ReentrantLock userLock = new ReentrantLock();
+    /**
+     * Campi dell'hash di un buono, nell'ordine usato da HMGET.
+     */
+    private static final String[] VOUCHER_FIELDS = {
+        "userId", "amount", "category", "status", "createdAt", "consumedAt"
+    };
     
     public VoucherService(UserService userService) {
         this.userService = userService;
@@ -41,6 +50,11 @@ public class VoucherService {
             throw new ServiceException("L'importo non può superare 500€");
         }
         
+        // Il database tratta i budget in centesimi
+        if (BigDecimal.valueOf(amount).scale() > 2) {
+            throw new ServiceException("L'importo può avere al massimo due decimali");
+        }
+        
         Voucher.Category category;
         try {
             category = Voucher.Category.fromString(categoryStr);
@@ -48,89 +62,67 @@ public class VoucherService {
             throw new ServiceException("Categoria non valida: " + categoryStr);
         }
         
-        // Lock per prevenire race condition su budget utente
-        userLock.lock();
+        Voucher voucher = new Voucher(userId, amount, category);
+        
+        // Riserva il budget e salva il buono con la stored procedure
+        // create_voucher: un solo round trip, atomico sul database. Il numero
+        // del buono viene da un blocco di id già prenotato
+        long number;
+        String response;
         try {
-            // Verifica esistenza utente
-            User user = userService.getUserById(userId);
-            if (user == null) {
-                throw new ServiceException("Utente non trovato");
-            }
-            
-            // Verifica budget disponibile
-            if (!userService.reserveBudget(userId, amount)) {
-                throw new ServiceException("Budget insufficiente. Disponibile: €" + 
-                                         String.format("%.2f", user.getAvailableBudget()));
-            }
-            
-            try {
-                // Genera nuovo ID voucher
-                int newVoucherId = DatabaseClient.increment("counter:voucher");
-                
-                // Crea voucher
-                Voucher voucher = new Voucher(userId, amount, category);
-                voucher.setId(newVoucherId);
-
-                System.out.println("DEBUG createVoucher appena creato: id=" + voucher.getId() + 
-                   " status=" + voucher.getStatus() + 
-                   " category=" + voucher.getCategory());
-
-                
-                // Salva nel database
-                saveVoucher(voucher);
-                
-                return voucher;
-                
-            } catch (DatabaseException e) {
-                // Rollback: rilascia il budget se la creazione fallisce
-                userService.releaseBudget(userId, amount);
-                throw new ServiceException("Errore durante la creazione del buono: " + e.getMessage(), e);
-            }
+            number = DatabaseClient.nextId("counter:voucher");
             
-        } finally {
-            userLock.unlock();
+            List<String> args = new ArrayList<>();
+            args.add(UserService.userKey(userId));
+            args.add(voucherKey(userId, number));
+            args.add(BigDecimal.valueOf(amount).toPlainString());
+            voucherFields(voucher).forEach((field, value) -> {
+                args.add(field);
+                args.add(value);
+            });
+            response = DatabaseClient.call("create_voucher", args.toArray(new String[0]));
+        } catch (DatabaseException e) {
+            throw new ServiceException("Errore durante la creazione del buono: " + e.getMessage(), e);
         }
         
-
+        // Verifica esistenza utente
+        if ("NIL".equals(response)) {
+            throw new ServiceException("Utente non trovato");
+        }
+        
+        // Verifica budget (se insufficiente non è stato spostato nulla)
+        String[] result = response.split(" ");
+        if (!"1".equals(result[1])) {
+            throw new ServiceException("Budget insufficiente. Disponibile: €" + 
+                                     String.format("%.2f", DatabaseClient.parseDouble(result[2])));
+        }
+        
+        voucher.setId(voucherId(userId, number));
+        System.out.println("DEBUG createVoucher appena creato: id=" + voucher.getId() + 
+           " status=" + voucher.getStatus() + 
+           " category=" + voucher.getCategory());
+        return voucher;
     }
     
     /**
      * Recupera un buono per ID.
      */
-    public Voucher getVoucherById(int voucherId) throws ServiceException {
-        if (voucherId <= 0) {
+    public Voucher getVoucherById(long voucherId) throws ServiceException {
+        String key = voucherKey(voucherId);
+        if (key == null) {
             return null;
         }
         
         try {
+            // Carica tutti i dati voucher con un solo round trip
+            String[] values = DatabaseClient.hmget(key, VOUCHER_FIELDS);
+            
             // Verifica esistenza voucher
-            if (!DatabaseClient.exists(String.format("voucher:%d:userId", voucherId))) {
+            if (values[0] == null) {
                 return null;
             }
             
-            // Carica tutti i dati voucher
-            Voucher voucher = new Voucher();
-            voucher.setId(voucherId);
-            voucher.setUserId(DatabaseClient.getInt(String.format("voucher:%d:userId", voucherId)));
-            voucher.setAmount(DatabaseClient.getDouble(String.format("voucher:%d:amount", voucherId)));
-            
-            String categoryStr = DatabaseClient.get(String.format("voucher:%d:category", voucherId));
-            voucher.setCategory(Voucher.Category.fromString(categoryStr));
-            
-            String statusStr = DatabaseClient.get(String.format("voucher:%d:status", voucherId));
-            voucher.setStatus(Voucher.Status.fromString(statusStr));
-            
-            LocalDateTime createdAt = DatabaseClient.getDateTime(String.format("voucher:%d:createdAt", voucherId));
-            if (createdAt != null) {
-                voucher.setCreatedAt(createdAt);
-            }
-            
-            LocalDateTime consumedAt = DatabaseClient.getDateTime(String.format("voucher:%d:consumedAt", voucherId));
-            if (consumedAt != null) {
-                voucher.setConsumedAt(consumedAt);
-            }
-            
-            return voucher;
+            return toVoucher(voucherId, values);
             
         } catch (DatabaseException e) {
             throw new ServiceException("Errore durante il recupero buono: " + e.getMessage(), e);
@@ -143,19 +135,14 @@ public class VoucherService {
     public List<Voucher> getUserVouchers(int userId) throws ServiceException {
         try {
             List<Voucher> vouchers = new ArrayList<>();
-            String[] voucherKeys = DatabaseClient.getKeys("voucher:*:userId");
+            // I buoni dell'utente hanno tutti il suo hash tag nella chiave
+            String[] voucherKeys = DatabaseClient.scan("voucher:{" + UserService.userKey(userId) + "}:*");
+            List<String[]> allValues = DatabaseClient.hmgetMany(voucherKeys, VOUCHER_FIELDS);
             
-            for (String key : voucherKeys) {
-                String voucherIdStr = key.split(":")[1];
-                int voucherId = Integer.parseInt(voucherIdStr);
-                
-                // Verifica se il voucher appartiene all'utente
-                int voucherUserId = DatabaseClient.getInt(String.format("voucher:%d:userId", voucherId));
-                if (voucherUserId == userId) {
-                    Voucher voucher = getVoucherById(voucherId);
-                    if (voucher != null) {
-                        vouchers.add(voucher);
-                    }
+            for (int i = 0; i < voucherKeys.length; i++) {
+                String[] values = allValues.get(i);
+                if (values[0] != null) {
+                    vouchers.add(toVoucher(voucherId(voucherKeys[i]), values));
                 }
             }
             
@@ -173,68 +160,55 @@ public class VoucherService {
      * Consuma un buono.
           * @throws DatabaseException 
           */
-         public boolean consumeVoucher(int voucherId) throws ServiceException, DatabaseException {
-        userLock.lock();
-        try {
-            Voucher voucher = getVoucherById(voucherId);
-            if (voucher == null) {
-                throw new ServiceException("Buono non trovato");
-            }
-            
-            if (voucher.getStatus() != Voucher.Status.ACTIVE) {
-                throw new ServiceException("Il buono è già stato consumato");
-            }
-            
-            // Aggiorna stato voucher
-            voucher.setStatus(Voucher.Status.CONSUMED);
-            voucher.setConsumedAt(LocalDateTime.now());
-            
-            // Aggiorna budget utente
-            userService.consumeBudget(voucher.getUserId(), voucher.getAmount());
-            
-            // Salva modifiche
-            saveVoucher(voucher);
-            
-            return true;
-            
-        } finally {
-            userLock.unlock();
+         public boolean consumeVoucher(long voucherId) throws ServiceException, DatabaseException {
+        String key = voucherKey(voucherId);
+        if (key == null) {
+            throw new ServiceException("Buono non trovato");
         }
+        
+        // Stato del buono e budget dell'utente aggiornati insieme dalla stored procedure
+        String response = DatabaseClient.call("consume_voucher", key,
+                                              DatabaseClient.formatDateTime(LocalDateTime.now()));
+        if ("NIL".equals(response)) {
+            throw new ServiceException("Buono non trovato");
+        }
+        
+        if (!"OK 1".equals(response)) {
+            throw new ServiceException("Il buono è già stato consumato");
+        }
+        
+        return true;
     }
     
     /**
      * Cancella un buono (solo se non ancora consumato).
           * @throws DatabaseException 
           */
-         public boolean deleteVoucher(int voucherId) throws ServiceException, DatabaseException {
-        userLock.lock();
-        try {
-            Voucher voucher = getVoucherById(voucherId);
-            if (voucher == null) {
-                return false; // Voucher non esistente
-            }
-            
-            if (voucher.getStatus() == Voucher.Status.CONSUMED) {
-                throw new ServiceException("Non è possibile cancellare un buono già consumato");
-            }
-            
-            // Rilascia budget
-            userService.releaseBudget(voucher.getUserId(), voucher.getAmount());
-            
-            // Rimuovi voucher dal database
-            deleteVoucherFromDatabase(voucherId);
-            
-            return true;
-            
-        } finally {
-            userLock.unlock();
+         public boolean deleteVoucher(long voucherId) throws ServiceException, DatabaseException {
+        String key = voucherKey(voucherId);
+        if (key == null) {
+            return false; // Voucher non esistente
         }
+        
+        // Rilascio del budget e cancellazione del buono in un'unica stored procedure
+        String response = DatabaseClient.call("delete_voucher", key);
+        if ("NIL".equals(response)) {
+            return false; // Voucher non esistente
+        }
+        
+        if (!"OK 1".equals(response)) {
+            throw new ServiceException("Non è possibile cancellare un buono già consumato");
+        }
+        
+        return true;
     }
     
     /**
      * Modifica la categoria di un buono (solo se non consumato).
+     * Non aggiunge eventi a stream:vouchers, che registra solo creazione,
+     * consumo e cancellazione.
      */
-    public boolean updateVoucherCategory(int voucherId, String newCategoryStr) throws ServiceException {
+    public boolean updateVoucherCategory(long voucherId, String newCategoryStr) throws ServiceException {
         Voucher.Category newCategory;
         try {
             newCategory = Voucher.Category.fromString(newCategoryStr);
@@ -242,54 +216,135 @@ public class VoucherService {
             throw new ServiceException("Categoria non valida: " + newCategoryStr);
         }
         
-        Voucher voucher = getVoucherById(voucherId);
-        if (voucher == null) {
-            throw new ServiceException("Buono non trovato");
+        try {
+            // Transazione: il buono non può essere consumato tra il controllo e la modifica
+            return DatabaseClient.transaction(tx -> {
+                Voucher voucher = watchVoucher(tx, voucherId);
+                if (voucher == null) {
+                    throw new ServiceException("Buono non trovato");
+                }
+                
+                if (voucher.getStatus() == Voucher.Status.CONSUMED) {
+                    throw new ServiceException("Non è possibile modificare un buono già consumato");
+                }
+                
+                voucher.setCategory(newCategory);
+                queueSaveVoucher(tx, voucher);
+                return true;
+            });
+        } catch (DatabaseException e) {
+            throw new ServiceException("Errore durante l'aggiornamento categoria: " + e.getMessage(), e);
         }
+    }
+    
+    /**
+     * Costruisce un buono dai valori letti nell'ordine di VOUCHER_FIELDS.
+     */
+    private static Voucher toVoucher(long voucherId, String[] values) {
+        Voucher voucher = new Voucher();
+        voucher.setId(voucherId);
+        voucher.setUserId(DatabaseClient.parseInt(values[0]));
+        voucher.setAmount(DatabaseClient.parseDouble(values[1]));
+        voucher.setCategory(Voucher.Category.fromString(values[2]));
+        voucher.setStatus(Voucher.Status.fromString(values[3]));
         
-        if (voucher.getStatus() == Voucher.Status.CONSUMED) {
-            throw new ServiceException("Non è possibile modificare un buono già consumato");
+        LocalDateTime createdAt = DatabaseClient.parseDateTime(values[4]);
+        if (createdAt != null) {
+            voucher.setCreatedAt(createdAt);
         }
         
-        voucher.setCategory(newCategory);
+        LocalDateTime consumedAt = DatabaseClient.parseDateTime(values[5]);
+        if (consumedAt != null) {
+            voucher.setConsumedAt(consumedAt);
+        }
         
-        try {
-            saveVoucher(voucher);
-            return true;
-        } catch (DatabaseException e) {
-            throw new ServiceException("Errore durante l'aggiornamento categoria: " + e.getMessage(), e);
+        return voucher;
+    }
+    
+    /**
+     * Osserva (WATCH) e legge un buono all'interno di una transazione.
+     * Restituisce null se il buono non esiste.
+     */
+    private Voucher watchVoucher(Transaction tx, long voucherId) throws DatabaseException {
+        String key = voucherKey(voucherId);
+        if (key == null) {
+            return null;
         }
+        tx.watch(key);
+        String[] values = tx.hmget(key, VOUCHER_FIELDS);
+        return values[0] != null ? toVoucher(voucherId, values) : null;
     }
     
     /**
-     * Salva un voucher nel database.
+     * Accoda nella transazione il salvataggio di un voucher.
      */
-    private void saveVoucher(Voucher voucher) throws DatabaseException {
-        int voucherId = voucher.getId();
-        
-        System.out.println("DEBUG saveVoucher id=" + voucherId + " status=" + voucher.getStatus());
-        DatabaseClient.setInt(String.format("voucher:%d:userId", voucherId), voucher.getUserId());
-        DatabaseClient.setDouble(String.format("voucher:%d:amount", voucherId), voucher.getAmount());
-        DatabaseClient.set(String.format("voucher:%d:category", voucherId), voucher.getCategory().getDisplayName());
-        DatabaseClient.set(String.format("voucher:%d:status", voucherId), voucher.getStatus().getValue());
-        DatabaseClient.setDateTime(String.format("voucher:%d:createdAt", voucherId), voucher.getCreatedAt());
+    private void queueSaveVoucher(Transaction tx, Voucher voucher) {
+        System.out.println("DEBUG saveVoucher id=" + voucher.getId() + " status=" + voucher.getStatus());
+        tx.hset(voucherKey(voucher.getId()), voucherFields(voucher));
+    }
+    
+    private static Map<String, String> voucherFields(Voucher voucher) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("userId", String.valueOf(voucher.getUserId()));
+        fields.put("amount", String.valueOf(voucher.getAmount()));
+        fields.put("category", voucher.getCategory().getDisplayName());
+        fields.put("status", voucher.getStatus().getValue());
+        fields.put("createdAt", DatabaseClient.formatDateTime(voucher.getCreatedAt()));
         
         if (voucher.getConsumedAt() != null) {
-            DatabaseClient.setDateTime(String.format("voucher:%d:consumedAt", voucherId), voucher.getConsumedAt());
+            fields.put("consumedAt", DatabaseClient.formatDateTime(voucher.getConsumedAt()));
         }
+        return fields;
+    }
+    
+    /**
+     * Chiave dell'hash che contiene tutti i campi di un buono. L'hash tag
+     * dell'utente la tiene sul nodo di {@code user:<id>}, quindi le stored
+     * procedure che li modificano insieme funzionano anche con più nodi.
+     */
+    private static String voucherKey(int userId, long number) {
+        return "voucher:{" + UserService.userKey(userId) + "}:" + number;
+    }
+    
+    /**
+     * Id pubblico di un buono: il numero preso da counter:voucher, le cifre
+     * dell'utente e una cifra con la loro lunghezza meno uno (buono 123
+     * dell'utente 7: 12370). Dall'id si risale alla chiave senza leggere il
+     * database.
+     */
+    private static long voucherId(int userId, long number) {
+        String user = String.valueOf(userId);
+        return Long.parseLong(number + user + (user.length() - 1));
     }
     
+    /**
+     * Id pubblico del buono con la chiave indicata.
+     */
+    private static long voucherId(String key) {
+        int tagEnd = key.indexOf("}:");
+        int userId = Integer.parseInt(key.substring(key.indexOf("{user:") + "{user:".length(), tagEnd));
+        return voucherId(userId, Long.parseLong(key.substring(tagEnd + 2)));
+    }
     
     /**
-     * Rimuove completamente un voucher dal database.
+     * Chiave del buono con l'id pubblico indicato; null se l'id non può
+     * essere stato generato da voucherId.
      */
-    private void deleteVoucherFromDatabase(int voucherId) throws DatabaseException {
-        DatabaseClient.delete(String.format("voucher:%d:userId", voucherId));
-        DatabaseClient.delete(String.format("voucher:%d:amount", voucherId));
-        DatabaseClient.delete(String.format("voucher:%d:category", voucherId));
-        DatabaseClient.delete(String.format("voucher:%d:status", voucherId));
-        DatabaseClient.delete(String.format("voucher:%d:createdAt", voucherId));
-        DatabaseClient.delete(String.format("voucher:%d:consumedAt", voucherId));
+    private static String voucherKey(long voucherId) {
+        if (voucherId <= 0) {
+            return null;
+        }
+        String id = String.valueOf(voucherId);
+        int userEnd = id.length() - 1;
+        int userStart = userEnd - (id.charAt(userEnd) - '0' + 1);
+        if (userStart <= 0 || id.charAt(userStart) == '0') {
+            return null;
+        }
+        try {
+            return voucherKey(Integer.parseInt(id.substring(userStart, userEnd)), Long.parseLong(id.substring(0, userStart)));
+        } catch (NumberFormatException e) {
+            return null; // Utente oltre il massimo di un int
+        }
     }
     
     /**
@@ -306,15 +361,13 @@ public class VoucherService {
     public List<Voucher> getAllVouchers() throws ServiceException {
         try {
             List<Voucher> vouchers = new ArrayList<>();
-            String[] voucherKeys = DatabaseClient.getKeys("voucher:*:userId");
+            String[] voucherKeys = DatabaseClient.scan("voucher:*");
+            List<String[]> allValues = DatabaseClient.hmgetMany(voucherKeys, VOUCHER_FIELDS);
             
-            for (String key : voucherKeys) {
-                String voucherIdStr = key.split(":")[1];
-                int voucherId = Integer.parseInt(voucherIdStr);
-                
-                Voucher voucher = getVoucherById(voucherId);
-                if (voucher != null) {
-                    vouchers.add(voucher);
+            for (int i = 0; i < voucherKeys.length; i++) {
+                String[] values = allValues.get(i);
+                if (values[0] != null) {
+                    vouchers.add(toVoucher(voucherId(voucherKeys[i]), values));
                 }
             }
             